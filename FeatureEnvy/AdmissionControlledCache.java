@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.cache;
+
+import java.util.Set;
+
+/**
+ * Puts a TinyLFU admission filter in front of a cache: every access is recorded in a FrequencySketch, and once
+ * the cache is full, a new key is only admitted if it has been accessed more recently often than the key it
+ * would evict. Keys read once, as by a full scan or a repair, thus don't push the working set out of the cache.
+ *
+ * Caches that can't name their next victim fall back to admitting keys accessed at least
+ * cassandra.cache_admission_frequency times. The eviction policy of the underlying cache is unchanged.
+ *
+ * A partitioned cache should get a filter per partition, sharing one sketch, so that a key is weighed against
+ * the victim of its own partition.
+ */
+public class AdmissionControlledCache<K, V> implements ICache<K, V>
+{
+    // accesses (including the one being admitted) a new key needs to enter a full cache
+    private static final int ADMISSION_FREQUENCY = Integer.getInteger("cassandra.cache_admission_frequency", 2);
+
+    private final ICache<K, V> cache;
+    private final FrequencySketch sketch;
+
+    public AdmissionControlledCache(ICache<K, V> cache, int expectedEntries)
+    {
+        this(cache, new FrequencySketch(expectedEntries));
+    }
+
+    /**
+     * @param sketch the access frequencies, which the filters of the partitions of a cache share
+     */
+    public AdmissionControlledCache(ICache<K, V> cache, FrequencySketch sketch)
+    {
+        this.cache = cache;
+        this.sketch = sketch;
+    }
+
+    private boolean admit(K key)
+    {
+        if (cache.weightedSize() < cache.capacity())
+            return true;
+        if (!(cache instanceof IEvictionOrderedCache))
+            return sketch.frequency(key) >= ADMISSION_FREQUENCY;
+        K victim = ((IEvictionOrderedCache<K, V>) cache).nextVictim();
+        return victim == null || sketch.frequency(key) > sketch.frequency(victim);
+    }
+
+    public long capacity()
+    {
+        return cache.capacity();
+    }
+
+    public void setCapacity(long capacity)
+    {
+        cache.setCapacity(capacity);
+    }
+
+    public void put(K key, V value)
+    {
+        if (cache.containsKey(key) || admit(key))
+            cache.put(key, value);
+    }
+
+    public boolean putIfAbsent(K key, V value)
+    {
+        return admit(key) && cache.putIfAbsent(key, value);
+    }
+
+    public boolean replace(K key, V old, V value)
+    {
+        return cache.replace(key, old, value);
+    }
+
+    public V get(K key)
+    {
+        sketch.increment(key);
+        return cache.get(key);
+    }
+
+    public void remove(K key)
+    {
+        cache.remove(key);
+    }
+
+    public int size()
+    {
+        return cache.size();
+    }
+
+    public long weightedSize()
+    {
+        return cache.weightedSize();
+    }
+
+    public void clear()
+    {
+        cache.clear();
+    }
+
+    public Set<K> keySet()
+    {
+        return cache.keySet();
+    }
+
+    public Set<K> hotKeySet(int n)
+    {
+        return cache.hotKeySet(n);
+    }
+
+    public boolean containsKey(K key)
+    {
+        return cache.containsKey(key);
+    }
+
+    public boolean isPutCopying()
+    {
+        return cache.isPutCopying();
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.util;
+
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+
+/**
+ * Segments of a file that is still being appended to, limited to the length it had when this was created:
+ * every segment reads the file through its own buffered handle, which reports end of file at that length,
+ * so whatever is written afterwards is never seen.
+ */
+public class BoundedSegmentedFile extends SegmentedFile
+{
+    public BoundedSegmentedFile(String path, long length)
+    {
+        super(path, length);
+    }
+
+    public FileDataInput getSegment(long position)
+    {
+        try
+        {
+            BufferedRandomAccessFile file = new BufferedRandomAccessFile(new File(path), "r", BufferedRandomAccessFile.DEFAULT_BUFFER_SIZE, true)
+            {
+                @Override
+                public long length()
+                {
+                    return BoundedSegmentedFile.this.length;
+                }
+            };
+            file.seek(position);
+            return file;
+        }
+        catch (IOException e)
+        {
+            throw new IOError(e);
+        }
+    }
+
+    public void cleanup()
+    {
+        // nothing is kept open between reads
+    }
+}
@@ -0,0 +1,361 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.sstable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.HeapAllocator;
+
+/**
+ * Writes sstables from rows given in any order, for offline generation of data to be streamed (or copied)
+ * into a cluster.
+ *
+ * Rows are sorted in memory up to about bufferSize bytes of heap; beyond that, sorted runs are spilled to
+ * temporary files of the output directory and merged (then deleted) on close. Rows with the same key are merged. At most
+ * MAX_MERGE_FAN_IN runs are merged at once, so that the open files and their read buffers stay bounded: with more runs,
+ * the oldest ones are first merged into bigger intermediate runs. The output is split into sstables of about
+ * maxSSTableSize bytes, written through SSTableWriter.
+ *
+ * Not thread safe.
+ */
+public class BulkSSTableWriter
+{
+    private static Logger logger = LoggerFactory.getLogger(BulkSSTableWriter.class);
+
+    // heap used by a buffered row besides its key bytes: the TreeMap entry, the DecoratedKey with its token
+    // and key ByteBuffer, and the ColumnFamily with its column map, rounded up
+    private static final int ROW_OVERHEAD = 256;
+    // heap used by a buffered column besides its serialized size: the column object, the ByteBuffers of its
+    // name and value, and its entry in the column map, rounded up
+    private static final int COLUMN_OVERHEAD = 128;
+    // runs read at once by a merge, each through a buffer of RUN_BUFFER_SIZE bytes
+    private static final int MAX_MERGE_FAN_IN = Integer.getInteger("cassandra.bulk_writer_max_merge_fan_in", 64);
+    private static final int RUN_BUFFER_SIZE = 1024 * 1024;
+    private static final int RUN_READ_BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final CFMetaData metadata;
+    private final IPartitioner partitioner;
+    private final long bufferSize;
+    private final long maxSSTableSize;
+
+    private final TreeMap<DecoratedKey, ColumnFamily> buffer = new TreeMap<DecoratedKey, ColumnFamily>();
+    // estimated heap used by the buffer
+    private long bufferedSize;
+    // the runs left to merge, oldest first
+    private final LinkedList<File> runs = new LinkedList<File>();
+    // used to estimate the key count of each output sstable
+    private long keysAdded;
+    private long bytesAdded;
+
+    private int generation;
+    private SSTableWriter writer;
+    private final List<SSTableReader> written = new ArrayList<SSTableReader>();
+    private boolean closed;
+
+    /**
+     * @param directory where the sstables (and the temporary runs) are written
+     * @param bufferSizeInMB amount of heap used by the rows sorted in memory before spilling a run
+     * @param maxSSTableSizeInMB size after which a new sstable is started
+     */
+    public BulkSSTableWriter(File directory, CFMetaData metadata, IPartitioner partitioner, int bufferSizeInMB, int maxSSTableSizeInMB)
+    {
+        assert directory.isDirectory() : directory + " is not a directory";
+        this.directory = directory;
+        this.metadata = metadata;
+        this.partitioner = partitioner;
+        this.bufferSize = bufferSizeInMB * 1024L * 1024L;
+        this.maxSSTableSize = maxSSTableSizeInMB * 1024L * 1024L;
+        this.generation = lastGeneration(directory, metadata);
+    }
+
+    private static int lastGeneration(File directory, final CFMetaData metadata)
+    {
+        int last = 0;
+        for (String name : directory.list())
+        {
+            if (!name.endsWith("-" + Component.DATA.name()))
+                continue;
+            Descriptor desc = Descriptor.fromFilename(new File(directory, name).getPath());
+            if (desc.ksname.equals(metadata.ksName) && desc.cfname.equals(metadata.cfName))
+                last = Math.max(last, desc.generation);
+        }
+        return last;
+    }
+
+    public void add(ByteBuffer key, ColumnFamily cf) throws IOException
+    {
+        assert !closed;
+        DecoratedKey decoratedKey = partitioner.decorateKey(key);
+        long serializedSize = 0;
+        long columns = 0;
+        for (IColumn column : cf.getSortedColumns())
+        {
+            serializedSize += column.size();
+            columns++;
+        }
+        bufferedSize += serializedSize + columns * COLUMN_OVERHEAD;
+        bytesAdded += serializedSize;
+
+        ColumnFamily previous = buffer.get(decoratedKey);
+        if (previous == null)
+        {
+            buffer.put(decoratedKey, cf);
+            keysAdded++;
+            bufferedSize += key.remaining() + ROW_OVERHEAD;
+            bytesAdded += key.remaining();
+        }
+        else
+        {
+            previous.addAll(cf, HeapAllocator.instance);
+        }
+
+        if (bufferedSize >= bufferSize)
+            spill();
+    }
+
+    /**
+     * Writes the buffered rows to a new run. Only the deletion info and columns of each row are written, in the
+     * sstable format, so that reading them back only needs the metadata given to this writer rather than the
+     * schema of a running node.
+     */
+    private void spill() throws IOException
+    {
+        File run = newRun();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE));
+        try
+        {
+            for (Map.Entry<DecoratedKey, ColumnFamily> entry : buffer.entrySet())
+                writeRow(entry.getKey(), entry.getValue(), out);
+        }
+        finally
+        {
+            out.close();
+        }
+        logger.debug("Spilled {} rows to {}", buffer.size(), run);
+        buffer.clear();
+        bufferedSize = 0;
+    }
+
+    private File newRun() throws IOException
+    {
+        File run = File.createTempFile(metadata.ksName + "-" + metadata.cfName + "-", ".run", directory);
+        // deleted by close(), whether it completes or not
+        runs.add(run);
+        return run;
+    }
+
+    private static void writeRow(DecoratedKey key, ColumnFamily cf, DataOutput out) throws IOException
+    {
+        ByteBufferUtil.writeWithShortLength(key.key, out);
+        ColumnFamily.serializer().serializeForSSTable(cf, out);
+    }
+
+    /**
+     * Writes out all the rows added, and opens the resulting sstables.
+     */
+    public List<SSTableReader> close() throws IOException
+    {
+        assert !closed;
+        closed = true;
+        try
+        {
+            if (runs.isEmpty())
+            {
+                for (Map.Entry<DecoratedKey, ColumnFamily> entry : buffer.entrySet())
+                    write(entry.getKey(), entry.getValue());
+                buffer.clear();
+            }
+            else
+            {
+                if (!buffer.isEmpty())
+                    spill();
+                while (runs.size() > MAX_MERGE_FAN_IN)
+                    mergeOldestRuns();
+                merge(new ArrayList<File>(runs), null);
+            }
+            if (writer != null)
+                written.add(writer.closeAndOpenReader());
+            writer = null;
+            return written;
+        }
+        finally
+        {
+            for (File run : runs)
+                FileUtils.deleteWithConfirm(run);
+        }
+    }
+
+    /**
+     * Merges the MAX_MERGE_FAN_IN oldest runs into a new run, queued after the others so that runs are merged
+     * again only once all of the same generation have been.
+     */
+    private void mergeOldestRuns() throws IOException
+    {
+        List<File> merged = new ArrayList<File>(runs.subList(0, MAX_MERGE_FAN_IN));
+        File run = newRun();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE));
+        try
+        {
+            merge(merged, out);
+        }
+        finally
+        {
+            out.close();
+        }
+        logger.debug("Merged {} runs into {}", merged.size(), run);
+        for (File file : merged)
+        {
+            runs.remove(file);
+            FileUtils.deleteWithConfirm(file);
+        }
+    }
+
+    /**
+     * Merges the given runs to the given output, or to the sstables if it is null.
+     */
+    private void merge(List<File> files, DataOutput out) throws IOException
+    {
+        PriorityQueue<Run> queue = new PriorityQueue<Run>(files.size());
+        try
+        {
+            for (File file : files)
+            {
+                Run run = new Run(file);
+                if (run.advance())
+                    queue.add(run);
+                else
+                    run.close();
+            }
+
+            while (!queue.isEmpty())
+            {
+                Run run = queue.poll();
+                DecoratedKey key = run.key;
+                ColumnFamily cf = run.cf;
+                if (run.advance())
+                    queue.add(run);
+                else
+                    run.close();
+                // a key only appears once per run, but may be in several of them
+                while (!queue.isEmpty() && queue.peek().key.equals(key))
+                {
+                    Run other = queue.poll();
+                    cf.addAll(other.cf, HeapAllocator.instance);
+                    if (other.advance())
+                        queue.add(other);
+                    else
+                        other.close();
+                }
+                if (out == null)
+                    write(key, cf);
+                else
+                    writeRow(key, cf, out);
+            }
+        }
+        finally
+        {
+            for (Run run : queue)
+                run.close();
+        }
+    }
+
+    private void write(DecoratedKey key, ColumnFamily cf) throws IOException
+    {
+        if (writer != null && writer.getFilePointer() >= maxSSTableSize)
+        {
+            written.add(writer.closeAndOpenReader());
+            writer = null;
+        }
+        if (writer == null)
+        {
+            Descriptor desc = new Descriptor(directory, metadata.ksName, metadata.cfName, ++generation, true);
+            writer = new SSTableWriter(desc.filenameFor(Component.DATA), estimateKeys(), metadata, partitioner, ReplayPosition.NONE);
+        }
+        writer.append(key, cf);
+    }
+
+    /**
+     * @return the expected number of keys of an sstable, for sizing its bloom filter and index summary
+     */
+    private long estimateKeys()
+    {
+        if (keysAdded == 0)
+            return 1;
+        long averageRowSize = Math.max(1, bytesAdded / keysAdded);
+        return Math.max(1, Math.min(keysAdded, maxSSTableSize / averageRowSize));
+    }
+
+    private class Run implements Comparable<Run>
+    {
+        private final DataInputStream in;
+        DecoratedKey key;
+        ColumnFamily cf;
+
+        Run(File file) throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), RUN_READ_BUFFER_SIZE));
+        }
+
+        /**
+         * Reads the next row of the run.
+         * @return false if the run is exhausted
+         */
+        boolean advance() throws IOException
+        {
+            ByteBuffer nextKey;
+            try
+            {
+                nextKey = ByteBufferUtil.readWithShortLength(in);
+            }
+            catch (EOFException e)
+            {
+                return false;
+            }
+            key = partitioner.decorateKey(nextKey);
+            cf = ColumnFamily.create(metadata);
+            ColumnFamily.serializer().deserializeFromSSTableNoColumns(cf, in);
+            ColumnFamily.serializer().deserializeColumns(in, cf, false, false);
+            return true;
+        }
+
+        void close()
+        {
+            FileUtils.closeQuietly(in);
+        }
+
+        public int compareTo(Run other)
+        {
+            return key.compareTo(other.key);
+        }
+    }
+}
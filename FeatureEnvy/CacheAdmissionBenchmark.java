@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.cache;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Replays a trace of cache reads against an LRU cache, with and without the TinyLFU admission filter, populating
+ * the cache on every miss as the read path does. Reports the hit rate of the reads of the working set, the
+ * overall hit rate, and the time per read.
+ *
+ * Usage: CacheAdmissionBenchmark [capacity] [keys] [reads] [scan length] [scan period] [trace file]
+ *
+ * Without a trace file, the working set is made of keys read with a Zipf distribution of exponent 0.9; every
+ * scan period reads, a scan reads scan length keys that are never read again, polluting an LRU cache as a
+ * full table scan or a repair does. A trace file has one key per line, and is replayed as is; its negative keys
+ * are counted as scan reads, like the generated ones. The capacity is in entries. Each cache is run twice,
+ * the first run being a warm up.
+ */
+public class CacheAdmissionBenchmark
+{
+    private static final double ZIPF_EXPONENT = 0.9;
+
+    // keeps the values read alive so that the reads can't be optimized away
+    private static long sink;
+
+    public static void main(String[] args) throws IOException
+    {
+        int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int reads = args.length > 2 ? Integer.parseInt(args[2]) : 2000000;
+        int scanLength = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+        int scanPeriod = args.length > 4 ? Integer.parseInt(args[4]) : 100000;
+
+        long[] trace = args.length > 5 ? readTrace(args[5]) : generate(keys, reads, scanLength, scanPeriod);
+        if (args.length > 5)
+            System.out.printf("%d reads from %s, capacity of %d entries%n", trace.length, args[5], capacity);
+        else
+            System.out.printf("%d reads of %d keys, scans of %d keys every %d reads, capacity of %d entries%n",
+                              trace.length, keys, scanLength, scanPeriod, capacity);
+        System.out.printf("%-12s%22s%18s%14s%n", "Cache", "Working set hits (%)", "All hits (%)", "Read (ns)");
+        for (int round = 0; round < 2; round++)
+        {
+            String suffix = round == 0 ? " (warm up)" : "";
+            ICache<Long, Long> lru = ConcurrentLinkedHashCache.create(capacity);
+            run("LRU", lru, trace, suffix);
+            ICache<Long, Long> tinyLfu = new AdmissionControlledCache<Long, Long>(ConcurrentLinkedHashCache.<Long, Long>create(capacity), capacity);
+            run("TinyLFU", tinyLfu, trace, suffix);
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+
+    private static long[] generate(int keys, int reads, int scanLength, int scanPeriod)
+    {
+        // cumulative distribution of the Zipf law over the keys, the first being the most read
+        double[] cumulative = new double[keys];
+        double total = 0;
+        for (int i = 0; i < keys; i++)
+        {
+            total += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = total;
+        }
+
+        Random random = new Random(0);
+        long[] trace = new long[reads];
+        // scanned keys are negative, so that they are never part of the working set
+        long scanned = 0;
+        int i = 0;
+        while (i < reads)
+        {
+            if (scanPeriod > 0 && i > 0 && i % scanPeriod == 0)
+            {
+                for (int j = 0; j < scanLength && i < reads; j++)
+                    trace[i++] = -(++scanned);
+                if (i >= reads)
+                    break;
+            }
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            trace[i++] = index >= 0 ? index : Math.min(-index - 1, keys - 1);
+        }
+        return trace;
+    }
+
+    private static long[] readTrace(String path) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try
+        {
+            long[] trace = new long[1024];
+            int length = 0;
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                if (length == trace.length)
+                    trace = Arrays.copyOf(trace, length * 2);
+                trace[length++] = Long.parseLong(line);
+            }
+            return Arrays.copyOf(trace, length);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private static void run(String name, ICache<Long, Long> cache, long[] trace, String suffix)
+    {
+        long workingSetReads = 0, workingSetHits = 0, hits = 0;
+        long start = System.nanoTime();
+        for (long key : trace)
+        {
+            Long boxed = key;
+            Long value = cache.get(boxed);
+            if (value == null)
+            {
+                cache.put(boxed, boxed);
+            }
+            else
+            {
+                hits++;
+                sink += value;
+            }
+            if (key >= 0)
+            {
+                workingSetReads++;
+                if (value != null)
+                    workingSetHits++;
+            }
+        }
+        double readNanos = (double) (System.nanoTime() - start) / trace.length;
+
+        System.out.printf("%-12s%22.2f%18.2f%14.1f%s%n",
+                          name,
+                          100.0 * workingSetHits / Math.max(1, workingSetReads),
+                          100.0 * hits / trace.length,
+                          readNanos,
+                          suffix);
+    }
+}
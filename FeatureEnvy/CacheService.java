@@ -17,19 +17,39 @@
  */
 package org.apache.cassandra.service;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
+import com.googlecode.concurrentlinkedhashmap.EntryWeigher;
+
 import org.apache.cassandra.cache.*;
 import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.config.Schema;
 import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.Table;
+import org.apache.cassandra.db.filter.QueryFilter;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.io.sstable.Component;
+import org.apache.cassandra.io.sstable.Descriptor;
+import org.apache.cassandra.io.sstable.SSTableReader;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.EstimatedHistogram;
 import org.apache.cassandra.utils.FBUtilities;
+import org.apache.cassandra.utils.Pair;
+import org.apache.cassandra.utils.WrappedRunnable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,18 +59,54 @@ public class CacheService implements CacheServiceMBean
     private static final Logger logger = LoggerFactory.getLogger(CacheService.class);
 
     public static final String MBEAN_NAME = "org.apache.cassandra.db:type=Caches";
-    public static final int AVERAGE_KEY_CACHE_ROW_SIZE = 48;
+
+    // heap used by a key cache entry besides the key bytes: the KeyCacheKey, its byte[] header,
+    // the Long value and the ConcurrentLinkedHashMap node and table slot
+    private static final int KEY_CACHE_ENTRY_OVERHEAD = 24 + 16 + 16 + 64;
+
+    // weighs the key cache entries, and sizes them in the metrics by the same measure
+    private static final KeyCacheWeigher KEY_CACHE_WEIGHER = new KeyCacheWeigher();
+
+    // sizes the rows put in the row cache as the bytes of their columns, leaving the sentinels out
+    private static final MeteredCache.EntrySizer<RowCacheKey, IRowCacheEntry> ROW_SIZER = new MeteredCache.EntrySizer<RowCacheKey, IRowCacheEntry>()
+    {
+        public long sizeOf(RowCacheKey key, IRowCacheEntry value)
+        {
+            return value instanceof ColumnFamily ? ((ColumnFamily) value).dataSize() : -1;
+        }
+    };
 
     public static enum CacheType
     {
-        KEY_CACHE("KeyCache"),
-        ROW_CACHE("RowCache");
+        KEY_CACHE("KeyCache", "key_cache"),
+        ROW_CACHE("RowCache", "row_cache");
 
         private final String name;
+        private final String configName;
 
-        private CacheType(String typeName)
+        private CacheType(String typeName, String configName)
         {
             name = typeName;
+            this.configName = configName;
+        }
+
+        /**
+         * @return whether the cache should only admit frequently accessed keys once full, as set by the
+         * cassandra.key_cache_admission_control and cassandra.row_cache_admission_control system properties
+         */
+        public boolean isAdmissionControlled()
+        {
+            return Boolean.getBoolean("cassandra." + configName + "_admission_control");
+        }
+
+        /**
+         * @return how the cache is split into partitions sharing its capacity: "none", "keyspace" or
+         * "columnfamily", as set by the cassandra.key_cache_partitioning and cassandra.row_cache_partitioning
+         * system properties
+         */
+        public String partitioning()
+        {
+            return System.getProperty("cassandra." + configName + "_partitioning", "none");
         }
 
         public String toString()
@@ -59,6 +115,18 @@ public class CacheService implements CacheServiceMBean
         }
     }
 
+    // one save in this many writes all the hot keys, the others only the keys added since the previous save
+    private static final int FULL_SNAPSHOT_INTERVAL = Integer.getInteger("cassandra.cache_snapshot_full_save_interval", 10);
+    // period of the cache snapshots; 0 disables them, and the tracking of the keys added to the caches
+    private static final int SNAPSHOT_PERIOD = Integer.getInteger("cassandra.cache_snapshot_period_in_seconds", 0);
+    // keys added between two saves past which the next save is a full one
+    private static final int SNAPSHOT_MAX_TRACKED_KEYS = Integer.getInteger("cassandra.cache_snapshot_max_tracked_keys", 1000000);
+    // time allowed at startup to load the snapshot of a cache on all processors, after which it is loaded
+    // in the background
+    private static final long SNAPSHOT_LOAD_BUDGET = Long.getLong("cassandra.cache_snapshot_load_budget_in_ms", 30000);
+    // period of the adaptive cache sizing, see CacheSizeController
+    private static final int SIZING_PERIOD = Integer.getInteger("cassandra.cache_sizing_period_in_seconds", 10);
+
     public final static CacheService instance = new CacheService();
 
     public final AutoSavingCache<KeyCacheKey, Long> keyCache;
@@ -67,6 +135,19 @@ public class CacheService implements CacheServiceMBean
     private int rowCacheSavePeriod;
     private int keyCacheSavePeriod;
 
+    // null if the cache isn't partitioned
+    private PartitionedCache<KeyCacheKey, Long> keyCachePartitions;
+    private PartitionedCache<RowCacheKey, IRowCacheEntry> rowCachePartitions;
+    // null if the snapshots are disabled
+    private KeyTrackingCache<KeyCacheKey, Long> trackedKeyCache;
+    private KeyTrackingCache<RowCacheKey, IRowCacheEntry> trackedRowCache;
+    private MeteredCache<KeyCacheKey, Long> meteredKeyCache;
+    private MeteredCache<RowCacheKey, IRowCacheEntry> meteredRowCache;
+    public final CacheSnapshot<KeyCacheKey> keyCacheSnapshot;
+    public final CacheSnapshot<RowCacheKey> rowCacheSnapshot;
+    private int snapshotsSaved;
+    public final CacheSizeController sizeController;
+
     private CacheService()
     {
         MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
@@ -85,10 +166,100 @@ public class CacheService implements CacheServiceMBean
 
         keyCache = initKeyCache();
         rowCache = initRowCache();
+
+        File savedCaches = new File(DatabaseDescriptor.getSavedCachesLocation());
+        keyCacheSnapshot = new CacheSnapshot<KeyCacheKey>(savedCaches, CacheType.KEY_CACHE.toString(), new KeyCacheKeySerializer());
+        rowCacheSnapshot = new CacheSnapshot<RowCacheKey>(savedCaches, CacheType.ROW_CACHE.toString(), new RowCacheKeySerializer());
+        if (SNAPSHOT_PERIOD > 0)
+        {
+            scheduleSnapshotLoad();
+            StorageService.scheduledTasks.scheduleWithFixedDelay(new WrappedRunnable()
+            {
+                protected void runMayThrow() throws IOException
+                {
+                    saveCacheSnapshots();
+                }
+            }, SNAPSHOT_PERIOD, SNAPSHOT_PERIOD, TimeUnit.SECONDS);
+        }
+
+        sizeController = initSizeController();
+        StorageService.scheduledTasks.scheduleWithFixedDelay(sizeController, SIZING_PERIOD, SIZING_PERIOD, TimeUnit.SECONDS);
+        StorageService.scheduledTasks.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                meteredKeyCache.tick();
+                meteredRowCache.tick();
+            }
+        }, MeteredCache.TICK_INTERVAL, MeteredCache.TICK_INTERVAL, TimeUnit.SECONDS);
+        if (keyCachePartitions != null || rowCachePartitions != null)
+        {
+            StorageService.scheduledTasks.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    if (keyCachePartitions != null)
+                        keyCachePartitions.rebalance();
+                    if (rowCachePartitions != null)
+                        rowCachePartitions.rebalance();
+                }
+            }, PartitionedCache.REBALANCE_PERIOD, PartitionedCache.REBALANCE_PERIOD, TimeUnit.SECONDS);
+        }
+    }
+
+    private CacheSizeController initSizeController()
+    {
+        CacheSizeController.CacheSizing keyCacheSizing = new CacheSizeController.CacheSizing(CacheType.KEY_CACHE.toString(), DatabaseDescriptor.getKeyCacheSizeInMB(), true)
+        {
+            protected long getHits()
+            {
+                return getKeyCacheHits();
+            }
+
+            protected long getRequests()
+            {
+                return getKeyCacheRequests();
+            }
+
+            protected long getCapacityInMB()
+            {
+                return getKeyCacheCapacityInMB();
+            }
+
+            protected void setCapacityInMB(long capacity)
+            {
+                keyCache.setCapacity(capacity * 1024 * 1024);
+            }
+        };
+        boolean rowCacheOnHeap = !(DatabaseDescriptor.getRowCacheProvider() instanceof OffHeapRowCacheProvider);
+        CacheSizeController.CacheSizing rowCacheSizing = new CacheSizeController.CacheSizing(CacheType.ROW_CACHE.toString(), DatabaseDescriptor.getRowCacheSizeInMB(), rowCacheOnHeap)
+        {
+            protected long getHits()
+            {
+                return getRowCacheHits();
+            }
+
+            protected long getRequests()
+            {
+                return getRowCacheRequests();
+            }
+
+            protected long getCapacityInMB()
+            {
+                return getRowCacheCapacityInMB();
+            }
+
+            protected void setCapacityInMB(long capacity)
+            {
+                rowCache.setCapacity(capacity * 1024 * 1024);
+            }
+        };
+        return new CacheSizeController(keyCacheSizing, rowCacheSizing);
     }
 
     /**
-     * We can use Weighers.singleton() because Long can't be leaking memory
+     * Entries are weighted by their heap footprint, so the capacity is in bytes. Values are plain
+     * Longs, so only the size of the key varies.
      * @return auto saving cache object
      */
     private AutoSavingCache<KeyCacheKey, Long> initKeyCache()
@@ -97,10 +268,35 @@ public class CacheService implements CacheServiceMBean
 
         long keyCacheInMemoryCapacity = DatabaseDescriptor.getKeyCacheSizeInMB() * 1024 * 1024;
 
-        // as values are constant size we can use singleton weigher
-        // where 48 = 40 bytes (average size of the key) + 8 bytes (size of value)
-        ICache<KeyCacheKey, Long> kc = ConcurrentLinkedHashCache.create(keyCacheInMemoryCapacity / AVERAGE_KEY_CACHE_ROW_SIZE);
-        AutoSavingCache<KeyCacheKey, Long> keyCache = new AutoSavingCache<KeyCacheKey, Long>(kc, CacheType.KEY_CACHE);
+        final FrequencySketch sketch = CacheType.KEY_CACHE.isAdmissionControlled()
+                                     ? new FrequencySketch(expectedEntries(keyCacheInMemoryCapacity, KEY_CACHE_ENTRY_OVERHEAD + 32))
+                                     : null;
+        PartitionedCache.Factory<KeyCacheKey, Long> factory = new PartitionedCache.Factory<KeyCacheKey, Long>()
+        {
+            public ICache<KeyCacheKey, Long> create(long capacity)
+            {
+                return admissionControlled(ConcurrentLinkedHashCache.create(capacity, KEY_CACHE_WEIGHER), sketch);
+            }
+
+            public boolean isPutCopying()
+            {
+                return false;
+            }
+        };
+        ICache<KeyCacheKey, Long> kc;
+        if (CacheType.KEY_CACHE.partitioning().equals("none"))
+        {
+            kc = factory.create(keyCacheInMemoryCapacity);
+        }
+        else
+        {
+            keyCachePartitions = new PartitionedCache<KeyCacheKey, Long>(factory, keyCacheInMemoryCapacity, CacheType.KEY_CACHE.partitioning().equals("keyspace"));
+            kc = keyCachePartitions;
+        }
+        if (SNAPSHOT_PERIOD > 0)
+            kc = trackedKeyCache = new KeyTrackingCache<KeyCacheKey, Long>(kc, SNAPSHOT_MAX_TRACKED_KEYS);
+        meteredKeyCache = new MeteredCache<KeyCacheKey, Long>(kc, KEY_CACHE_WEIGHER);
+        AutoSavingCache<KeyCacheKey, Long> keyCache = new AutoSavingCache<KeyCacheKey, Long>(meteredKeyCache, CacheType.KEY_CACHE);
 
         int keyCacheKeysToSave = DatabaseDescriptor.getKeyCacheKeysToSave();
 
@@ -124,9 +320,39 @@ public class CacheService implements CacheServiceMBean
 
         long rowCacheInMemoryCapacity = DatabaseDescriptor.getRowCacheSizeInMB() * 1024 * 1024;
 
+        final EstimatedHistogram entrySizes = new EstimatedHistogram();
+        final FrequencySketch sketch = CacheType.ROW_CACHE.isAdmissionControlled()
+                                     ? new FrequencySketch(expectedEntries(rowCacheInMemoryCapacity, 1024))
+                                     : null;
         // cache object
-        ICache<RowCacheKey, IRowCacheEntry> rc = DatabaseDescriptor.getRowCacheProvider().create(rowCacheInMemoryCapacity, true);
-        AutoSavingCache<RowCacheKey, IRowCacheEntry> rowCache = new AutoSavingCache<RowCacheKey, IRowCacheEntry>(rc, CacheType.ROW_CACHE);
+        ICache<RowCacheKey, IRowCacheEntry> rc = createRowCache(rowCacheInMemoryCapacity, entrySizes);
+        MeteredCache.EntrySizer<RowCacheKey, IRowCacheEntry> sizer = rc instanceof OffHeapRowCache ? null : ROW_SIZER;
+        if (CacheType.ROW_CACHE.partitioning().equals("none"))
+        {
+            rc = admissionControlled(rc, sketch);
+        }
+        else
+        {
+            final boolean isPutCopying = rc.isPutCopying();
+            PartitionedCache.Factory<RowCacheKey, IRowCacheEntry> factory = new PartitionedCache.Factory<RowCacheKey, IRowCacheEntry>()
+            {
+                public ICache<RowCacheKey, IRowCacheEntry> create(long capacity)
+                {
+                    return admissionControlled(createRowCache(capacity, entrySizes), sketch);
+                }
+
+                public boolean isPutCopying()
+                {
+                    return isPutCopying;
+                }
+            };
+            rowCachePartitions = new PartitionedCache<RowCacheKey, IRowCacheEntry>(factory, rowCacheInMemoryCapacity, CacheType.ROW_CACHE.partitioning().equals("keyspace"));
+            rc = rowCachePartitions;
+        }
+        if (SNAPSHOT_PERIOD > 0)
+            rc = trackedRowCache = new KeyTrackingCache<RowCacheKey, IRowCacheEntry>(rc, SNAPSHOT_MAX_TRACKED_KEYS);
+        meteredRowCache = new MeteredCache<RowCacheKey, IRowCacheEntry>(rc, sizer, entrySizes);
+        AutoSavingCache<RowCacheKey, IRowCacheEntry> rowCache = new AutoSavingCache<RowCacheKey, IRowCacheEntry>(meteredRowCache, CacheType.ROW_CACHE);
 
         int rowCacheKeysToSave = DatabaseDescriptor.getRowCacheKeysToSave();
 
@@ -139,6 +365,46 @@ public class CacheService implements CacheServiceMBean
         return rowCache;
     }
 
+    /**
+     * The off heap row cache serializes every row put anyway, so it records their sizes. The rows of other
+     * providers are sized by ROW_SIZER.
+     */
+    private static ICache<RowCacheKey, IRowCacheEntry> createRowCache(long capacity, EstimatedHistogram entrySizes)
+    {
+        ICache<RowCacheKey, IRowCacheEntry> cache = DatabaseDescriptor.getRowCacheProvider().create(capacity, true);
+        if (cache instanceof OffHeapRowCache)
+            ((OffHeapRowCache) cache).recordEntrySizes(entrySizes);
+        return cache;
+    }
+
+    /**
+     * Partitions get a filter each, sharing the sketch, so that a new key only competes with the entries of its
+     * own partition.
+     * @return the cache behind an admission filter, unless sketch is null
+     */
+    private static <K, V> ICache<K, V> admissionControlled(ICache<K, V> cache, FrequencySketch sketch)
+    {
+        return sketch == null ? cache : new AdmissionControlledCache<K, V>(cache, sketch);
+    }
+
+    private static int expectedEntries(long capacity, int averageEntrySize)
+    {
+        return (int) Math.min(Integer.MAX_VALUE, capacity / averageEntrySize);
+    }
+
+    private static class KeyCacheWeigher implements EntryWeigher<KeyCacheKey, Long>, MeteredCache.EntrySizer<KeyCacheKey, Long>
+    {
+        public int weightOf(KeyCacheKey key, Long value)
+        {
+            return key.key.length + KEY_CACHE_ENTRY_OVERHEAD;
+        }
+
+        public long sizeOf(KeyCacheKey key, Long value)
+        {
+            return weightOf(key, value);
+        }
+    }
+
     public long getKeyCacheHits()
     {
         return keyCache.getHits();
@@ -169,6 +435,80 @@ public class CacheService implements CacheServiceMBean
         return rowCache.getRecentHitRate();
     }
 
+    public double[] getKeyCacheHitRates()
+    {
+        return meteredKeyCache.getHitRates();
+    }
+
+    public double[] getRowCacheHitRates()
+    {
+        return meteredRowCache.getHitRates();
+    }
+
+    public long[] getKeyCacheGetLatencyHistogramMicros()
+    {
+        return meteredKeyCache.getGetLatencyHistogramMicros();
+    }
+
+    public long[] getRowCacheGetLatencyHistogramMicros()
+    {
+        return meteredRowCache.getGetLatencyHistogramMicros();
+    }
+
+    public long[] getKeyCachePutLatencyHistogramMicros()
+    {
+        return meteredKeyCache.getPutLatencyHistogramMicros();
+    }
+
+    public long[] getRowCachePutLatencyHistogramMicros()
+    {
+        return meteredRowCache.getPutLatencyHistogramMicros();
+    }
+
+    public long[] getKeyCacheEntrySizeHistogram()
+    {
+        return meteredKeyCache.getEntrySizeHistogram();
+    }
+
+    public long[] getRowCacheEntrySizeHistogram()
+    {
+        return meteredRowCache.getEntrySizeHistogram();
+    }
+
+    /**
+     * Records the time taken by a row cache miss to read the row and populate the cache, which only the reader
+     * (ColumnFamilyStore.getThroughCache) can measure.
+     */
+    public void addRowCacheReadThroughLatency(long nanos)
+    {
+        meteredRowCache.addReadThroughLatency(nanos);
+    }
+
+    public long[] getRowCacheReadThroughLatencyHistogramMicros()
+    {
+        return meteredRowCache.getReadThroughLatencyHistogramMicros();
+    }
+
+    public long getKeyCacheEvictions()
+    {
+        return meteredKeyCache.getEvictions();
+    }
+
+    public long getRowCacheEvictions()
+    {
+        return meteredRowCache.getEvictions();
+    }
+
+    public double getKeyCacheEvictionsPerSecond()
+    {
+        return meteredKeyCache.getEvictionsPerSecond();
+    }
+
+    public double getRowCacheEvictionsPerSecond()
+    {
+        return meteredRowCache.getEvictionsPerSecond();
+    }
+
     public int getRowCacheSavePeriodInSeconds()
     {
         return rowCacheSavePeriod;
@@ -207,6 +547,55 @@ public class CacheService implements CacheServiceMBean
         rowCache.clear();
     }
 
+    public void invalidateKeyCache(String ksName, String cfName)
+    {
+        invalidate(keyCache, meteredKeyCache, keyCachePartitions, ksName, cfName);
+    }
+
+    public void invalidateRowCache(String ksName, String cfName)
+    {
+        invalidate(rowCache, meteredRowCache, rowCachePartitions, ksName, cfName);
+    }
+
+    private static <K extends CacheKey> void invalidate(AutoSavingCache<K, ?> cache, MeteredCache<K, ?> metered, PartitionedCache<K, ?> partitions, String ksName, String cfName)
+    {
+        if (partitions != null)
+        {
+            metered.addRemovals(partitions.invalidate(ksName, cfName));
+            return;
+        }
+        for (K key : cache.getKeySet())
+        {
+            Pair<String, String> path = key.getPathInfo();
+            if (path.left.equals(ksName) && (cfName == null || path.right.equals(cfName)))
+                cache.remove(key);
+        }
+    }
+
+    public Map<String, long[]> getKeyCachePartitions()
+    {
+        return keyCachePartitions == null ? Collections.<String, long[]>emptyMap() : keyCachePartitions.getPartitionStatistics();
+    }
+
+    public Map<String, long[]> getRowCachePartitions()
+    {
+        return rowCachePartitions == null ? Collections.<String, long[]>emptyMap() : rowCachePartitions.getPartitionStatistics();
+    }
+
+    public void setKeyCachePartitionShares(String ksName, String cfName, double minShare, double maxShare)
+    {
+        if (keyCachePartitions == null)
+            throw new IllegalStateException("The key cache is not partitioned");
+        keyCachePartitions.setShares(ksName, cfName, minShare, maxShare);
+    }
+
+    public void setRowCachePartitionShares(String ksName, String cfName, double minShare, double maxShare)
+    {
+        if (rowCachePartitions == null)
+            throw new IllegalStateException("The row cache is not partitioned");
+        rowCachePartitions.setShares(ksName, cfName, minShare, maxShare);
+    }
+
     public long getRowCacheCapacityInBytes()
     {
         return rowCache.getCapacity();
@@ -223,11 +612,12 @@ public class CacheService implements CacheServiceMBean
             throw new RuntimeException("capacity should not be negative.");
 
         rowCache.setCapacity(capacity * 1024 * 1024);
+        sizeController.setRowCacheCeilingInMB(capacity);
     }
 
     public long getKeyCacheCapacityInBytes()
     {
-        return keyCache.getCapacity() * AVERAGE_KEY_CACHE_ROW_SIZE;
+        return keyCache.getCapacity();
     }
 
     public long getKeyCacheCapacityInMB()
@@ -240,7 +630,8 @@ public class CacheService implements CacheServiceMBean
         if (capacity < 0)
             throw new RuntimeException("capacity should not be negative.");
 
-        keyCache.setCapacity(capacity * 1024 * 1024 / 48);
+        keyCache.setCapacity(capacity * 1024 * 1024);
+        sizeController.setKeyCacheCeilingInMB(capacity);
     }
 
     public long getRowCacheSize()
@@ -250,7 +641,42 @@ public class CacheService implements CacheServiceMBean
 
     public long getKeyCacheSize()
     {
-        return keyCache.weightedSize() * AVERAGE_KEY_CACHE_ROW_SIZE;
+        return keyCache.weightedSize();
+    }
+
+    public boolean isAdaptiveCacheSizingEnabled()
+    {
+        return sizeController.isEnabled();
+    }
+
+    public void setAdaptiveCacheSizingEnabled(boolean enabled)
+    {
+        sizeController.setEnabled(enabled);
+    }
+
+    public double getCacheSizingHeapOccupancy()
+    {
+        return sizeController.getHeapOccupancy();
+    }
+
+    public String getLastCacheSizingDecision()
+    {
+        return sizeController.getLastDecision();
+    }
+
+    public long getCacheSizingResizes()
+    {
+        return sizeController.getResizes();
+    }
+
+    public double getKeyCacheMarginalHitRateGain()
+    {
+        return sizeController.getKeyCacheMarginalGain();
+    }
+
+    public double getRowCacheMarginalHitRateGain()
+    {
+        return sizeController.getRowCacheMarginalGain();
     }
 
     public void reduceCacheSizes()
@@ -261,12 +687,12 @@ public class CacheService implements CacheServiceMBean
 
     public void reduceRowCacheSize()
     {
-        rowCache.reduceCacheSize();
+        sizeController.reduceRowCacheSize();
     }
 
     public void reduceKeyCacheSize()
     {
-        keyCache.reduceCacheSize();
+        sizeController.reduceKeyCacheSize();
     }
 
     public void saveCaches() throws ExecutionException, InterruptedException
@@ -280,4 +706,148 @@ public class CacheService implements CacheServiceMBean
         FBUtilities.waitOnFutures(futures);
         logger.debug("cache saves completed");
     }
+
+    /**
+     * Saves the keys of both caches to their snapshots: the hottest keys (up to the configured number of keys
+     * to save) every FULL_SNAPSHOT_INTERVAL saves, and only the keys added since the previous save otherwise.
+     */
+    public synchronized void saveCacheSnapshots() throws IOException
+    {
+        boolean full = snapshotsSaved++ % FULL_SNAPSHOT_INTERVAL == 0;
+        long start = System.currentTimeMillis();
+        saveCacheSnapshot(keyCacheSnapshot, meteredKeyCache, trackedKeyCache, full, DatabaseDescriptor.getKeyCacheKeysToSave());
+        saveCacheSnapshot(rowCacheSnapshot, meteredRowCache, trackedRowCache, full, DatabaseDescriptor.getRowCacheKeysToSave());
+        logger.debug("{} cache snapshots saved in {} ms", full ? "Full" : "Incremental", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * The save is full if asked, but also if the added keys aren't known: when the snapshots are disabled (a
+     * save requested through JMX), or when too many keys were added to track them.
+     */
+    private static <K extends CacheKey> void saveCacheSnapshot(CacheSnapshot<K> snapshot, ICache<K, ?> cache, KeyTrackingCache<K, ?> tracked, boolean full, int keysToSave)
+    throws IOException
+    {
+        // everything added so far is in a full save
+        Set<K> added = tracked == null ? null : tracked.drainAddedKeys();
+        if (full || added == null)
+            snapshot.save(cache.hotKeySet(keysToSave), true);
+        else
+            snapshot.save(added, false);
+    }
+
+    /**
+     * Loads the snapshots once the node has joined the ring: reading the rows of the row cache needs the
+     * column families opened, and the daemon opens them after this service is created.
+     */
+    private void scheduleSnapshotLoad()
+    {
+        StorageService.scheduledTasks.schedule(new Runnable()
+        {
+            public void run()
+            {
+                if (!StorageService.instance.isInitialized())
+                {
+                    StorageService.scheduledTasks.schedule(this, 1, TimeUnit.SECONDS);
+                    return;
+                }
+                int threads = Runtime.getRuntime().availableProcessors();
+                keyCacheSnapshot.load(new KeyCacheLoader(), threads, SNAPSHOT_LOAD_BUDGET);
+                rowCacheSnapshot.load(new RowCacheLoader(), threads, SNAPSHOT_LOAD_BUDGET);
+            }
+        }, 1, TimeUnit.SECONDS);
+    }
+
+    private static ColumnFamilyStore columnFamilyStore(String ksName, String cfName)
+    {
+        // the column family may have been dropped since the save
+        if (Schema.instance.getId(ksName, cfName) == null)
+            return null;
+        return Table.open(ksName).getColumnFamilyStore(cfName);
+    }
+
+    /**
+     * Looks the saved keys up in the index of their sstable, which caches their positions.
+     */
+    private class KeyCacheLoader implements CacheSnapshot.Loader<KeyCacheKey>
+    {
+        public void load(String ksName, String cfName, List<KeyCacheKey> keys)
+        {
+            ColumnFamilyStore cfs = columnFamilyStore(ksName, cfName);
+            if (cfs == null)
+                return;
+            Map<Descriptor, SSTableReader> readers = new HashMap<Descriptor, SSTableReader>();
+            for (SSTableReader reader : cfs.getSSTables())
+                readers.put(reader.descriptor, reader);
+            for (KeyCacheKey key : keys)
+            {
+                SSTableReader reader = readers.get(key.desc);
+                if (reader == null || keyCache.containsKey(key))
+                    continue;
+                DecoratedKey dk = StorageService.getPartitioner().decorateKey(ByteBuffer.wrap(key.key));
+                long position = reader.getPosition(dk, SSTableReader.Operator.EQ);
+                if (position >= 0)
+                    keyCache.put(key, position);
+            }
+        }
+    }
+
+    private class RowCacheLoader implements CacheSnapshot.Loader<RowCacheKey>
+    {
+        public void load(String ksName, String cfName, List<RowCacheKey> keys)
+        {
+            ColumnFamilyStore cfs = columnFamilyStore(ksName, cfName);
+            if (cfs == null)
+                return;
+            for (RowCacheKey key : keys)
+            {
+                if (rowCache.containsKey(key))
+                    continue;
+                DecoratedKey dk = StorageService.getPartitioner().decorateKey(ByteBuffer.wrap(key.key));
+                ColumnFamily data = cfs.getTopLevelColumns(QueryFilter.getIdentityFilter(dk, new QueryPath(cfName)), Integer.MIN_VALUE, true);
+                if (data != null)
+                    rowCache.put(key, data);
+            }
+        }
+    }
+
+    private static class KeyCacheKeySerializer implements CacheSnapshot.KeySerializer<KeyCacheKey>
+    {
+        public void serialize(KeyCacheKey key, DataOutput out) throws IOException
+        {
+            out.writeInt(key.desc.generation);
+            out.writeInt(key.key.length);
+            out.write(key.key);
+        }
+
+        public KeyCacheKey deserialize(String ksName, String cfName, DataInput in) throws IOException
+        {
+            int generation = in.readInt();
+            ByteBuffer key = ByteBufferUtil.readWithLength(in);
+            for (String directory : DatabaseDescriptor.getAllDataFileLocationsForTable(ksName))
+            {
+                Descriptor desc = new Descriptor(new File(directory), ksName, cfName, generation, false);
+                if (new File(desc.filenameFor(Component.DATA)).exists())
+                    return new KeyCacheKey(desc, key);
+            }
+            // the sstable has been compacted away since the save
+            return null;
+        }
+    }
+
+    private static class RowCacheKeySerializer implements CacheSnapshot.KeySerializer<RowCacheKey>
+    {
+        public void serialize(RowCacheKey key, DataOutput out) throws IOException
+        {
+            out.writeInt(key.key.length);
+            out.write(key.key);
+        }
+
+        public RowCacheKey deserialize(String ksName, String cfName, DataInput in) throws IOException
+        {
+            ByteBuffer key = ByteBufferUtil.readWithLength(in);
+            UUID cfId = Schema.instance.getId(ksName, cfName);
+            // the column family may have been dropped since the save
+            return cfId == null ? null : new RowCacheKey(cfId, key);
+        }
+    }
 }
@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.service;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+public interface CacheServiceMBean
+{
+    public long getKeyCacheHits();
+    public long getRowCacheHits();
+
+    public long getKeyCacheRequests();
+    public long getRowCacheRequests();
+
+    public double getKeyCacheRecentHitRate();
+    public double getRowCacheRecentHitRate();
+
+    /**
+     * hit rates over the last 1, 5 and 15 minutes (exponentially decaying)
+     */
+    public double[] getKeyCacheHitRates();
+    public double[] getRowCacheHitRates();
+
+    /**
+     * latencies of gets (including misses) and puts, in EstimatedHistogram buckets
+     */
+    public long[] getKeyCacheGetLatencyHistogramMicros();
+    public long[] getRowCacheGetLatencyHistogramMicros();
+    public long[] getKeyCachePutLatencyHistogramMicros();
+    public long[] getRowCachePutLatencyHistogramMicros();
+
+    /**
+     * latencies of reading a row missed by the row cache and populating the cache, in EstimatedHistogram buckets
+     */
+    public long[] getRowCacheReadThroughLatencyHistogramMicros();
+
+    /**
+     * sizes of the entries put, in EstimatedHistogram buckets; row sizes are only recorded by the off heap row
+     * cache, which computes them when serializing the rows
+     */
+    public long[] getKeyCacheEntrySizeHistogram();
+    public long[] getRowCacheEntrySizeHistogram();
+
+    public long getKeyCacheEvictions();
+    public long getRowCacheEvictions();
+
+    /**
+     * evictions per second over the last minute (exponentially decaying)
+     */
+    public double getKeyCacheEvictionsPerSecond();
+    public double getRowCacheEvictionsPerSecond();
+
+    public int getRowCacheSavePeriodInSeconds();
+    public void setRowCacheSavePeriodInSeconds(int rcspis);
+
+    public int getKeyCacheSavePeriodInSeconds();
+    public void setKeyCacheSavePeriodInSeconds(int kcspis);
+
+    /**
+     * invalidate the key cache; for use after invalidating row cache
+     */
+    public void invalidateKeyCache();
+
+    /**
+     * invalidate the row cache; for use after bulk loading via BinaryMemtable
+     */
+    public void invalidateRowCache();
+
+    /**
+     * invalidate the entries of a column family, or of a whole keyspace if cfName is null
+     */
+    public void invalidateKeyCache(String ksName, String cfName);
+    public void invalidateRowCache(String ksName, String cfName);
+
+    /**
+     * capacity, weighted size, hits and requests of each partition of the cache, by keyspace or
+     * keyspace.columnfamily; empty if the cache isn't partitioned
+     */
+    public Map<String, long[]> getKeyCachePartitions();
+    public Map<String, long[]> getRowCachePartitions();
+
+    /**
+     * set the minimum and maximum shares of the cache capacity of a partition (cfName is ignored if the
+     * cache is partitioned by keyspace). The partition must already hold entries of the column family.
+     *
+     * @throws IllegalStateException if the cache isn't partitioned
+     * @throws IllegalArgumentException if the shares are invalid or there is no such partition
+     */
+    public void setKeyCachePartitionShares(String ksName, String cfName, double minShare, double maxShare);
+    public void setRowCachePartitionShares(String ksName, String cfName, double minShare, double maxShare);
+
+    /**
+     * A capacity set here also becomes the largest size the adaptive cache sizing grows the cache to
+     */
+    public long getRowCacheCapacityInMB();
+    public long getRowCacheCapacityInBytes();
+    public void setRowCacheCapacityInMB(long capacity);
+
+    public long getKeyCacheCapacityInMB();
+    public long getKeyCacheCapacityInBytes();
+    public void setKeyCacheCapacityInMB(long capacity);
+
+    public long getRowCacheSize();
+
+    public long getKeyCacheSize();
+
+    /**
+     * Whether the caches are resized according to heap occupancy, see CacheSizeController
+     */
+    public boolean isAdaptiveCacheSizingEnabled();
+    public void setAdaptiveCacheSizingEnabled(boolean enabled);
+
+    /**
+     * Heap occupancy (after the last old generation collection) seen by the last sizing decision
+     */
+    public double getCacheSizingHeapOccupancy();
+
+    public String getLastCacheSizingDecision();
+
+    public long getCacheSizingResizes();
+
+    /**
+     * Hit rate change per MB of capacity change, measured over the last resize of each cache
+     */
+    public double getKeyCacheMarginalHitRateGain();
+    public double getRowCacheMarginalHitRateGain();
+
+    /**
+     * shrinks each cache held on the heap by a step of the adaptive cache sizing, down to its floor
+     */
+    public void reduceCacheSizes();
+
+    public void reduceRowCacheSize();
+
+    public void reduceKeyCacheSize();
+
+    /**
+     * save row and key caches
+     *
+     * @throws ExecutionException when attempting to retrieve the result of a task that aborted by throwing an exception
+     * @throws InterruptedException when a thread is waiting, sleeping, or otherwise occupied, and the thread is interrupted, either before or during the activity.
+     */
+    public void saveCaches() throws ExecutionException, InterruptedException;
+
+    /**
+     * save the keys of both caches to their snapshots, incrementally when possible
+     */
+    public void saveCacheSnapshots() throws IOException;
+}
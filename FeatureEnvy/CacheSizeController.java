@@ -0,0 +1,329 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.service;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resizes the key and row caches in small steps according to heap occupancy.
+ *
+ * Above HIGH_OCCUPANCY of the heap, the cache with the lowest marginal hit rate gain (hit rate change per MB of
+ * capacity change, measured over the previous resizes) shrinks by a step; below LOW_OCCUPANCY, the one with the
+ * highest gain grows by a step. Nothing changes in between. Each cache stays between its floor and its
+ * ceiling: its configured size, or the last capacity set by hand. Heap occupancy is taken after the last
+ * collection of the old generation, so that garbage waiting to be collected doesn't count, and the caches are
+ * only resized once per such collection: until the next one, the effect of the previous resize can't be seen.
+ *
+ * The emergency reductions asked for when the heap is almost full (reduceKeyCacheSize, reduceRowCacheSize) go
+ * through here too, and shrink the cache by a step rather than by half, whether the controller is enabled or not.
+ */
+public class CacheSizeController implements Runnable
+{
+    private static final Logger logger = LoggerFactory.getLogger(CacheSizeController.class);
+
+    private static final double HIGH_OCCUPANCY = Double.parseDouble(System.getProperty("cassandra.cache_sizing_high_heap_occupancy", "0.80"));
+    private static final double LOW_OCCUPANCY = Double.parseDouble(System.getProperty("cassandra.cache_sizing_low_heap_occupancy", "0.65"));
+    // step and floor, as fractions of the configured cache sizes
+    private static final double STEP = Double.parseDouble(System.getProperty("cassandra.cache_sizing_step", "0.05"));
+    private static final double FLOOR = Double.parseDouble(System.getProperty("cassandra.cache_sizing_floor", "0.10"));
+
+    private final CacheSizing keyCache;
+    private final CacheSizing rowCache;
+    private final MemoryPoolMXBean oldGeneration = oldGeneration();
+    private final List<GarbageCollectorMXBean> oldGenerationCollectors = collectorsOf(oldGeneration);
+    private long lastCollectionCount = -1;
+
+    private volatile boolean enabled = Boolean.getBoolean("cassandra.adaptive_cache_sizing");
+    private volatile double heapOccupancy;
+    private volatile String lastDecision = "none";
+    private final AtomicLong resizes = new AtomicLong();
+
+    public CacheSizeController(CacheSizing keyCache, CacheSizing rowCache)
+    {
+        this.keyCache = keyCache;
+        this.rowCache = rowCache;
+    }
+
+    /**
+     * @return the heap pool holding long lived objects, whose usage after collection is meaningful
+     */
+    private static MemoryPoolMXBean oldGeneration()
+    {
+        MemoryPoolMXBean oldGeneration = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported())
+                continue;
+            if (oldGeneration == null || pool.getUsage().getMax() > oldGeneration.getUsage().getMax())
+                oldGeneration = pool;
+        }
+        return oldGeneration;
+    }
+
+    /**
+     * @return the collectors of the given pool, empty if it is null
+     */
+    private static List<GarbageCollectorMXBean> collectorsOf(MemoryPoolMXBean pool)
+    {
+        List<GarbageCollectorMXBean> collectors = new ArrayList<GarbageCollectorMXBean>();
+        if (pool == null)
+            return collectors;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            if (Arrays.asList(collector.getMemoryPoolNames()).contains(pool.getName()))
+                collectors.add(collector);
+        }
+        return collectors;
+    }
+
+    /**
+     * @return the number of collections of the old generation so far, or -1 if it can't be told
+     */
+    private long oldGenerationCollections()
+    {
+        if (oldGenerationCollectors.isEmpty())
+            return -1;
+        long count = 0;
+        for (GarbageCollectorMXBean collector : oldGenerationCollectors)
+            count += Math.max(0, collector.getCollectionCount());
+        return count;
+    }
+
+    private double measureHeapOccupancy()
+    {
+        MemoryUsage usage = oldGeneration == null ? null : oldGeneration.getCollectionUsage();
+        if (usage == null || usage.getMax() <= 0)
+            usage = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        // the maximum is undefined (-1) when the heap has no limit, in which case only what is committed can fill up
+        long max = usage.getMax() > 0 ? usage.getMax() : usage.getCommitted();
+        return (double) usage.getUsed() / max;
+    }
+
+    public synchronized void run()
+    {
+        keyCache.sample();
+        rowCache.sample();
+        heapOccupancy = measureHeapOccupancy();
+        if (!enabled)
+            return;
+
+        // without a way to tell collections apart, every run counts as following one
+        long collections = oldGenerationCollections();
+        if (collections >= 0 && collections == lastCollectionCount)
+        {
+            lastDecision = "hold: no collection of the old generation since the last decision";
+            return;
+        }
+        lastCollectionCount = collections;
+
+        boolean grow;
+        if (heapOccupancy > HIGH_OCCUPANCY)
+        {
+            grow = false;
+        }
+        else if (heapOccupancy < LOW_OCCUPANCY)
+        {
+            grow = true;
+        }
+        else
+        {
+            lastDecision = "hold";
+            return;
+        }
+
+        CacheSizing cache = pick(grow);
+        if (cache == null)
+        {
+            lastDecision = grow ? "hold: caches at their ceiling" : "hold: heap over threshold, caches at their floor";
+            return;
+        }
+
+        String decision = cache.resize(grow);
+        resizes.incrementAndGet();
+        logger.info("Heap occupancy {}: {}", String.format("%.2f", heapOccupancy), decision);
+        lastDecision = decision;
+    }
+
+    /**
+     * Shrinks the key cache by a step, as the emergency reduction when the heap is almost full.
+     */
+    public void reduceKeyCacheSize()
+    {
+        reduce(keyCache);
+    }
+
+    public void reduceRowCacheSize()
+    {
+        reduce(rowCache);
+    }
+
+    private synchronized void reduce(CacheSizing cache)
+    {
+        if (!cache.canResize(false))
+            return;
+        String decision = cache.resize(false);
+        resizes.incrementAndGet();
+        logger.warn("Heap almost full: {}", decision);
+        lastDecision = decision;
+    }
+
+    /**
+     * @return the cache to grow (the one with the highest gain) or shrink (the lowest), or null if none can
+     */
+    private CacheSizing pick(boolean grow)
+    {
+        CacheSizing picked = null;
+        for (CacheSizing cache : new CacheSizing[]{ keyCache, rowCache })
+        {
+            if (!cache.canResize(grow))
+                continue;
+            if (picked == null || (grow ? cache.marginalGain > picked.marginalGain : cache.marginalGain < picked.marginalGain))
+                picked = cache;
+        }
+        return picked;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    public double getHeapOccupancy()
+    {
+        return heapOccupancy;
+    }
+
+    public String getLastDecision()
+    {
+        return lastDecision;
+    }
+
+    public long getResizes()
+    {
+        return resizes.get();
+    }
+
+    /**
+     * Makes a capacity set by hand the new ceiling of the key cache, so that it isn't undone by the next resize.
+     */
+    public void setKeyCacheCeilingInMB(long ceilingInMB)
+    {
+        keyCache.ceilingInMB = ceilingInMB;
+    }
+
+    public void setRowCacheCeilingInMB(long ceilingInMB)
+    {
+        rowCache.ceilingInMB = ceilingInMB;
+    }
+
+    public double getKeyCacheMarginalGain()
+    {
+        return keyCache.marginalGain;
+    }
+
+    public double getRowCacheMarginalGain()
+    {
+        return rowCache.marginalGain;
+    }
+
+    /**
+     * A cache seen by the controller.
+     */
+    public static abstract class CacheSizing
+    {
+        private final String name;
+        // the configured size, until a capacity is set by hand
+        private volatile long ceilingInMB;
+        // off heap caches don't relieve the heap, so they are never shrunk (nor grown)
+        private final boolean onHeap;
+
+        private long lastHits;
+        private long lastRequests;
+        private double lastHitRate = Double.NaN;
+        private long lastCapacityInMB = -1;
+        // hit rate gained per MB, from the last resize
+        private volatile double marginalGain;
+
+        protected CacheSizing(String name, long ceilingInMB, boolean onHeap)
+        {
+            this.name = name;
+            this.ceilingInMB = ceilingInMB;
+            this.onHeap = onHeap;
+        }
+
+        protected abstract long getHits();
+        protected abstract long getRequests();
+        protected abstract long getCapacityInMB();
+        protected abstract void setCapacityInMB(long capacity);
+
+        void sample()
+        {
+            long hits = getHits();
+            long requests = getRequests();
+            long capacity = getCapacityInMB();
+            if (requests == lastRequests)
+                return;
+
+            double hitRate = (double) (hits - lastHits) / (requests - lastRequests);
+            if (lastCapacityInMB >= 0 && capacity != lastCapacityInMB && !Double.isNaN(lastHitRate))
+                marginalGain = (hitRate - lastHitRate) / (capacity - lastCapacityInMB);
+            lastHits = hits;
+            lastRequests = requests;
+            lastHitRate = hitRate;
+            lastCapacityInMB = capacity;
+        }
+
+        boolean canResize(boolean grow)
+        {
+            if (!onHeap)
+                return false;
+            long ceiling = ceilingInMB;
+            long capacity = getCapacityInMB();
+            return grow ? capacity < ceiling : capacity > (long) (ceiling * FLOOR);
+        }
+
+        String resize(boolean grow)
+        {
+            long ceiling = ceilingInMB;
+            long step = Math.max(1, (long) (ceiling * STEP));
+            long capacity = getCapacityInMB();
+            long target = grow
+                        ? Math.min(ceiling, capacity + step)
+                        : Math.max((long) (ceiling * FLOOR), capacity - step);
+            setCapacityInMB(target);
+            return String.format("%s %s from %d to %d MB (marginal gain %.5f/MB)", grow ? "grew" : "shrank", name, capacity, target, marginalGain);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.cache;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.cassandra.io.util.DataOutputBuffer;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.utils.Pair;
+import org.apache.cassandra.utils.WrappedRunnable;
+
+/**
+ * Saved keys of a cache, as a sequence of segment files: a full save replaces all segments with one holding
+ * the given keys, an incremental save adds a segment with only the keys added since the previous save.
+ *
+ * A segment is a header followed by chunks of at most CHUNK_SIZE keys of a single column family. Each chunk
+ * is its length, its payload (keyspace, column family, key count and keys) and the CRC32 of its payload, so
+ * a corrupted chunk is skipped without losing the rest of the segment, and chunks can be loaded in parallel.
+ */
+public class CacheSnapshot<K extends CacheKey>
+{
+    private static final Logger logger = LoggerFactory.getLogger(CacheSnapshot.class);
+
+    private static final int MAGIC = 0xCA5E5A7E;
+    private static final int VERSION = 1;
+    private static final int CHUNK_SIZE = 1000;
+    private static final String SUFFIX = ".snapshot";
+
+    public interface KeySerializer<K>
+    {
+        public void serialize(K key, DataOutput out) throws IOException;
+
+        /**
+         * @return the deserialized key, or null if it no longer refers to anything (e.g. a dropped sstable)
+         */
+        public K deserialize(String ksName, String cfName, DataInput in) throws IOException;
+    }
+
+    public interface Loader<K>
+    {
+        /**
+         * Loads saved keys of the given column family in the cache. Called concurrently.
+         */
+        public void load(String ksName, String cfName, List<K> keys);
+    }
+
+    private final File directory;
+    private final String name;
+    private final KeySerializer<K> serializer;
+
+    public CacheSnapshot(File directory, String name, KeySerializer<K> serializer)
+    {
+        this.directory = directory;
+        this.name = name;
+        this.serializer = serializer;
+    }
+
+    /**
+     * @return the segment files, oldest first. Files whose name doesn't hold a generation are left out.
+     */
+    private List<File> segments()
+    {
+        File[] files = directory.listFiles(new FilenameFilter()
+        {
+            public boolean accept(File dir, String filename)
+            {
+                return filename.startsWith(name + "-") && filename.endsWith(SUFFIX) && generation(filename) >= 0;
+            }
+        });
+        if (files == null)
+            return Collections.emptyList();
+        List<File> segments = Arrays.asList(files);
+        Collections.sort(segments, new Comparator<File>()
+        {
+            public int compare(File f1, File f2)
+            {
+                long g1 = generation(f1.getName()), g2 = generation(f2.getName());
+                return g1 < g2 ? -1 : (g1 == g2 ? 0 : 1);
+            }
+        });
+        return segments;
+    }
+
+    /**
+     * @return the generation of the segment of the given name, or -1 if it can't be parsed
+     */
+    private long generation(String filename)
+    {
+        try
+        {
+            return Long.parseLong(filename.substring(name.length() + 1, filename.length() - SUFFIX.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    public int segmentCount()
+    {
+        return segments().size();
+    }
+
+    /**
+     * Saves the given keys as a new segment; a full save then removes the older segments.
+     */
+    public void save(Collection<K> keys, boolean full) throws IOException
+    {
+        List<File> previous = segments();
+        long generation = previous.isEmpty() ? 1 : generation(previous.get(previous.size() - 1).getName()) + 1;
+        if (!full && keys.isEmpty())
+            return;
+
+        // group the keys by column family, so that each chunk is for a single one
+        Map<Pair<String, String>, List<K>> byColumnFamily = new HashMap<Pair<String, String>, List<K>>();
+        for (K key : keys)
+        {
+            Pair<String, String> path = key.getPathInfo();
+            List<K> cfKeys = byColumnFamily.get(path);
+            if (cfKeys == null)
+            {
+                cfKeys = new ArrayList<K>();
+                byColumnFamily.put(path, cfKeys);
+            }
+            cfKeys.add(key);
+        }
+
+        File tmp = new File(directory, name + "-" + generation + SUFFIX + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            DataOutputBuffer chunk = new DataOutputBuffer();
+            CRC32 checksum = new CRC32();
+            for (Map.Entry<Pair<String, String>, List<K>> entry : byColumnFamily.entrySet())
+            {
+                List<K> cfKeys = entry.getValue();
+                for (int start = 0; start < cfKeys.size(); start += CHUNK_SIZE)
+                {
+                    List<K> chunkKeys = cfKeys.subList(start, Math.min(start + CHUNK_SIZE, cfKeys.size()));
+                    chunk.reset();
+                    chunk.writeUTF(entry.getKey().left);
+                    chunk.writeUTF(entry.getKey().right);
+                    chunk.writeInt(chunkKeys.size());
+                    for (K key : chunkKeys)
+                        serializer.serialize(key, chunk);
+
+                    checksum.reset();
+                    checksum.update(chunk.getData(), 0, chunk.getLength());
+                    out.writeInt(chunk.getLength());
+                    out.write(chunk.getData(), 0, chunk.getLength());
+                    out.writeLong(checksum.getValue());
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+
+        File segment = new File(directory, name + "-" + generation + SUFFIX);
+        if (!tmp.renameTo(segment))
+            throw new IOException("Unable to rename " + tmp + " to " + segment);
+        if (full)
+        {
+            for (File old : previous)
+                FileUtils.deleteWithConfirm(old);
+        }
+        logger.debug("Saved {} keys of {} to {}", new Object[]{ keys.size(), name, segment });
+    }
+
+    /**
+     * Starts loading the saved keys with the given loader on the given number of threads, and returns. Once
+     * budgetMillis have passed, all threads but one stop, and that one loads the keys left in the background,
+     * so that a large snapshot doesn't compete with requests for long.
+     */
+    public void load(final Loader<K> loader, final int threads, long budgetMillis)
+    {
+        final long start = System.currentTimeMillis();
+        final long deadline = start + budgetMillis;
+        // bounded so that the chunks read ahead of the loaders don't pile up on the heap
+        final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<byte[]>(threads * 4);
+        final AtomicBoolean allRead = new AtomicBoolean();
+        final AtomicLong loaded = new AtomicLong();
+        final AtomicInteger running = new AtomicInteger(threads);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1, new NamedThreadFactory(name + "Loader"));
+        executor.execute(new WrappedRunnable()
+        {
+            protected void runMayThrow() throws Exception
+            {
+                try
+                {
+                    for (File segment : segments())
+                        read(segment, chunks);
+                }
+                finally
+                {
+                    allRead.set(true);
+                }
+            }
+        });
+        for (int i = 0; i < threads; i++)
+        {
+            final boolean background = i == 0;
+            executor.execute(new WrappedRunnable()
+            {
+                protected void runMayThrow() throws Exception
+                {
+                    try
+                    {
+                        boolean pastDeadline = false;
+                        while (true)
+                        {
+                            if (!pastDeadline && System.currentTimeMillis() > deadline)
+                            {
+                                pastDeadline = true;
+                                if (!background)
+                                    break;
+                                logger.info("Loaded {} saved keys of {} at startup, loading the others in the background",
+                                            loaded.get(), name);
+                            }
+                            byte[] chunk = chunks.poll(100, TimeUnit.MILLISECONDS);
+                            if (chunk != null)
+                                loaded.addAndGet(load(chunk, loader));
+                            else if (allRead.get() && chunks.isEmpty())
+                                break;
+                        }
+                    }
+                    finally
+                    {
+                        if (running.decrementAndGet() == 0)
+                            logger.info("Loaded {} saved keys of {} in {} ms", new Object[]{ loaded.get(), name, System.currentTimeMillis() - start });
+                    }
+                }
+            });
+        }
+        // the threads go away once their tasks are done
+        executor.shutdown();
+    }
+
+    /**
+     * Queues the valid chunks of the given segment.
+     */
+    private void read(File segment, BlockingQueue<byte[]> chunks) throws IOException, InterruptedException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+        try
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                logger.warn("Ignoring {}: not a cache snapshot of a known version", segment);
+                return;
+            }
+
+            CRC32 checksum = new CRC32();
+            while (true)
+            {
+                int length;
+                try
+                {
+                    length = in.readInt();
+                }
+                catch (EOFException e)
+                {
+                    return;
+                }
+                byte[] chunk = new byte[length];
+                in.readFully(chunk);
+                checksum.reset();
+                checksum.update(chunk, 0, length);
+                if (in.readLong() != checksum.getValue())
+                {
+                    logger.warn("Skipping a corrupted chunk of {}", segment);
+                    continue;
+                }
+                chunks.put(chunk);
+            }
+        }
+        catch (EOFException e)
+        {
+            logger.warn("{} is truncated, ignoring its last chunk", segment);
+        }
+        finally
+        {
+            FileUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * @return the number of keys of the chunk still referring to something, which were given to the loader
+     */
+    private int load(byte[] chunk, Loader<K> loader) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(chunk));
+        String ksName = in.readUTF();
+        String cfName = in.readUTF();
+        int count = in.readInt();
+        List<K> keys = new ArrayList<K>(count);
+        for (int i = 0; i < count; i++)
+        {
+            K key = serializer.deserialize(ksName, cfName, in);
+            if (key != null)
+                keys.add(key);
+        }
+        loader.load(ksName, cfName, keys);
+        return keys.size();
+    }
+}
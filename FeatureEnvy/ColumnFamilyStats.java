@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.tools;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+
+/**
+ * An immutable snapshot of the statistics of one column family store and its key and row caches,
+ * built from the attribute lists fetched in bulk by NodeProbe.getColumnFamilyStats() so that rendering
+ * it costs no further JMX round trips.
+ */
+public class ColumnFamilyStats
+{
+    static final String[] STORE_ATTRIBUTES = { "ColumnFamilyName",
+                                               "LiveSSTableCount",
+                                               "LiveDiskSpaceUsed",
+                                               "TotalDiskSpaceUsed",
+                                               "MemtableColumnsCount",
+                                               "MemtableDataSize",
+                                               "MemtableSwitchCount",
+                                               "ReadCount",
+                                               "TotalReadLatencyMicros",
+                                               "RecentReadLatencyMicros",
+                                               "WriteCount",
+                                               "TotalWriteLatencyMicros",
+                                               "RecentWriteLatencyMicros",
+                                               "PendingTasks",
+                                               "MinRowSize",
+                                               "MaxRowSize",
+                                               "MeanRowSize" };
+    static final String[] CACHE_ATTRIBUTES = { "Capacity", "Size", "RecentHitRate" };
+
+    public final String keyspace;
+    public final String columnFamily;
+    public final int liveSSTableCount;
+    public final long liveDiskSpaceUsed;
+    public final long totalDiskSpaceUsed;
+    public final int memtableColumnsCount;
+    public final int memtableDataSize;
+    public final int memtableSwitchCount;
+    public final long readCount;
+    public final long totalReadLatencyMicros;
+    public final double recentReadLatencyMicros;
+    public final long writeCount;
+    public final long totalWriteLatencyMicros;
+    public final double recentWriteLatencyMicros;
+    public final int pendingTasks;
+    public final long minRowSize;
+    public final long maxRowSize;
+    public final long meanRowSize;
+    public final CacheStats keyCache;
+    public final CacheStats rowCache;
+
+    ColumnFamilyStats(String keyspace, String columnFamily, AttributeList store, AttributeList keyCache, AttributeList rowCache)
+    {
+        Map<String, Object> attributes = asMap(store);
+        this.keyspace = keyspace;
+        this.columnFamily = attributes.containsKey("ColumnFamilyName") ? (String) attributes.get("ColumnFamilyName") : columnFamily;
+        liveSSTableCount = (int) longValue(attributes, "LiveSSTableCount");
+        liveDiskSpaceUsed = longValue(attributes, "LiveDiskSpaceUsed");
+        totalDiskSpaceUsed = longValue(attributes, "TotalDiskSpaceUsed");
+        memtableColumnsCount = (int) longValue(attributes, "MemtableColumnsCount");
+        memtableDataSize = (int) longValue(attributes, "MemtableDataSize");
+        memtableSwitchCount = (int) longValue(attributes, "MemtableSwitchCount");
+        readCount = longValue(attributes, "ReadCount");
+        totalReadLatencyMicros = longValue(attributes, "TotalReadLatencyMicros");
+        recentReadLatencyMicros = doubleValue(attributes, "RecentReadLatencyMicros");
+        writeCount = longValue(attributes, "WriteCount");
+        totalWriteLatencyMicros = longValue(attributes, "TotalWriteLatencyMicros");
+        recentWriteLatencyMicros = doubleValue(attributes, "RecentWriteLatencyMicros");
+        pendingTasks = (int) longValue(attributes, "PendingTasks");
+        minRowSize = longValue(attributes, "MinRowSize");
+        maxRowSize = longValue(attributes, "MaxRowSize");
+        meanRowSize = longValue(attributes, "MeanRowSize");
+        this.keyCache = new CacheStats(keyCache);
+        this.rowCache = new CacheStats(rowCache);
+    }
+
+    /**
+     * Capacity, size and recent hit rate of a column family cache. A cache whose MBean is not
+     * registered reads as disabled, with a capacity of zero.
+     */
+    public static class CacheStats
+    {
+        public final int capacity;
+        public final int size;
+        public final double recentHitRate;
+
+        CacheStats(AttributeList list)
+        {
+            Map<String, Object> attributes = asMap(list);
+            capacity = (int) longValue(attributes, "Capacity");
+            size = (int) longValue(attributes, "Size");
+            recentHitRate = doubleValue(attributes, "RecentHitRate");
+        }
+
+        public boolean isEnabled()
+        {
+            return capacity > 0;
+        }
+    }
+
+    private static Map<String, Object> asMap(AttributeList list)
+    {
+        Map<String, Object> map = new HashMap<String, Object>();
+        if (list == null)
+            return map;
+        for (Object o : list)
+        {
+            Attribute attribute = (Attribute) o;
+            map.put(attribute.getName(), attribute.getValue());
+        }
+        return map;
+    }
+
+    // getAttributes() leaves out the attributes it failed to read rather than failing the whole call
+    private static long longValue(Map<String, Object> attributes, String name)
+    {
+        Object value = attributes.get(name);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static double doubleValue(Map<String, Object> attributes, String name)
+    {
+        Object value = attributes.get(name);
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.db.compaction;
+
+import java.io.Serializable;
+
+/** Implements serializable to allow structured info to be returned via JMX. */
+public final class CompactionInfo implements Serializable
+{
+    private final String ksname;
+    private final String cfname;
+    private final CompactionType tasktype;
+    private final long bytesComplete;
+    private final long totalBytes;
+    // NaN when the task doesn't report them
+    private final double bytesPerSecond;
+    private final double rowsPerSecond;
+
+    public CompactionInfo(String ksname, String cfname, CompactionType tasktype, long bytesComplete, long totalBytes)
+    {
+        this(ksname, cfname, tasktype, bytesComplete, totalBytes, Double.NaN, Double.NaN);
+    }
+
+    /**
+     * @param bytesPerSecond the rate at which the task has progressed through its bytes since it started
+     * @param rowsPerSecond the rate at which the task has written rows since it started
+     */
+    public CompactionInfo(String ksname, String cfname, CompactionType tasktype, long bytesComplete, long totalBytes, double bytesPerSecond, double rowsPerSecond)
+    {
+        this.ksname = ksname;
+        this.cfname = cfname;
+        this.tasktype = tasktype;
+        this.bytesComplete = bytesComplete;
+        this.totalBytes = totalBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.rowsPerSecond = rowsPerSecond;
+    }
+
+    /** @return A copy of this CompactionInfo with updated progress. */
+    public CompactionInfo forProgress(long bytesComplete, long totalBytes)
+    {
+        return new CompactionInfo(ksname, cfname, tasktype, bytesComplete, totalBytes, bytesPerSecond, rowsPerSecond);
+    }
+
+    public String getKeyspace()
+    {
+        return ksname;
+    }
+
+    public String getColumnFamily()
+    {
+        return cfname;
+    }
+
+    public long getBytesComplete()
+    {
+        return bytesComplete;
+    }
+
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    public CompactionType getTaskType()
+    {
+        return tasktype;
+    }
+
+    /**
+     * @return the bytes per second since the task started, or NaN if it doesn't report it
+     */
+    public double getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return the rows per second since the task started, or NaN if it doesn't report it
+     */
+    public double getRowsPerSecond()
+    {
+        return rowsPerSecond;
+    }
+
+    public String toString()
+    {
+        StringBuilder buff = new StringBuilder();
+        buff.append(getTaskType()).append('@').append(hashCode());
+        buff.append('(').append(getKeyspace()).append(", ").append(getColumnFamily());
+        buff.append(", ").append(getBytesComplete()).append('/').append(getTotalBytes());
+        if (!Double.isNaN(bytesPerSecond))
+            buff.append(String.format(", %.0f bytes/s, %.0f rows/s", bytesPerSecond, rowsPerSecond));
+        return buff.append(')').toString();
+    }
+
+    public interface Holder
+    {
+        public CompactionInfo getCompactionInfo();
+    }
+}
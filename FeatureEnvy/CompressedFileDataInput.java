@@ -0,0 +1,251 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.compress;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import org.apache.cassandra.io.util.FileDataInput;
+import org.apache.cassandra.io.util.FileMark;
+
+/**
+ * Reads the uncompressed data of a file written by CompressedSequentialWriter, one chunk at a time.
+ * The checksum of every chunk is verified before it is uncompressed.
+ */
+public class CompressedFileDataInput extends InputStream implements FileDataInput
+{
+    private final String path;
+    private final CompressionMetadata metadata;
+    private final RandomAccessFile source;
+
+    // compressed chunk followed by its checksum
+    private final byte[] compressed;
+    private final CRC32 checksum = new CRC32();
+
+    // uncompressed data of the current chunk, which starts at chunkStart (-1 when no chunk is loaded)
+    private final byte[] buffer;
+    private int validBufferBytes;
+    private long chunkStart = -1;
+
+    private long position;
+
+    private final DataInputStream stream = new DataInputStream(this);
+
+    public CompressedFileDataInput(String path, CompressionMetadata metadata) throws IOException
+    {
+        this.path = path;
+        this.metadata = metadata;
+        this.source = new RandomAccessFile(path, "r");
+        compressed = new byte[metadata.compressor.initialCompressedBufferLength(metadata.chunkLength) + 4];
+        buffer = new byte[metadata.chunkLength];
+    }
+
+    private void ensureChunk() throws IOException
+    {
+        if (chunkStart >= 0 && position >= chunkStart && position < chunkStart + validBufferBytes)
+            return;
+
+        CompressionMetadata.Chunk chunk = metadata.chunkFor(position);
+        source.seek(chunk.offset);
+        source.readFully(compressed, 0, chunk.length + 4);
+
+        checksum.reset();
+        checksum.update(compressed, 0, chunk.length);
+        int expected = (compressed[chunk.length] & 0xFF) << 24
+                       | (compressed[chunk.length + 1] & 0xFF) << 16
+                       | (compressed[chunk.length + 2] & 0xFF) << 8
+                       | (compressed[chunk.length + 3] & 0xFF);
+        if (expected != (int) checksum.getValue())
+            throw new IOException(String.format("Checksum mismatch for the chunk at %d of %s", chunk.offset, path));
+
+        validBufferBytes = metadata.compressor.uncompress(compressed, 0, chunk.length, buffer, 0);
+        chunkStart = position - (position % metadata.chunkLength);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (isEOF())
+            return -1;
+        ensureChunk();
+        return buffer[(int) (position++ - chunkStart)] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+            return 0;
+        if (isEOF())
+            return -1;
+        ensureChunk();
+        int n = (int) Math.min(len, chunkStart + validBufferBytes - position);
+        System.arraycopy(buffer, (int) (position - chunkStart), b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+        long skipped = Math.max(0, Math.min(n, bytesRemaining()));
+        position += skipped;
+        return skipped;
+    }
+
+    public String getPath()
+    {
+        return path;
+    }
+
+    public boolean isEOF()
+    {
+        return position >= metadata.dataLength;
+    }
+
+    public long bytesRemaining()
+    {
+        return metadata.dataLength - position;
+    }
+
+    public void seek(long pos)
+    {
+        position = pos;
+    }
+
+    public long getFilePointer()
+    {
+        return position;
+    }
+
+    public FileMark mark()
+    {
+        return new Mark(position);
+    }
+
+    public void reset(FileMark mark)
+    {
+        position = ((Mark) mark).position;
+    }
+
+    public long bytesPastMark(FileMark mark)
+    {
+        return position - ((Mark) mark).position;
+    }
+
+    public ByteBuffer readBytes(int length) throws IOException
+    {
+        byte[] bytes = new byte[length];
+        readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        source.close();
+    }
+
+    public void readFully(byte[] b) throws IOException
+    {
+        stream.readFully(b);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException
+    {
+        stream.readFully(b, off, len);
+    }
+
+    public int skipBytes(int n) throws IOException
+    {
+        return stream.skipBytes(n);
+    }
+
+    public boolean readBoolean() throws IOException
+    {
+        return stream.readBoolean();
+    }
+
+    public byte readByte() throws IOException
+    {
+        return stream.readByte();
+    }
+
+    public int readUnsignedByte() throws IOException
+    {
+        return stream.readUnsignedByte();
+    }
+
+    public short readShort() throws IOException
+    {
+        return stream.readShort();
+    }
+
+    public int readUnsignedShort() throws IOException
+    {
+        return stream.readUnsignedShort();
+    }
+
+    public char readChar() throws IOException
+    {
+        return stream.readChar();
+    }
+
+    public int readInt() throws IOException
+    {
+        return stream.readInt();
+    }
+
+    public long readLong() throws IOException
+    {
+        return stream.readLong();
+    }
+
+    public float readFloat() throws IOException
+    {
+        return stream.readFloat();
+    }
+
+    public double readDouble() throws IOException
+    {
+        return stream.readDouble();
+    }
+
+    @Deprecated
+    public String readLine() throws IOException
+    {
+        return stream.readLine();
+    }
+
+    public String readUTF() throws IOException
+    {
+        return stream.readUTF();
+    }
+
+    private static class Mark implements FileMark
+    {
+        final long position;
+
+        Mark(long position)
+        {
+            this.position = position;
+        }
+    }
+}
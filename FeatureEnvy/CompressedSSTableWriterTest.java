@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.sstable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import org.apache.cassandra.CleanupHelper;
+import org.apache.cassandra.Util;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
+import org.apache.cassandra.io.compress.CompressionMetadata;
+import org.apache.cassandra.io.compress.CompressionParameters;
+import org.apache.cassandra.io.compress.DeflateCompressor;
+import org.apache.cassandra.io.compress.ICompressor;
+import org.apache.cassandra.io.compress.LZCompressor;
+import org.apache.cassandra.io.util.CompressedSegmentedFile;
+import org.apache.cassandra.io.util.FileDataInput;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedSSTableWriterTest extends CleanupHelper
+{
+    @Test
+    public void testLZRoundTrip() throws IOException
+    {
+        roundTrip(LZCompressor.instance);
+    }
+
+    @Test
+    public void testDeflateRoundTrip() throws IOException
+    {
+        roundTrip(DeflateCompressor.instance);
+    }
+
+    private void roundTrip(ICompressor compressor) throws IOException
+    {
+        CFMetaData metadata = DatabaseDescriptor.getCFMetaData("Keyspace1", "Standard1");
+        // rows of up to 20 columns in chunks of 4KB, so that many rows straddle two chunks
+        SortedMap<DecoratedKey, ColumnFamily> rows = new TreeMap<DecoratedKey, ColumnFamily>();
+        for (int i = 0; i < 1000; i++)
+        {
+            ColumnFamily cf = ColumnFamily.create(metadata);
+            for (int j = 0; j < i % 20; j++)
+                cf.addColumn(new Column(ByteBufferUtil.bytes("column" + j), ByteBufferUtil.bytes("value" + i + "-" + j), j));
+            rows.put(Util.dk("key" + i), cf);
+        }
+
+        File file = SSTableUtils.tempSSTableFile("Keyspace1", "Standard1");
+        SSTableWriter writer = new SSTableWriter(file.getPath(),
+                                                 rows.size(),
+                                                 metadata,
+                                                 StorageService.getPartitioner(),
+                                                 ReplayPosition.NONE,
+                                                 new CompressionParameters(compressor, 4096));
+        for (Map.Entry<DecoratedKey, ColumnFamily> row : rows.entrySet())
+            writer.append(row.getKey(), row.getValue());
+        SSTableReader sstable = writer.closeAndOpenReader();
+
+        assertTrue(CompressionMetadata.isCompressed(sstable.descriptor));
+        CompressionMetadata compression = ((CompressedSegmentedFile) sstable.dfile).metadata;
+        assertTrue(new File(sstable.getFilename()).length() < compression.dataLength);
+
+        for (Map.Entry<DecoratedKey, ColumnFamily> row : rows.entrySet())
+        {
+            long position = sstable.getPosition(row.getKey(), SSTableReader.Operator.EQ);
+            assertTrue(position >= 0);
+            FileDataInput in = sstable.dfile.getSegment(position);
+            try
+            {
+                assertEquals(row.getKey(), SSTableReader.decodeKey(sstable.partitioner, sstable.descriptor, ByteBufferUtil.readWithShortLength(in)));
+                SSTableReader.readRowSize(in, sstable.descriptor);
+                IndexHelper.skipBloomFilter(in);
+                IndexHelper.skipIndex(in);
+                ColumnFamily read = ColumnFamily.create(metadata);
+                ColumnFamily.serializer().deserializeFromSSTableNoColumns(read, in);
+                ColumnFamily.serializer().deserializeColumns(in, read, false, false);
+
+                assertEquals(row.getValue().getColumnCount(), read.getColumnCount());
+                for (IColumn column : row.getValue().getSortedColumns())
+                {
+                    IColumn readColumn = read.getColumn(column.name());
+                    assertNotNull(readColumn);
+                    assertEquals(column.value(), readColumn.value());
+                }
+            }
+            finally
+            {
+                FileUtils.closeQuietly(in);
+            }
+        }
+    }
+}
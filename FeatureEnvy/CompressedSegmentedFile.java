@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.util;
+
+import java.io.IOError;
+import java.io.IOException;
+
+import org.apache.cassandra.io.compress.CompressedFileDataInput;
+import org.apache.cassandra.io.compress.CompressionMetadata;
+
+/**
+ * Segments of a compressed data file. Every segment reads the whole file through its own handle, locating
+ * rows through the chunk offsets, so no boundaries are needed.
+ */
+public class CompressedSegmentedFile extends SegmentedFile
+{
+    public final CompressionMetadata metadata;
+
+    public CompressedSegmentedFile(String path, CompressionMetadata metadata)
+    {
+        super(path, metadata.dataLength);
+        this.metadata = metadata;
+    }
+
+    public static class Builder extends SegmentedFile.Builder
+    {
+        public void addPotentialBoundary(long boundary)
+        {
+            // only chunks matter
+        }
+
+        public SegmentedFile complete(String path)
+        {
+            try
+            {
+                return new CompressedSegmentedFile(path, CompressionMetadata.create(path));
+            }
+            catch (IOException e)
+            {
+                throw new IOError(e);
+            }
+        }
+    }
+
+    public FileDataInput getSegment(long position)
+    {
+        try
+        {
+            CompressedFileDataInput input = new CompressedFileDataInput(path, metadata);
+            input.seek(position);
+            return input;
+        }
+        catch (IOException e)
+        {
+            throw new IOError(e);
+        }
+    }
+
+    public void cleanup()
+    {
+        // nothing is mapped
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.compress;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.cassandra.io.util.FileMark;
+import org.apache.cassandra.io.util.SequentialWriter;
+
+/**
+ * Writes a data file as a sequence of independently compressed, checksummed chunks, and its
+ * CompressionMetadata on close. Positions (getFilePointer, marks) are positions in the uncompressed data.
+ */
+public class CompressedSequentialWriter extends OutputStream implements SequentialWriter
+{
+    private final String path;
+    private final String metadataPath;
+    private final RandomAccessFile out;
+    private final ICompressor compressor;
+    private final int chunkLength;
+
+    // uncompressed data of the current chunk
+    private final byte[] buffer;
+    private int bufferOffset;
+    // uncompressed position of the start of the current chunk
+    private long chunkStart;
+
+    // compressed chunk followed by its checksum
+    private final byte[] compressed;
+    private final CRC32 checksum = new CRC32();
+    private final List<Long> chunkOffsets = new ArrayList<Long>();
+
+    private final DataOutputStream stream = new DataOutputStream(this);
+
+    public CompressedSequentialWriter(File file, String metadataPath, CompressionParameters parameters) throws IOException
+    {
+        this.path = file.getPath();
+        this.metadataPath = metadataPath;
+        this.out = new RandomAccessFile(file, "rw");
+        this.compressor = parameters.compressor;
+        this.chunkLength = parameters.chunkLength;
+        buffer = new byte[chunkLength];
+        compressed = new byte[compressor.initialCompressedBufferLength(chunkLength) + 4];
+    }
+
+    public String getPath()
+    {
+        return path;
+    }
+
+    public long getFilePointer()
+    {
+        return chunkStart + bufferOffset;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        buffer[bufferOffset++] = (byte) b;
+        if (bufferOffset == chunkLength)
+            writeChunk();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            int n = Math.min(len, chunkLength - bufferOffset);
+            System.arraycopy(b, off, buffer, bufferOffset, n);
+            bufferOffset += n;
+            off += n;
+            len -= n;
+            if (bufferOffset == chunkLength)
+                writeChunk();
+        }
+    }
+
+    private void writeChunk() throws IOException
+    {
+        int length = compressor.compress(buffer, 0, bufferOffset, compressed, 0);
+        checksum.reset();
+        checksum.update(compressed, 0, length);
+        int crc = (int) checksum.getValue();
+        compressed[length] = (byte) (crc >>> 24);
+        compressed[length + 1] = (byte) (crc >>> 16);
+        compressed[length + 2] = (byte) (crc >>> 8);
+        compressed[length + 3] = (byte) crc;
+
+        chunkOffsets.add(out.getFilePointer());
+        out.write(compressed, 0, length + 4);
+        chunkStart += bufferOffset;
+        bufferOffset = 0;
+    }
+
+    public FileMark mark()
+    {
+        return new Mark(getFilePointer());
+    }
+
+    public void reset(FileMark mark) throws IOException
+    {
+        long position = ((Mark) mark).position;
+        assert position <= getFilePointer();
+        if (position >= chunkStart)
+        {
+            bufferOffset = (int) (position - chunkStart);
+            return;
+        }
+
+        // the mark is in a chunk that was already written: read it back, and drop it and the following ones
+        int index = (int) (position / chunkLength);
+        long offset = chunkOffsets.get(index);
+        long next = index + 1 < chunkOffsets.size() ? chunkOffsets.get(index + 1) : out.getFilePointer();
+        int length = (int) (next - offset - 4);
+        out.seek(offset);
+        out.readFully(compressed, 0, length);
+        compressor.uncompress(compressed, 0, length, buffer, 0);
+
+        out.setLength(offset);
+        out.seek(offset);
+        while (chunkOffsets.size() > index)
+            chunkOffsets.remove(chunkOffsets.size() - 1);
+        chunkStart = (long) index * chunkLength;
+        bufferOffset = (int) (position - chunkStart);
+    }
+
+    /**
+     * Chunks are written as soon as they are full, and the last, partial one can only be written on close,
+     * so there is nothing to flush.
+     */
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (bufferOffset > 0)
+            writeChunk();
+        out.setLength(out.getFilePointer());
+        out.getFD().sync();
+        out.close();
+        CompressionMetadata.write(metadataPath, compressor, chunkLength, getFilePointer(), chunkOffsets);
+    }
+
+    public void writeBoolean(boolean v) throws IOException
+    {
+        stream.writeBoolean(v);
+    }
+
+    public void writeByte(int v) throws IOException
+    {
+        stream.writeByte(v);
+    }
+
+    public void writeShort(int v) throws IOException
+    {
+        stream.writeShort(v);
+    }
+
+    public void writeChar(int v) throws IOException
+    {
+        stream.writeChar(v);
+    }
+
+    public void writeInt(int v) throws IOException
+    {
+        stream.writeInt(v);
+    }
+
+    public void writeLong(long v) throws IOException
+    {
+        stream.writeLong(v);
+    }
+
+    public void writeFloat(float v) throws IOException
+    {
+        stream.writeFloat(v);
+    }
+
+    public void writeDouble(double v) throws IOException
+    {
+        stream.writeDouble(v);
+    }
+
+    public void writeBytes(String s) throws IOException
+    {
+        stream.writeBytes(s);
+    }
+
+    public void writeChars(String s) throws IOException
+    {
+        stream.writeChars(s);
+    }
+
+    public void writeUTF(String s) throws IOException
+    {
+        stream.writeUTF(s);
+    }
+
+    private static class Mark implements FileMark
+    {
+        final long position;
+
+        Mark(long position)
+        {
+            this.position = position;
+        }
+    }
+}
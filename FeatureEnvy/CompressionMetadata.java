@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.compress;
+
+import java.io.*;
+import java.util.List;
+
+import org.apache.cassandra.io.sstable.Descriptor;
+
+/**
+ * Describes the layout of a compressed data file: the compressor, the chunk length, the length of the
+ * uncompressed data and the offset of each chunk in the file. It is stored in its own component, written
+ * when the data file is closed.
+ *
+ * Every chunk holds chunkLength bytes of uncompressed data (except the last one, which may hold less) and
+ * is followed in the data file by the CRC32 of its compressed bytes.
+ */
+public class CompressionMetadata
+{
+    public static final String COMPONENT = "CompressionInfo.db";
+
+    public final ICompressor compressor;
+    public final int chunkLength;
+    public final long dataLength;
+    public final long compressedFileLength;
+    private final long[] chunkOffsets;
+
+    private CompressionMetadata(ICompressor compressor, int chunkLength, long dataLength, long compressedFileLength, long[] chunkOffsets)
+    {
+        this.compressor = compressor;
+        this.chunkLength = chunkLength;
+        this.dataLength = dataLength;
+        this.compressedFileLength = compressedFileLength;
+        this.chunkOffsets = chunkOffsets;
+    }
+
+    public static boolean isCompressed(Descriptor desc)
+    {
+        return new File(desc.filenameFor(COMPONENT)).exists();
+    }
+
+    /**
+     * Reads the metadata of the given compressed data file.
+     */
+    public static CompressionMetadata create(String dataFilePath) throws IOException
+    {
+        String path = Descriptor.fromFilename(dataFilePath).filenameFor(COMPONENT);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try
+        {
+            ICompressor compressor = CompressionParameters.createCompressor(in.readUTF());
+            int chunkLength = in.readInt();
+            long dataLength = in.readLong();
+            long[] chunkOffsets = new long[in.readInt()];
+            for (int i = 0; i < chunkOffsets.length; i++)
+                chunkOffsets[i] = in.readLong();
+            return new CompressionMetadata(compressor, chunkLength, dataLength, new File(dataFilePath).length(), chunkOffsets);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    public static void write(String path, ICompressor compressor, int chunkLength, long dataLength, List<Long> chunkOffsets) throws IOException
+    {
+        FileOutputStream fos = new FileOutputStream(path);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try
+        {
+            out.writeUTF(compressor.getClass().getName());
+            out.writeInt(chunkLength);
+            out.writeLong(dataLength);
+            out.writeInt(chunkOffsets.size());
+            for (long offset : chunkOffsets)
+                out.writeLong(offset);
+            out.flush();
+            fos.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the chunk holding the given uncompressed position
+     */
+    public Chunk chunkFor(long position) throws IOException
+    {
+        int index = (int) (position / chunkLength);
+        if (position < 0 || index >= chunkOffsets.length)
+            throw new EOFException("Position " + position + " is out of the " + dataLength + " bytes of data");
+        long next = index + 1 < chunkOffsets.length ? chunkOffsets[index + 1] : compressedFileLength;
+        return new Chunk(chunkOffsets[index], (int) (next - chunkOffsets[index] - 4));
+    }
+
+    public static class Chunk
+    {
+        public final long offset;
+        // length of the compressed data, not including the checksum that follows it
+        public final int length;
+
+        public Chunk(long offset, int length)
+        {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.compress;
+
+/**
+ * How the data file of an sstable is compressed.
+ */
+public class CompressionParameters
+{
+    public static final int DEFAULT_CHUNK_LENGTH = 65536;
+
+    public final ICompressor compressor;
+    public final int chunkLength;
+
+    public CompressionParameters(ICompressor compressor, int chunkLength)
+    {
+        assert chunkLength > 0;
+        this.compressor = compressor;
+        this.chunkLength = chunkLength;
+    }
+
+    /**
+     * Compressors are thread safe singletons, exposed through a static "instance" field.
+     * Unqualified class names are looked up in this package.
+     */
+    public static ICompressor createCompressor(String className)
+    {
+        String qualifiedName = className.contains(".") ? className : CompressionParameters.class.getPackage().getName() + "." + className;
+        try
+        {
+            return (ICompressor) Class.forName(qualifiedName).getField("instance").get(null);
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException("Unable to load compressor " + className, e);
+        }
+    }
+}
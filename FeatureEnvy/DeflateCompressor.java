@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.compress;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Slower than LZCompressor but compresses better; also the fallback when nothing else is configured.
+ */
+public class DeflateCompressor implements ICompressor
+{
+    public static final DeflateCompressor instance = new DeflateCompressor();
+
+    // Deflater and Inflater are not thread safe, and expensive to create
+    private final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>()
+    {
+        @Override
+        protected Deflater initialValue()
+        {
+            return new Deflater();
+        }
+    };
+    private final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>()
+    {
+        @Override
+        protected Inflater initialValue()
+        {
+            return new Inflater();
+        }
+    };
+
+    public int initialCompressedBufferLength(int chunkLength)
+    {
+        // same bound as zlib's compressBound, plus room for the stream header
+        return chunkLength + (chunkLength >> 12) + (chunkLength >> 14) + (chunkLength >> 25) + 64;
+    }
+
+    public int compress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws IOException
+    {
+        Deflater def = deflater.get();
+        def.reset();
+        def.setInput(input, inputOffset, inputLength);
+        def.finish();
+        int length = 0;
+        while (!def.finished())
+        {
+            if (outputOffset + length == output.length)
+                throw new IOException("Output buffer too small for " + inputLength + " bytes of input");
+            length += def.deflate(output, outputOffset + length, output.length - outputOffset - length);
+        }
+        return length;
+    }
+
+    public int uncompress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws IOException
+    {
+        Inflater inf = inflater.get();
+        inf.reset();
+        inf.setInput(input, inputOffset, inputLength);
+        try
+        {
+            int length = 0;
+            while (!inf.finished())
+            {
+                int n = inf.inflate(output, outputOffset + length, output.length - outputOffset - length);
+                // no progress: out of input or output space, or a preset dictionary we never use
+                if (n == 0 && !inf.finished())
+                    throw new IOException(inf.needsDictionary() ? "Deflate chunk requires a preset dictionary" : "Truncated or corrupted deflate chunk");
+                length += n;
+            }
+            return length;
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.cache;
+
+/**
+ * Approximate access frequencies of the keys of a cache: a count-min sketch of 4 rows of 4 bits counters,
+ * packed 16 to a long. All counters are halved every sampleSize increments, so that the frequencies reflect
+ * recent accesses (the "reset" of TinyLFU).
+ *
+ * Updates are not synchronized: a lost increment only makes an estimate a bit lower, which is fine for
+ * admission decisions.
+ */
+public class FrequencySketch
+{
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int[] SEEDS = { 0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f };
+
+    private final long[] table;
+    // number of longs of each row, a power of two
+    private final int rowLength;
+    private final int counterMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries the number of entries the cache is expected to hold
+     */
+    public FrequencySketch(int expectedEntries)
+    {
+        int counters = Integer.highestOneBit(Math.max(1024, Math.min(expectedEntries, 1 << 24)) - 1) << 1;
+        rowLength = counters / 16;
+        counterMask = counters - 1;
+        table = new long[rowLength * DEPTH];
+        sampleSize = 10 * counters;
+    }
+
+    public void increment(Object key)
+    {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++)
+        {
+            int index = index(hash, i);
+            int offset = offset(hash, i);
+            if (((table[index] >>> offset) & MAX_COUNT) < MAX_COUNT)
+            {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize)
+            reset();
+    }
+
+    /**
+     * @return the estimated number of recent accesses to the key, at most 15
+     */
+    public int frequency(Object key)
+    {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++)
+            frequency = Math.min(frequency, (int) ((table[index(hash, i)] >>> offset(hash, i)) & MAX_COUNT));
+        return frequency;
+    }
+
+    private void reset()
+    {
+        additions = 0;
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+
+    private int counter(int hash, int row)
+    {
+        int h = hash * SEEDS[row];
+        return (h ^ (h >>> 16)) & counterMask;
+    }
+
+    private int index(int hash, int row)
+    {
+        return row * rowLength + (counter(hash, row) >>> 4);
+    }
+
+    private int offset(int hash, int row)
+    {
+        return (counter(hash, row) & 15) << 2;
+    }
+
+    private static int spread(int hash)
+    {
+        hash ^= (hash >>> 17);
+        hash *= 0xed5ad4bb;
+        hash ^= (hash >>> 11);
+        return hash;
+    }
+}
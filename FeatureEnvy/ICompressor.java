@@ -0,0 +1,43 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.compress;
+
+import java.io.IOException;
+
+/**
+ * Compresses the chunks of a compressed data file. Implementations must be thread safe.
+ */
+public interface ICompressor
+{
+    /**
+     * @return the size of an output buffer that is large enough for compress() to never overflow it
+     * when given at most chunkLength bytes.
+     */
+    public int initialCompressedBufferLength(int chunkLength);
+
+    /**
+     * @return the number of bytes written to output
+     */
+    public int compress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws IOException;
+
+    /**
+     * @return the number of bytes written to output
+     */
+    public int uncompress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws IOException;
+}
@@ -0,0 +1,256 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.sstable;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.service.StorageService;
+
+/**
+ * Two approaches to building an IndexSummary:
+ * 1. Call maybeAddEntry with every potential index entry
+ * 2. Call shouldAddEntry, [addEntry,] incrementRowid
+ *
+ * The sampled keys are packed one after the other into a single direct buffer, outside of the heap, and found
+ * through an array of offsets into it; their positions in the index file are kept in an array of longs. So a
+ * summary is a handful of objects whatever the number of keys, and the KeyPositions of getIndexPositions() are
+ * only decoded when accessed. The buffer is released when the summary is collected.
+ */
+public class IndexSummary
+{
+    private static final Logger logger = LoggerFactory.getLogger(IndexSummary.class);
+
+    // room for the keys of the first entries; the buffer doubles whenever it is full until the summary completes
+    private static final int INITIAL_KEYS_SIZE = 4096;
+
+    private final int indexInterval;
+    private final IPartitioner partitioner;
+    private ByteBuffer keys;
+    // keyOffsets[i] is where the i-th key starts in keys, and the key ends where the next one starts
+    private int[] keyOffsets;
+    private long[] indexPositions;
+    private int entries;
+    private int keysWritten = 0;
+
+    public IndexSummary(long expectedKeys)
+    {
+        this(expectedKeys, DatabaseDescriptor.getIndexInterval(), StorageService.getPartitioner());
+    }
+
+    public IndexSummary(long expectedKeys, int indexInterval, IPartitioner partitioner)
+    {
+        long expectedEntries = expectedKeys / indexInterval;
+        if (expectedEntries > Integer.MAX_VALUE)
+            // TODO: that's a _lot_ of keys, or a very low interval
+            throw new RuntimeException("Cannot use index_interval of " + indexInterval + " with " + expectedKeys + " (expected) keys.");
+        this.indexInterval = indexInterval;
+        this.partitioner = partitioner;
+        keys = ByteBuffer.allocateDirect(INITIAL_KEYS_SIZE);
+        indexPositions = new long[Math.max(1, (int) expectedEntries)];
+        keyOffsets = new int[indexPositions.length + 1];
+    }
+
+    private IndexSummary(IndexSummary summary)
+    {
+        indexInterval = summary.indexInterval;
+        partitioner = summary.partitioner;
+        keys = summary.keys;
+        keyOffsets = summary.keyOffsets;
+        indexPositions = summary.indexPositions;
+        entries = summary.entries;
+        keysWritten = summary.keysWritten;
+    }
+
+    /**
+     * @return the sampling interval for the sstables of the given column family: the
+     * cassandra.index_interval.<keyspace>.<columnfamily> system property if set, index_interval otherwise.
+     * Sampling fewer keys shrinks the summary at the cost of scanning more of the index on each lookup.
+     */
+    public static int indexInterval(String ksname, String cfname)
+    {
+        int interval = DatabaseDescriptor.getIndexInterval();
+        Integer cfInterval = Integer.getInteger("cassandra.index_interval." + ksname + "." + cfname);
+        if (cfInterval == null)
+            return interval;
+        if (cfInterval < 1)
+        {
+            logger.warn("Ignoring index interval {} for {}/{}: it must be positive", new Object[]{ cfInterval, ksname, cfname });
+            return interval;
+        }
+        return cfInterval;
+    }
+
+    public void incrementRowid()
+    {
+        keysWritten++;
+    }
+
+    public boolean shouldAddEntry()
+    {
+        return keysWritten % indexInterval == 0;
+    }
+
+    public void addEntry(DecoratedKey decoratedKey, long indexPosition)
+    {
+        ByteBuffer key = decoratedKey.key;
+        int offset = keyOffsets[entries];
+        if (offset + key.remaining() > keys.capacity())
+            keys = copyOf(keys, offset, Math.max(2 * keys.capacity(), offset + key.remaining()));
+        ByteBuffer target = keys.duplicate();
+        target.position(offset);
+        target.put(key.duplicate());
+
+        if (entries == indexPositions.length)
+        {
+            indexPositions = Arrays.copyOf(indexPositions, Math.max(16, 2 * entries));
+            keyOffsets = Arrays.copyOf(keyOffsets, indexPositions.length + 1);
+        }
+        indexPositions[entries] = indexPosition;
+        keyOffsets[++entries] = offset + key.remaining();
+    }
+
+    public void maybeAddEntry(DecoratedKey decoratedKey, long indexPosition)
+    {
+        if (shouldAddEntry())
+            addEntry(decoratedKey, indexPosition);
+        incrementRowid();
+    }
+
+    /**
+     * @return the sampled keys and their positions in the index file, in key order. The list is a view of
+     * this summary: its elements are decoded on every access, so callers going through them more than once
+     * should keep them.
+     */
+    public List<KeyPosition> getIndexPositions()
+    {
+        return new Positions();
+    }
+
+    public int getIndexInterval()
+    {
+        return indexInterval;
+    }
+
+    /**
+     * @return the native memory holding the sampled keys
+     */
+    public long offHeapSize()
+    {
+        return keys.capacity();
+    }
+
+    public void complete()
+    {
+        keys = copyOf(keys, keyOffsets[entries], keyOffsets[entries]);
+        indexPositions = Arrays.copyOf(indexPositions, entries);
+        keyOffsets = Arrays.copyOf(keyOffsets, entries + 1);
+    }
+
+    /**
+     * @return a completed summary of the entries added so far, which later entries won't be added to
+     */
+    IndexSummary completedCopy()
+    {
+        IndexSummary copy = new IndexSummary(this);
+        // copies the buffer and arrays, leaving the ones of this summary to be appended to
+        copy.complete();
+        return copy;
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer buffer, int length, int capacity)
+    {
+        ByteBuffer source = buffer.duplicate();
+        source.position(0).limit(length);
+        ByteBuffer copy = ByteBuffer.allocateDirect(capacity);
+        copy.put(source);
+        return copy;
+    }
+
+    private ByteBuffer key(int index)
+    {
+        ByteBuffer key = keys.duplicate();
+        key.limit(keyOffsets[index + 1]).position(keyOffsets[index]);
+        return key.slice();
+    }
+
+    private class Positions extends AbstractList<KeyPosition> implements RandomAccess
+    {
+        public KeyPosition get(int index)
+        {
+            if (index < 0 || index >= entries)
+                throw new IndexOutOfBoundsException("Index " + index + " of " + entries + " entries");
+            return new KeyPosition(partitioner.decorateKey(key(index)), indexPositions[index]);
+        }
+
+        public int size()
+        {
+            return entries;
+        }
+    }
+
+    /**
+     * This is a special kind of IndexEntry (XXX: rename) that is used for sampled keys.
+     */
+    public static final class KeyPosition implements Comparable<KeyPosition>
+    {
+        public final DecoratedKey key;
+        public final long indexPosition;
+
+        public KeyPosition(DecoratedKey key, long indexPosition)
+        {
+            this.key = key;
+            this.indexPosition = indexPosition;
+        }
+
+        public int compareTo(KeyPosition kp)
+        {
+            return key.compareTo(kp.key);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof KeyPosition))
+                return false;
+            KeyPosition that = (KeyPosition) obj;
+            return key.equals(that.key) && indexPosition == that.indexPosition;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return key.hashCode() + (int) (indexPosition ^ (indexPosition >>> 32));
+        }
+
+        public String toString()
+        {
+            return key + ":" + indexPosition;
+        }
+    }
+}
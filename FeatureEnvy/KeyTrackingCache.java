@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.cache;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers the keys added to a cache since they were last drained, for incremental saves. At most maxTracked
+ * keys are remembered between two drains: past that, an incremental save would be about as large as a full one,
+ * so tracking stops until the next drain, which then asks for a full save.
+ */
+public class KeyTrackingCache<K, V> implements ICache<K, V>
+{
+    private final ICache<K, V> cache;
+    private final int maxTracked;
+    private volatile Added<K> added = new Added<K>();
+
+    public KeyTrackingCache(ICache<K, V> cache, int maxTracked)
+    {
+        this.cache = cache;
+        this.maxTracked = maxTracked;
+    }
+
+    private void track(K key)
+    {
+        Added<K> current = added;
+        if (current.count.get() >= maxTracked)
+            return;
+        if (current.keys.add(key))
+            current.count.incrementAndGet();
+    }
+
+    /**
+     * @return the keys added since the last call that are still in the cache, or null if there were too many
+     * to track them all
+     */
+    public Set<K> drainAddedKeys()
+    {
+        Added<K> drained = added;
+        added = new Added<K>();
+        if (drained.count.get() >= maxTracked)
+            return null;
+        Set<K> keys = new HashSet<K>(drained.count.get());
+        for (K key : drained.keys)
+        {
+            if (cache.containsKey(key))
+                keys.add(key);
+        }
+        return keys;
+    }
+
+    public long capacity()
+    {
+        return cache.capacity();
+    }
+
+    public void setCapacity(long capacity)
+    {
+        cache.setCapacity(capacity);
+    }
+
+    public void put(K key, V value)
+    {
+        cache.put(key, value);
+        track(key);
+    }
+
+    public boolean putIfAbsent(K key, V value)
+    {
+        if (!cache.putIfAbsent(key, value))
+            return false;
+        track(key);
+        return true;
+    }
+
+    public boolean replace(K key, V old, V value)
+    {
+        return cache.replace(key, old, value);
+    }
+
+    public V get(K key)
+    {
+        return cache.get(key);
+    }
+
+    public void remove(K key)
+    {
+        cache.remove(key);
+    }
+
+    public int size()
+    {
+        return cache.size();
+    }
+
+    public long weightedSize()
+    {
+        return cache.weightedSize();
+    }
+
+    public void clear()
+    {
+        cache.clear();
+        added = new Added<K>();
+    }
+
+    public Set<K> keySet()
+    {
+        return cache.keySet();
+    }
+
+    public Set<K> hotKeySet(int n)
+    {
+        return cache.hotKeySet(n);
+    }
+
+    public boolean containsKey(K key)
+    {
+        return cache.containsKey(key);
+    }
+
+    public boolean isPutCopying()
+    {
+        return cache.isPutCopying();
+    }
+
+    private static class Added<K>
+    {
+        final Set<K> keys = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+        final AtomicInteger count = new AtomicInteger();
+    }
+}
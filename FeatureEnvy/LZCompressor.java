@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.compress;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A fast LZ77 compressor using the sequence layout of LZ4 blocks: each sequence is a token holding the
+ * literal and match lengths (extended by 255-valued bytes when they don't fit in 4 bits), the literals,
+ * and the 2 bytes offset of the match. The last sequence only has literals.
+ *
+ * Matches are found with a single-probe hash table, which favours speed over ratio; use DeflateCompressor
+ * for better compression.
+ */
+public class LZCompressor implements ICompressor
+{
+    public static final LZCompressor instance = new LZCompressor();
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    // the last bytes of the input are always literals, so a match never runs to the very end
+    private static final int LAST_LITERALS = 5;
+    private static final int RUN_MASK = 15;
+    private static final int HASH_LOG = 12;
+
+    private final ThreadLocal<int[]> hashTable = new ThreadLocal<int[]>()
+    {
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[1 << HASH_LOG];
+        }
+    };
+
+    public int initialCompressedBufferLength(int chunkLength)
+    {
+        // incompressible input costs a token and one length byte per 255 literals
+        return chunkLength + chunkLength / 255 + 16;
+    }
+
+    public int compress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws IOException
+    {
+        int[] table = hashTable.get();
+        Arrays.fill(table, -1);
+
+        int end = inputOffset + inputLength;
+        int matchLimit = end - LAST_LITERALS;
+        int anchor = inputOffset;
+        int ip = inputOffset;
+        int op = outputOffset;
+        while (ip + MIN_MATCH <= matchLimit)
+        {
+            int sequence = readInt(input, ip);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            int ref = table[hash];
+            table[hash] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(input, ref) != sequence)
+            {
+                ip++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && input[ref + matchLength] == input[ip + matchLength])
+                matchLength++;
+
+            int literalLength = ip - anchor;
+            int matchCode = matchLength - MIN_MATCH;
+            output[op++] = (byte) ((Math.min(literalLength, RUN_MASK) << 4) | Math.min(matchCode, RUN_MASK));
+            op = writeLiterals(input, anchor, literalLength, output, op);
+            output[op++] = (byte) (ip - ref);
+            output[op++] = (byte) ((ip - ref) >>> 8);
+            if (matchCode >= RUN_MASK)
+                op = writeLength(matchCode - RUN_MASK, output, op);
+
+            ip += matchLength;
+            anchor = ip;
+        }
+
+        int literalLength = end - anchor;
+        output[op++] = (byte) (Math.min(literalLength, RUN_MASK) << 4);
+        op = writeLiterals(input, anchor, literalLength, output, op);
+        return op - outputOffset;
+    }
+
+    public int uncompress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws IOException
+    {
+        int end = inputOffset + inputLength;
+        int ip = inputOffset;
+        int op = outputOffset;
+        try
+        {
+            while (true)
+            {
+                int token = input[ip++] & 0xFF;
+
+                int literalLength = token >>> 4;
+                if (literalLength == RUN_MASK)
+                {
+                    int b;
+                    do
+                    {
+                        b = input[ip++] & 0xFF;
+                        literalLength += b;
+                    }
+                    while (b == 255);
+                }
+                if (ip + literalLength > end || op + literalLength > output.length)
+                    throw new IOException("Corrupted chunk: literals out of bounds");
+                System.arraycopy(input, ip, output, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+                if (ip == end)
+                    return op - outputOffset;
+
+                int offset = (input[ip++] & 0xFF) | ((input[ip++] & 0xFF) << 8);
+                int matchLength = token & RUN_MASK;
+                if (matchLength == RUN_MASK)
+                {
+                    int b;
+                    do
+                    {
+                        b = input[ip++] & 0xFF;
+                        matchLength += b;
+                    }
+                    while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < outputOffset || op + matchLength > output.length)
+                    throw new IOException("Corrupted chunk: match out of bounds");
+                // the match may overlap the bytes being written, so copy byte by byte
+                for (int i = 0; i < matchLength; i++)
+                    output[op + i] = output[ref + i];
+                op += matchLength;
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e)
+        {
+            throw new IOException("Corrupted chunk: truncated input", e);
+        }
+    }
+
+    private static int writeLiterals(byte[] input, int offset, int length, byte[] output, int op)
+    {
+        if (length >= RUN_MASK)
+            op = writeLength(length - RUN_MASK, output, op);
+        System.arraycopy(input, offset, output, op, length);
+        return op + length;
+    }
+
+    private static int writeLength(int length, byte[] output, int op)
+    {
+        while (length >= 255)
+        {
+            output[op++] = (byte) 255;
+            length -= 255;
+        }
+        output[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] bytes, int offset)
+    {
+        return (bytes[offset] & 0xFF)
+               | (bytes[offset + 1] & 0xFF) << 8
+               | (bytes[offset + 2] & 0xFF) << 16
+               | (bytes[offset + 3] & 0xFF) << 24;
+    }
+}
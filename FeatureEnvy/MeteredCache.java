@@ -0,0 +1,307 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.cache;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.utils.EstimatedHistogram;
+
+/**
+ * Records the latencies of the gets and puts of a cache, the sizes of the entries put, the evictions and the
+ * hit rate over 1, 5 and 15 minutes exponentially decaying windows. Recording only updates atomic counters
+ * and histogram buckets, so it doesn't allocate.
+ *
+ * The time taken to read a missed row and populate the cache is only known by the caller, which reports it
+ * through addReadThroughLatency().
+ *
+ * tick() must be called every TICK_INTERVAL seconds to update the decaying rates.
+ */
+public class MeteredCache<K, V> implements ICache<K, V>
+{
+    public static final int TICK_INTERVAL = 5;
+
+    public interface EntrySizer<K, V>
+    {
+        /**
+         * @return the size of the entry, or a negative value if it shouldn't be recorded
+         */
+        public long sizeOf(K key, V value);
+    }
+
+    private final ICache<K, V> cache;
+    private final EntrySizer<K, V> sizer;
+
+    private final EstimatedHistogram getLatency = new EstimatedHistogram();
+    private final EstimatedHistogram putLatency = new EstimatedHistogram();
+    private final EstimatedHistogram readThroughLatency = new EstimatedHistogram();
+    private final EstimatedHistogram entrySizes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    // entries that made it into the cache and entries explicitly removed, from which the evictions are deduced
+    private final AtomicLong insertions = new AtomicLong();
+    private final AtomicLong removals = new AtomicLong();
+    // the highest eviction count returned: concurrent puts and removals of a key can make the estimate go back
+    private final AtomicLong evictions = new AtomicLong();
+    private long lastEvictions;
+
+    private final Rate[] hitRates = { new Rate(1), new Rate(5), new Rate(15) };
+    private final Rate[] requestRates = { new Rate(1), new Rate(5), new Rate(15) };
+    private final Rate evictionRate = new Rate(1);
+
+    public MeteredCache(ICache<K, V> cache, EntrySizer<K, V> sizer)
+    {
+        this(cache, sizer, new EstimatedHistogram());
+    }
+
+    /**
+     * @param entrySizes the histogram of the entry sizes, which a cache that already computes the size of its
+     * entries can fill itself, in which case sizer is null
+     */
+    public MeteredCache(ICache<K, V> cache, EntrySizer<K, V> sizer, EstimatedHistogram entrySizes)
+    {
+        this.cache = cache;
+        this.sizer = sizer;
+        this.entrySizes = entrySizes;
+    }
+
+    /**
+     * Updates the decaying rates with the counts of the last TICK_INTERVAL seconds.
+     */
+    public synchronized void tick()
+    {
+        long hitCount = hits.getAndSet(0);
+        long requestCount = requests.getAndSet(0);
+        for (int i = 0; i < hitRates.length; i++)
+        {
+            hitRates[i].tick(hitCount);
+            requestRates[i].tick(requestCount);
+        }
+        long evictions = getEvictions();
+        evictionRate.tick(evictions - lastEvictions);
+        lastEvictions = evictions;
+    }
+
+    /**
+     * @return the hit rate over the last 1, 5 and 15 minutes
+     */
+    public double[] getHitRates()
+    {
+        double[] rates = new double[hitRates.length];
+        for (int i = 0; i < rates.length; i++)
+        {
+            double requestRate = requestRates[i].perSecond();
+            rates[i] = requestRate == 0 ? Double.NaN : hitRates[i].perSecond() / requestRate;
+        }
+        return rates;
+    }
+
+    public long getEvictions()
+    {
+        long estimate = insertions.get() - removals.get() - cache.size();
+        while (true)
+        {
+            long reported = evictions.get();
+            if (estimate <= reported)
+                return reported;
+            if (evictions.compareAndSet(reported, estimate))
+                return estimate;
+        }
+    }
+
+    /**
+     * @return the evictions per second over the last minute
+     */
+    public double getEvictionsPerSecond()
+    {
+        return evictionRate.perSecond();
+    }
+
+    public long[] getGetLatencyHistogramMicros()
+    {
+        return getLatency.getBuckets(false);
+    }
+
+    public long[] getPutLatencyHistogramMicros()
+    {
+        return putLatency.getBuckets(false);
+    }
+
+    public long[] getEntrySizeHistogram()
+    {
+        return entrySizes.getBuckets(false);
+    }
+
+    /**
+     * Records the time taken by a miss to read the value and put it in the cache.
+     */
+    public void addReadThroughLatency(long nanos)
+    {
+        readThroughLatency.add(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public long[] getReadThroughLatencyHistogramMicros()
+    {
+        return readThroughLatency.getBuckets(false);
+    }
+
+    private void recordPut(K key, V value, long start)
+    {
+        putLatency.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        if (sizer != null)
+        {
+            long size = sizer.sizeOf(key, value);
+            if (size >= 0)
+                entrySizes.add(size);
+        }
+    }
+
+    public long capacity()
+    {
+        return cache.capacity();
+    }
+
+    public void setCapacity(long capacity)
+    {
+        cache.setCapacity(capacity);
+    }
+
+    public void put(K key, V value)
+    {
+        long start = System.nanoTime();
+        // an entry the cache refuses, from admission control or because it is too large, is counted as
+        // inserted and then evicted
+        if (!cache.containsKey(key))
+            insertions.incrementAndGet();
+        cache.put(key, value);
+        recordPut(key, value, start);
+    }
+
+    public boolean putIfAbsent(K key, V value)
+    {
+        long start = System.nanoTime();
+        boolean added = cache.putIfAbsent(key, value);
+        if (added)
+        {
+            insertions.incrementAndGet();
+            recordPut(key, value, start);
+        }
+        return added;
+    }
+
+    public boolean replace(K key, V old, V value)
+    {
+        long start = System.nanoTime();
+        boolean replaced = cache.replace(key, old, value);
+        if (replaced)
+            recordPut(key, value, start);
+        return replaced;
+    }
+
+    public V get(K key)
+    {
+        long start = System.nanoTime();
+        V value = cache.get(key);
+        getLatency.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        requests.incrementAndGet();
+        if (value != null)
+            hits.incrementAndGet();
+        return value;
+    }
+
+    public void remove(K key)
+    {
+        if (!cache.containsKey(key))
+            return;
+        cache.remove(key);
+        removals.incrementAndGet();
+    }
+
+    /**
+     * Counts entries removed from the underlying cache without going through this one, so that they
+     * aren't taken for evictions.
+     */
+    public void addRemovals(long count)
+    {
+        removals.addAndGet(count);
+    }
+
+    public int size()
+    {
+        return cache.size();
+    }
+
+    public long weightedSize()
+    {
+        return cache.weightedSize();
+    }
+
+    public void clear()
+    {
+        removals.addAndGet(cache.size());
+        cache.clear();
+    }
+
+    public Set<K> keySet()
+    {
+        return cache.keySet();
+    }
+
+    public Set<K> hotKeySet(int n)
+    {
+        return cache.hotKeySet(n);
+    }
+
+    public boolean containsKey(K key)
+    {
+        return cache.containsKey(key);
+    }
+
+    public boolean isPutCopying()
+    {
+        return cache.isPutCopying();
+    }
+
+    /**
+     * Exponentially weighted moving average of a rate, as in the load average of unix.
+     */
+    private static class Rate
+    {
+        private final double alpha;
+        private volatile double rate = -1;
+
+        Rate(int minutes)
+        {
+            alpha = 1 - Math.exp(-TICK_INTERVAL / 60.0 / minutes);
+        }
+
+        void tick(long count)
+        {
+            double instantRate = (double) count / TICK_INTERVAL;
+            rate = rate < 0 ? instantRate : rate + alpha * (instantRate - rate);
+        }
+
+        double perSecond()
+        {
+            return Math.max(0, rate);
+        }
+    }
+}
@@ -26,12 +26,23 @@ import java.lang.management.MemoryUsage;
 import java.lang.management.RuntimeMXBean;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Formatter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
 import javax.management.JMX;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
@@ -41,8 +52,10 @@ import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
 import org.apache.cassandra.concurrent.IExecutorMBean;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.db.ColumnFamilyStoreMBean;
 import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.locator.RingSummary;
 import org.apache.cassandra.net.EndPoint;
 import org.apache.cassandra.service.StorageServiceMBean;
 import org.apache.commons.cli.CommandLine;
@@ -60,6 +73,11 @@ public class NodeProbe
 {
     private static final String fmtUrl = "service:jmx:rmi:///jndi/rmi://%s:%d/jmxrmi";
     private static final String ssObjName = "org.apache.cassandra.service:type=StorageService";
+    private static final String ringObjName = "org.apache.cassandra.locator:type=RingSummary";
+    private static final String cfsQuery = "org.apache.cassandra.db:type=ColumnFamilyStores,*";
+    private static final String cacheObjName = "org.apache.cassandra.db:type=Caches,keyspace=%s,cache=%s%s";
+    // number of getAttributes() calls kept in flight when fetching stats in bulk
+    private static final int fetchThreads = Integer.getInteger("cassandra.nodetool.jmx_fetch_threads", 8);
     private static final String HOST_OPTION = "host";
     private static final String PORT_OPTION = "port";
     private static final int defaultPort = 8080;
@@ -268,6 +286,56 @@ public class NodeProbe
     }
 
 
+    /**
+     * Retrieve the ring in packed form with a single JMX call. Nodes that don't serve the RingSummary
+     * MBean yet get it built from getRangeToEndpointMap() instead, without loads nor ownership.
+     *
+     * @return the ring, in range order
+     */
+    public RingSummary getRingSummary()
+    {
+        try
+        {
+            return (RingSummary) mbeanServerConn.getAttribute(new ObjectName(ringObjName), "RingSummary");
+        }
+        catch (InstanceNotFoundException e)
+        {
+            // older node
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException("Could not retrieve the ring.", e);
+        }
+
+        Map<Range, List<EndPoint>> rangeMap = getRangeToEndpointMap();
+        List<Range> ranges = new ArrayList<Range>(rangeMap.keySet());
+        Collections.sort(ranges);
+
+        String[] tokens = new String[ranges.size()];
+        int[] owners = new int[tokens.length];
+        int[] replicaCounts = new int[tokens.length];
+        Map<String, Integer> endPointIndex = new HashMap<String, Integer>();
+        List<String> endPoints = new ArrayList<String>();
+        for (int i = 0; i < tokens.length; i++)
+        {
+            List<EndPoint> endpoints = rangeMap.get(ranges.get(i));
+            String host = endpoints.get(0).getHost();
+            Integer index = endPointIndex.get(host);
+            if (index == null)
+            {
+                index = endPoints.size();
+                endPointIndex.put(host, index);
+                endPoints.add(host);
+            }
+            tokens[i] = ranges.get(i).right().toString();
+            owners[i] = index;
+            replicaCounts[i] = endpoints.size();
+        }
+        double[] loads = new double[endPoints.size()];
+        Arrays.fill(loads, Double.NaN);
+        return new RingSummary(null, tokens, owners, replicaCounts, null, endPoints.toArray(new String[endPoints.size()]), loads);
+    }
+
     /**
      * Write a textual representation of the Cassandra ring.
      * 
@@ -275,53 +343,59 @@ public class NodeProbe
      */
     public void printRing(PrintStream outs)
     {
-        Map<Range, List<EndPoint>> rangeMap = getRangeToEndpointMap();
-        List<Range> ranges = new ArrayList<Range>(rangeMap.keySet());
-        Collections.sort(ranges);
-        
-        // Print range-to-endpoint mapping
-        int counter = 0;
-        outs.print(String.format("%-46s ", "Starting Token"));
-        outs.print(String.format("%-44s ", "Ending Token"));
-        outs.print(String.format("%-4s ", "Size"));
-        outs.print(String.format("%-15s", "Address"));
-        outs.println("Ring");
-        for (Range range : ranges) {
-            List<EndPoint> endpoints = rangeMap.get(range);
-            
-            outs.print(String.format("%-46s ", range.left()));
-            outs.print(String.format("%-46s ", range.right()));
-            outs.print(String.format("%2d ", endpoints.size()));
-            outs.print(String.format("%-15s", endpoints.get(0).getHost()));
-            
+        RingSummary ring = getRingSummary();
+        float[] ownership = ring.ownership;
+        String[] loads = new String[ring.endPoints.length];
+        for (int i = 0; i < loads.length; i++)
+            loads[i] = Double.isNaN(ring.loads[i]) ? "?" : stringifyFileSize(ring.loads[i]);
+
+        // rows are formatted into one reused buffer and written out in batches, rather than
+        // formatting each field into its own string
+        StringBuilder buffer = new StringBuilder();
+        Formatter formatter = new Formatter(buffer);
+        String format = ownership == null ? "%-46s %-46s %2d %-15s%-8s%-10s%s%n" : "%-46s %-46s %2d %-15s%6.2f%% %-10s%s%n";
+        formatter.format("%-46s %-44s %-4s %-15s%-8s%-10s%s%n", "Starting Token", "Ending Token", "Size", "Address", "Owns", "Load", "Ring");
+
+        int size = ring.tokens.length;
+        for (int i = 0; i < size; i++)
+        {
             String asciiRingArt;
-            if (counter == 0)
-            {
+            if (i == 0)
                 asciiRingArt = "|<--|";
-            }
-            else if (counter == (rangeMap.size() - 1))
-            {
+            else if (i == size - 1)
                 asciiRingArt = "|-->|";
-            }
+            else if (size > 4)
+                asciiRingArt = i % 2 == 0 ? "v   |" : "|   ^";
             else
+                asciiRingArt = "|   |";
+
+            formatter.format(format,
+                             ring.tokens[i == 0 ? size - 1 : i - 1],
+                             ring.tokens[i],
+                             ring.replicaCounts[i],
+                             ring.endPoints[ring.owners[i]],
+                             ownership == null ? "?" : ownership[i] * 100,
+                             loads[ring.owners[i]],
+                             asciiRingArt);
+            if (buffer.length() >= 64 * 1024)
             {
-                if ((rangeMap.size() > 4) && ((counter % 2) == 0))
-                {
-                    asciiRingArt = "v   |";
-                }
-                else if ((rangeMap.size() > 4) && ((counter % 2) != 0))
-                {
-                    asciiRingArt = "|   ^";
-                }
-                else
-                {
-                    asciiRingArt = "|   |";
-                }
+                outs.print(buffer);
+                buffer.setLength(0);
             }
-            outs.println(asciiRingArt);
-            
-            counter++;
         }
+        outs.print(buffer);
+        outs.flush();
+    }
+
+    private static String stringifyFileSize(double bytes)
+    {
+        if (bytes >= 1024L * 1024 * 1024)
+            return String.format("%.2f GB", bytes / (1024L * 1024 * 1024));
+        if (bytes >= 1024 * 1024)
+            return String.format("%.2f MB", bytes / (1024 * 1024));
+        if (bytes >= 1024)
+            return String.format("%.2f KB", bytes / 1024);
+        return String.format("%.0f bytes", bytes);
     }
     
     public void printColumnFamilyStats(PrintStream outs) {
@@ -407,6 +481,133 @@ public class NodeProbe
         
     }
 
+    /**
+     * Fetch the statistics of every column family store along with its key and row caches. Rather than
+     * one round trip per getter, each MBean is read with a single getAttributes() call, and those calls
+     * are issued concurrently, so the cost is a few round trips whatever the number of column families.
+     *
+     * @return immutable statistics by keyspace, each list sorted by column family name
+     */
+    public Map<String, List<ColumnFamilyStats>> getColumnFamilyStats()
+    {
+        Set<ObjectName> stores;
+        try
+        {
+            stores = mbeanServerConn.queryNames(new ObjectName(cfsQuery), null);
+        }
+        catch (MalformedObjectNameException e)
+        {
+            throw new RuntimeException("Invalid ObjectName? Please report this as a bug.", e);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not retrieve list of stat mbeans.", e);
+        }
+
+        Map<String, List<ColumnFamilyStats>> stats = new TreeMap<String, List<ColumnFamilyStats>>();
+        if (stores.isEmpty())
+            return stats;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(fetchThreads, 3 * stores.size())),
+                                                                new NamedThreadFactory("JMXFetch"));
+        try
+        {
+            List<ObjectName> names = new ArrayList<ObjectName>(stores);
+            List<Future<AttributeList>> storeFutures = new ArrayList<Future<AttributeList>>(names.size());
+            List<Future<AttributeList>> keyCacheFutures = new ArrayList<Future<AttributeList>>(names.size());
+            List<Future<AttributeList>> rowCacheFutures = new ArrayList<Future<AttributeList>>(names.size());
+            for (ObjectName name : names)
+            {
+                String keyspace = name.getKeyProperty("keyspace");
+                String columnFamily = name.getKeyProperty("columnfamily");
+                storeFutures.add(executor.submit(fetchAttributes(name, ColumnFamilyStats.STORE_ATTRIBUTES)));
+                keyCacheFutures.add(executor.submit(fetchAttributes(cacheName(keyspace, columnFamily, "KeyCache"), ColumnFamilyStats.CACHE_ATTRIBUTES)));
+                rowCacheFutures.add(executor.submit(fetchAttributes(cacheName(keyspace, columnFamily, "RowCache"), ColumnFamilyStats.CACHE_ATTRIBUTES)));
+            }
+
+            for (int i = 0; i < names.size(); i++)
+            {
+                AttributeList store = storeFutures.get(i).get();
+                // the column family was dropped after we listed it
+                if (store == null)
+                    continue;
+
+                String keyspace = names.get(i).getKeyProperty("keyspace");
+                ColumnFamilyStats cfStats = new ColumnFamilyStats(keyspace,
+                                                                  names.get(i).getKeyProperty("columnfamily"),
+                                                                  store,
+                                                                  keyCacheFutures.get(i).get(),
+                                                                  rowCacheFutures.get(i).get());
+                List<ColumnFamilyStats> columnFamilies = stats.get(keyspace);
+                if (columnFamilies == null)
+                {
+                    columnFamilies = new ArrayList<ColumnFamilyStats>();
+                    stats.put(keyspace, columnFamilies);
+                }
+                columnFamilies.add(cfStats);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new AssertionError(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException("Could not retrieve column family stats.", e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        for (Map.Entry<String, List<ColumnFamilyStats>> entry : stats.entrySet())
+        {
+            Collections.sort(entry.getValue(), new Comparator<ColumnFamilyStats>()
+            {
+                public int compare(ColumnFamilyStats o1, ColumnFamilyStats o2)
+                {
+                    return o1.columnFamily.compareTo(o2.columnFamily);
+                }
+            });
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
+    private static ObjectName cacheName(String keyspace, String columnFamily, String cacheType)
+    {
+        try
+        {
+            return new ObjectName(String.format(cacheObjName, keyspace, columnFamily, cacheType));
+        }
+        catch (MalformedObjectNameException e)
+        {
+            throw new RuntimeException("Invalid ObjectName? Please report this as a bug.", e);
+        }
+    }
+
+    /**
+     * @return a task reading the given attributes of an MBean in one round trip, or null if the MBean
+     * is not registered (a cache that was never created, or a column family dropped meanwhile)
+     */
+    private Callable<AttributeList> fetchAttributes(final ObjectName name, final String[] attributes)
+    {
+        return new Callable<AttributeList>()
+        {
+            public AttributeList call() throws Exception
+            {
+                try
+                {
+                    return mbeanServerConn.getAttributes(name, attributes);
+                }
+                catch (InstanceNotFoundException e)
+                {
+                    return null;
+                }
+            }
+        };
+    }
+
     /**
      * Write a list of nodes with corresponding status.
      * 
@@ -0,0 +1,300 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOError;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.io.util.DataOutputBuffer;
+import org.apache.cassandra.net.MessagingService;
+import org.apache.cassandra.utils.EstimatedHistogram;
+
+/**
+ * Row cache keeping serialized rows in native memory slots of a SlabAllocator, indexed by an on-heap
+ * ConcurrentLinkedHashMap weighted by the slot sizes. Every get deserializes a copy of the row.
+ *
+ * Entries are reference counted, so that a slot evicted while being read is only freed once the read is done.
+ */
+public class OffHeapRowCache implements IEvictionOrderedCache<RowCacheKey, IRowCacheEntry>
+{
+    private static final int DEFAULT_CONCURENCY_LEVEL = 64;
+    private static final int PAGE_SIZE = Integer.getInteger("cassandra.off_heap_row_cache_page_size_in_kb", 1024) * 1024;
+
+    private final SlabAllocator allocator = new SlabAllocator(PAGE_SIZE);
+    private final ConcurrentLinkedHashMap<RowCacheKey, Entry> map;
+    private volatile EstimatedHistogram entrySizes;
+
+    public OffHeapRowCache(long capacity)
+    {
+        EvictionListener<RowCacheKey, Entry> listener = new EvictionListener<RowCacheKey, Entry>()
+        {
+            public void onEviction(RowCacheKey key, Entry entry)
+            {
+                entry.unreference();
+            }
+        };
+        map = new ConcurrentLinkedHashMap.Builder<RowCacheKey, Entry>()
+              .weigher(new Weigher<Entry>()
+              {
+                  public int weightOf(Entry entry)
+                  {
+                      return entry.slot.capacity;
+                  }
+              })
+              .maximumWeightedCapacity(capacity)
+              .concurrencyLevel(DEFAULT_CONCURENCY_LEVEL)
+              .listener(listener)
+              .build();
+    }
+
+    public long capacity()
+    {
+        return map.capacity();
+    }
+
+    public void setCapacity(long capacity)
+    {
+        map.setCapacity(capacity);
+    }
+
+    public int size()
+    {
+        return map.size();
+    }
+
+    public long weightedSize()
+    {
+        return map.weightedSize();
+    }
+
+    /**
+     * Adds the serialized size of every row put from now on to the given histogram.
+     */
+    public void recordEntrySizes(EstimatedHistogram histogram)
+    {
+        entrySizes = histogram;
+    }
+
+    /**
+     * @return the native memory held by the cache, including the slots that are free
+     */
+    public long allocatedSize()
+    {
+        return allocator.allocated();
+    }
+
+    public IRowCacheEntry get(RowCacheKey key)
+    {
+        Entry entry = map.get(key);
+        if (entry == null || !entry.reference())
+            return null;
+        try
+        {
+            return entry.deserialize();
+        }
+        finally
+        {
+            entry.unreference();
+        }
+    }
+
+    public void put(RowCacheKey key, IRowCacheEntry value)
+    {
+        Entry entry = serialize(value);
+        if (entry == null)
+            return;
+        Entry old = map.put(key, entry);
+        if (old != null)
+            old.unreference();
+    }
+
+    public boolean putIfAbsent(RowCacheKey key, IRowCacheEntry value)
+    {
+        Entry entry = serialize(value);
+        if (entry == null)
+            return false;
+        if (map.putIfAbsent(key, entry) == null)
+            return true;
+        entry.unreference();
+        return false;
+    }
+
+    public boolean replace(RowCacheKey key, IRowCacheEntry oldValue, IRowCacheEntry value)
+    {
+        Entry old = map.get(key);
+        if (old == null || !old.reference())
+            return false;
+        try
+        {
+            if (!old.deserialize().equals(oldValue))
+                return false;
+        }
+        finally
+        {
+            old.unreference();
+        }
+
+        Entry entry = serialize(value);
+        if (entry == null)
+        {
+            // can't be cached: at least don't leave the old value behind
+            remove(key);
+            return false;
+        }
+        if (map.replace(key, old, entry))
+        {
+            old.unreference();
+            return true;
+        }
+        entry.unreference();
+        return false;
+    }
+
+    public void remove(RowCacheKey key)
+    {
+        Entry entry = map.remove(key);
+        if (entry != null)
+            entry.unreference();
+    }
+
+    public void clear()
+    {
+        for (RowCacheKey key : map.keySet())
+            remove(key);
+    }
+
+    public Set<RowCacheKey> keySet()
+    {
+        return map.keySet();
+    }
+
+    public Set<RowCacheKey> hotKeySet(int n)
+    {
+        return map.descendingKeySetWithLimit(n);
+    }
+
+    public RowCacheKey nextVictim()
+    {
+        Iterator<RowCacheKey> coldest = map.ascendingKeySetWithLimit(1).iterator();
+        return coldest.hasNext() ? coldest.next() : null;
+    }
+
+    public boolean containsKey(RowCacheKey key)
+    {
+        return map.containsKey(key);
+    }
+
+    public boolean isPutCopying()
+    {
+        return true;
+    }
+
+    /**
+     * @return the value serialized into a new slot, or null if it is too large to be cached
+     */
+    private Entry serialize(IRowCacheEntry value)
+    {
+        DataOutputBuffer out = new DataOutputBuffer();
+        boolean isSentinel = value instanceof RowCacheSentinel;
+        try
+        {
+            out.writeBoolean(isSentinel);
+            if (isSentinel)
+                out.writeLong(((RowCacheSentinel) value).sentinelId);
+            else
+                ColumnFamily.serializer.serialize((ColumnFamily) value, out, MessagingService.current_version);
+        }
+        catch (IOException e)
+        {
+            throw new IOError(e);
+        }
+
+        int length = out.getLength();
+        if (length > map.capacity())
+            return null;
+        EstimatedHistogram sizes = entrySizes;
+        if (sizes != null && !isSentinel)
+            sizes.add(length);
+        SlabAllocator.Slot slot = allocator.allocate(length);
+        slot.memory.setBytes(slot.offset, out.getData(), 0, length);
+        return new Entry(slot, length);
+    }
+
+    private class Entry
+    {
+        final SlabAllocator.Slot slot;
+        final int length;
+        // the map holds one reference; the slot is freed when the last one is released
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        Entry(SlabAllocator.Slot slot, int length)
+        {
+            this.slot = slot;
+            this.length = length;
+        }
+
+        /**
+         * @return false if the entry has already been freed
+         */
+        boolean reference()
+        {
+            while (true)
+            {
+                int n = references.get();
+                if (n <= 0)
+                    return false;
+                if (references.compareAndSet(n, n + 1))
+                    return true;
+            }
+        }
+
+        void unreference()
+        {
+            if (references.decrementAndGet() == 0)
+                allocator.free(slot);
+        }
+
+        IRowCacheEntry deserialize()
+        {
+            byte[] bytes = new byte[length];
+            slot.memory.getBytes(slot.offset, bytes, 0, length);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            try
+            {
+                if (in.readBoolean())
+                    return new RowCacheSentinel(in.readLong());
+                return ColumnFamily.serializer.deserialize(in, MessagingService.current_version);
+            }
+            catch (IOException e)
+            {
+                throw new IOError(e);
+            }
+        }
+    }
+}
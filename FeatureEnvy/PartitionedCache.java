@@ -0,0 +1,348 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.cache;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.utils.Pair;
+
+/**
+ * Splits a cache into partitions, one per column family (or per keyspace), sharing a global capacity.
+ *
+ * Every partition is guaranteed its minimum share of the capacity and never gets more than its maximum share;
+ * the capacity left between the minimums is distributed among partitions according to the hits they got since
+ * the previous rebalancing, so a column family can only evict rows of the others within these bounds, and one
+ * scanning through rows it never reads again gains nothing from its misses.
+ *
+ * Rebalancing runs every REBALANCE_PERIOD seconds from CacheService, never on the request path; a partition
+ * created in between starts at the default minimum share.
+ */
+public class PartitionedCache<K extends CacheKey, V> implements ICache<K, V>
+{
+    public interface Factory<K, V>
+    {
+        public ICache<K, V> create(long capacity);
+
+        /**
+         * @return whether the caches created copy the values put
+         */
+        public boolean isPutCopying();
+    }
+
+    public static final int REBALANCE_PERIOD = Integer.getInteger("cassandra.cache_partition_rebalance_period_in_seconds", 10);
+    // share guaranteed to partitions whose shares haven't been set, so that they can earn the hits to grow
+    private static final double DEFAULT_MIN_SHARE = Double.parseDouble(System.getProperty("cassandra.cache_partition_min_share", "0.05"));
+
+    private final Factory<K, V> factory;
+    private final boolean byKeyspace;
+    private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<String, Partition>();
+    private volatile long capacity;
+
+    public PartitionedCache(Factory<K, V> factory, long capacity, boolean byKeyspace)
+    {
+        this.factory = factory;
+        this.capacity = capacity;
+        this.byKeyspace = byKeyspace;
+    }
+
+    private String partitionName(String ksName, String cfName)
+    {
+        return byKeyspace ? ksName : ksName + "." + cfName;
+    }
+
+    private String partitionName(K key)
+    {
+        Pair<String, String> path = key.getPathInfo();
+        return partitionName(path.left, path.right);
+    }
+
+    private Partition partitionFor(K key)
+    {
+        String name = partitionName(key);
+        Partition partition = partitions.get(name);
+        if (partition != null)
+            return partition;
+
+        // may go over the capacity by the floor of the new partition until the next rebalancing
+        partition = new Partition(factory.create((long) (capacity * DEFAULT_MIN_SHARE)));
+        Partition previous = partitions.putIfAbsent(name, partition);
+        return previous == null ? partition : previous;
+    }
+
+    /**
+     * Sets the shares of the capacity of the partition of the given column family (keyspace if the cache
+     * is partitioned by keyspace, in which case cfName is ignored). Partitions are created by the first
+     * entry put, so the shares of a column family that hasn't been cached yet cannot be set.
+     *
+     * @throws IllegalArgumentException if the shares are invalid or there is no such partition
+     */
+    public void setShares(String ksName, String cfName, double minShare, double maxShare)
+    {
+        if (minShare < 0 || minShare > maxShare || maxShare > 1)
+            throw new IllegalArgumentException("Shares must verify 0 <= min <= max <= 1");
+        String name = partitionName(ksName, cfName);
+        Partition partition = partitions.get(name);
+        if (partition == null)
+            throw new IllegalArgumentException("No cache partition " + name + " (nothing of it has been cached yet)");
+        partition.minShare = minShare;
+        partition.maxShare = maxShare;
+        rebalance();
+    }
+
+    /**
+     * Removes the entries of the given column family (or of the given keyspace if cfName is null).
+     * @return the number of entries removed
+     */
+    public int invalidate(String ksName, String cfName)
+    {
+        int removed = 0;
+        if (cfName != null && byKeyspace)
+        {
+            // the partition of the keyspace holds the other column families too
+            Partition partition = partitions.get(ksName);
+            if (partition == null)
+                return 0;
+            for (K key : partition.cache.keySet())
+            {
+                if (key.getPathInfo().right.equals(cfName))
+                {
+                    partition.cache.remove(key);
+                    removed++;
+                }
+            }
+            return removed;
+        }
+
+        for (Map.Entry<String, Partition> entry : partitions.entrySet())
+        {
+            String name = entry.getKey();
+            boolean matches = cfName == null
+                            ? name.equals(ksName) || name.startsWith(ksName + ".")
+                            : name.equals(partitionName(ksName, cfName));
+            if (matches)
+            {
+                removed += entry.getValue().cache.size();
+                entry.getValue().cache.clear();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the capacity, weighted size, hits and requests of each partition
+     */
+    public Map<String, long[]> getPartitionStatistics()
+    {
+        Map<String, long[]> statistics = new TreeMap<String, long[]>();
+        for (Map.Entry<String, Partition> entry : partitions.entrySet())
+        {
+            Partition partition = entry.getValue();
+            statistics.put(entry.getKey(), new long[]{ partition.cache.capacity(),
+                                                       partition.cache.weightedSize(),
+                                                       partition.hits.get(),
+                                                       partition.requests.get() });
+        }
+        return statistics;
+    }
+
+    /**
+     * Distributes the capacity between the partitions: each gets its minimum share, then what is left goes to
+     * the partitions in proportion to their recent hits, within their maximum shares.
+     */
+    public synchronized void rebalance()
+    {
+        List<Partition> all = new ArrayList<Partition>(partitions.values());
+        if (all.isEmpty())
+            return;
+
+        double minimums = 0;
+        for (Partition partition : all)
+            minimums += partition.minShare;
+        // minimums adding up to more than the whole cache are scaled down
+        double scale = minimums > 1 ? 1 / minimums : 1;
+
+        Map<Partition, Double> shares = new HashMap<Partition, Double>();
+        double remaining = 1;
+        for (Partition partition : all)
+        {
+            double share = partition.minShare * scale;
+            shares.put(partition, share);
+            remaining -= share;
+        }
+
+        // water filling: partitions reaching their maximum share give the rest back to the others
+        List<Partition> growing = new ArrayList<Partition>(all);
+        while (remaining > 1e-9 && !growing.isEmpty())
+        {
+            double demand = 0;
+            for (Partition partition : growing)
+                demand += partition.demand();
+            double distributed = 0;
+            for (Iterator<Partition> iter = growing.iterator(); iter.hasNext();)
+            {
+                Partition partition = iter.next();
+                double share = shares.get(partition);
+                double grant = Math.min(remaining * partition.demand() / demand, partition.maxShare - share);
+                shares.put(partition, share + grant);
+                distributed += grant;
+                if (share + grant >= partition.maxShare - 1e-9)
+                    iter.remove();
+            }
+            remaining -= distributed;
+            if (distributed < 1e-9)
+                break;
+        }
+
+        for (Partition partition : all)
+        {
+            partition.cache.setCapacity((long) (capacity * shares.get(partition)));
+            partition.lastHits = partition.hits.get();
+        }
+    }
+
+    public long capacity()
+    {
+        return capacity;
+    }
+
+    public void setCapacity(long capacity)
+    {
+        this.capacity = capacity;
+        rebalance();
+    }
+
+    public void put(K key, V value)
+    {
+        partitionFor(key).cache.put(key, value);
+    }
+
+    public boolean putIfAbsent(K key, V value)
+    {
+        return partitionFor(key).cache.putIfAbsent(key, value);
+    }
+
+    public boolean replace(K key, V old, V value)
+    {
+        Partition partition = partitions.get(partitionName(key));
+        return partition != null && partition.cache.replace(key, old, value);
+    }
+
+    public V get(K key)
+    {
+        Partition partition = partitions.get(partitionName(key));
+        if (partition == null)
+            return null;
+        partition.requests.incrementAndGet();
+        V value = partition.cache.get(key);
+        if (value != null)
+            partition.hits.incrementAndGet();
+        return value;
+    }
+
+    public void remove(K key)
+    {
+        Partition partition = partitions.get(partitionName(key));
+        if (partition != null)
+            partition.cache.remove(key);
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (Partition partition : partitions.values())
+            size += partition.cache.size();
+        return size;
+    }
+
+    public long weightedSize()
+    {
+        long size = 0;
+        for (Partition partition : partitions.values())
+            size += partition.cache.weightedSize();
+        return size;
+    }
+
+    public void clear()
+    {
+        for (Partition partition : partitions.values())
+            partition.cache.clear();
+    }
+
+    public Set<K> keySet()
+    {
+        Set<K> keys = new HashSet<K>();
+        for (Partition partition : partitions.values())
+            keys.addAll(partition.cache.keySet());
+        return keys;
+    }
+
+    /**
+     * @return the hottest keys of each partition, in proportion to their size
+     */
+    public Set<K> hotKeySet(int n)
+    {
+        long total = weightedSize();
+        Set<K> keys = new HashSet<K>();
+        for (Partition partition : partitions.values())
+        {
+            int partitionN = total == 0 ? 0 : (int) Math.ceil((double) n * partition.cache.weightedSize() / total);
+            if (partitionN > 0)
+                keys.addAll(partition.cache.hotKeySet(partitionN));
+        }
+        return keys;
+    }
+
+    public boolean containsKey(K key)
+    {
+        Partition partition = partitions.get(partitionName(key));
+        return partition != null && partition.cache.containsKey(key);
+    }
+
+    public boolean isPutCopying()
+    {
+        return factory.isPutCopying();
+    }
+
+    private class Partition
+    {
+        final ICache<K, V> cache;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong requests = new AtomicLong();
+        volatile long lastHits;
+        volatile double minShare = DEFAULT_MIN_SHARE;
+        volatile double maxShare = 1;
+
+        Partition(ICache<K, V> cache)
+        {
+            this.cache = cache;
+        }
+
+        /**
+         * @return the hits since the last rebalancing, at least 1 so that the leftover is spread evenly when
+         * nothing is hit
+         */
+        double demand()
+        {
+            return Math.max(1, hits.get() - lastHits);
+        }
+    }
+}
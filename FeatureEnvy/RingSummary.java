@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.locator;
+
+import java.io.Serializable;
+
+/**
+ * The token ring in packed form, for tools that render it: one JMX round trip carries every token,
+ * and endpoints are sent once and referred to by index rather than repeated for each range.
+ *
+ * Range i is (tokens[i - 1], tokens[i]], the first one wrapping around from the last token, as
+ * ordered by Range.compareTo. Its primary replica is endPoints[owners[i]] and it has replicaCounts[i]
+ * replicas in total.
+ */
+public class RingSummary implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /* class name of the partitioner of the ring, null when unknown */
+    public final String partitioner;
+    public final String[] tokens;
+    public final int[] owners;
+    public final int[] replicaCounts;
+    /* fraction of the token space covered by each range, null when the partitioner can't tell */
+    public final float[] ownership;
+    public final String[] endPoints;
+    /* bytes stored by each endpoint, NaN when unknown */
+    public final double[] loads;
+
+    public RingSummary(String partitioner, String[] tokens, int[] owners, int[] replicaCounts, float[] ownership, String[] endPoints, double[] loads)
+    {
+        assert tokens.length == owners.length && tokens.length == replicaCounts.length;
+        assert ownership == null || ownership.length == tokens.length;
+        assert endPoints.length == loads.length;
+        this.partitioner = partitioner;
+        this.tokens = tokens;
+        this.owners = owners;
+        this.replicaCounts = replicaCounts;
+        this.ownership = ownership;
+        this.endPoints = endPoints;
+        this.loads = loads;
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.locator;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.cassandra.net.EndPoint;
+import org.apache.cassandra.service.StorageLoadBalancer;
+import org.apache.cassandra.service.StorageService;
+
+/**
+ * Serves the ring of the node's TokenMetadata as a RingSummary over JMX, with its partitioner and the
+ * loads the load balancer knows of. Registered when TokenMetadata is loaded, which StorageService does as it
+ * starts.
+ */
+public class RingSummaryService implements RingSummaryServiceMBean
+{
+    public static final String MBEAN_NAME = "org.apache.cassandra.locator:type=RingSummary";
+
+    private static RingSummaryService instance;
+
+    private RingSummaryService()
+    {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            mbs.registerMBean(this, new ObjectName(MBEAN_NAME));
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Registers the service with the platform MBean server, once.
+     */
+    public static synchronized void register()
+    {
+        if (instance == null)
+            instance = new RingSummaryService();
+    }
+
+    public RingSummary getRingSummary()
+    {
+        Map<EndPoint, Double> loads = new HashMap<EndPoint, Double>(StorageLoadBalancer.instance().getLoadInfo());
+        loads.put(StorageService.getLocalStorageEndPoint(), StorageService.instance().getLoad());
+        return StorageService.instance().getTokenMetadata().getRingSummary(StorageService.getPartitioner(), loads);
+    }
+}
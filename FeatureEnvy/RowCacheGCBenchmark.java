@@ -0,0 +1,205 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.cache;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.googlecode.concurrentlinkedhashmap.EntryWeigher;
+import com.sun.management.GarbageCollectorMXBean;
+import com.sun.management.GcInfo;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * Compares the garbage collections caused by a full row cache kept on heap, as by ConcurrentLinkedHashCache,
+ * and off heap, by OffHeapRowCache. Reader threads read random keys from twice as many rows as the cache
+ * holds, and put the rows they miss as the read path does, so the cache keeps evicting. Reports the reads per
+ * second, the collections during the run with their total and longest pause, and the heap still used once
+ * the run is collected.
+ *
+ * Usage: RowCacheGCBenchmark [cache size in MB] [columns per row] [value size] [seconds per run] [threads] [keyspace] [column family]
+ *
+ * The storage configuration must be on the classpath as for the server, and define the column family. Both
+ * caches weigh a row by the size of its columns. The longest pause is the longest of the last collections
+ * seen every 10 ms, so it can miss collections that follow each other closely, and counts the whole of a
+ * concurrent collection. Each cache is run twice, the first run being a warm up.
+ */
+public class RowCacheGCBenchmark
+{
+    private static final EntryWeigher<RowCacheKey, IRowCacheEntry> DATA_SIZE_WEIGHER = new EntryWeigher<RowCacheKey, IRowCacheEntry>()
+    {
+        public int weightOf(RowCacheKey key, IRowCacheEntry value)
+        {
+            return value instanceof ColumnFamily ? ((ColumnFamily) value).dataSize() : 1;
+        }
+    };
+
+    // keeps the rows read alive so that the reads can't be optimized away; added to once per reader
+    private static final AtomicLong sink = new AtomicLong();
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        long capacity = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+        int columns = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int valueSize = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        String ksName = args.length > 5 ? args[5] : "Keyspace1";
+        String cfName = args.length > 6 ? args[6] : "Standard1";
+
+        CFMetaData metadata = Schema.instance.getCFMetaData(ksName, cfName);
+        UUID cfId = Schema.instance.getId(ksName, cfName);
+        int rowSize = newRow(metadata, new Random(0), columns, valueSize).dataSize();
+        int keys = (int) Math.min(Integer.MAX_VALUE, 2 * capacity / rowSize);
+
+        System.out.printf("%d MB cache of rows of %d bytes, %d keys, %d readers%n", capacity / (1024 * 1024), rowSize, keys, threads);
+        System.out.printf("%-10s%14s%10s%14s%16s%18s%n", "Cache", "Reads/s", "GCs", "GC time (ms)", "Max pause (ms)", "Heap after (MB)");
+        for (int round = 0; round < 2; round++)
+        {
+            String suffix = round == 0 ? " (warm up)" : "";
+            run("on heap", ConcurrentLinkedHashCache.create(capacity, DATA_SIZE_WEIGHER), metadata, cfId, keys, columns, valueSize, seconds, threads, suffix);
+            run("off heap", new OffHeapRowCache(capacity), metadata, cfId, keys, columns, valueSize, seconds, threads, suffix);
+        }
+        if (sink.get() == 42)
+            System.out.println();
+    }
+
+    private static ColumnFamily newRow(CFMetaData metadata, Random random, int columns, int valueSize)
+    {
+        ColumnFamily cf = ColumnFamily.create(metadata);
+        for (int i = 0; i < columns; i++)
+        {
+            byte[] value = new byte[valueSize];
+            random.nextBytes(value);
+            cf.addColumn(new Column(ByteBufferUtil.bytes("column" + i), ByteBuffer.wrap(value), System.currentTimeMillis()));
+        }
+        return cf;
+    }
+
+    private static RowCacheKey key(UUID cfId, int i)
+    {
+        return new RowCacheKey(cfId, ByteBufferUtil.bytes("key" + i));
+    }
+
+    private static void run(String name, final ICache<RowCacheKey, IRowCacheEntry> cache, final CFMetaData metadata, final UUID cfId, final int keys,
+                            final int columns, final int valueSize, int seconds, int threads, String suffix)
+        throws InterruptedException
+    {
+        // fill the cache before measuring, so that every run starts evicting
+        Random random = new Random(0);
+        for (int i = 0; cache.weightedSize() < cache.capacity() - columns * valueSize && i < keys; i++)
+            cache.put(key(cfId, i), newRow(metadata, random, columns, valueSize));
+        System.gc();
+
+        List<GarbageCollectorMXBean> collectors = new ArrayList<GarbageCollectorMXBean>();
+        for (java.lang.management.GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            collectors.add((GarbageCollectorMXBean) collector);
+        long[] collections = collections(collectors);
+        // the id of the last collection seen by collector, so that each pause is only looked at once
+        Map<String, Long> lastIds = new HashMap<String, Long>();
+        for (GarbageCollectorMXBean collector : collectors)
+        {
+            GcInfo info = collector.getLastGcInfo();
+            if (info != null)
+                lastIds.put(collector.getName(), info.getId());
+        }
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong reads = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++)
+        {
+            final Random threadRandom = new Random(t);
+            new Thread("RowCacheReader-" + t)
+            {
+                public void run()
+                {
+                    long count = 0, columnsRead = 0;
+                    // only look at the clock every few reads so that it doesn't dominate
+                    while ((count & 255) != 0 || System.nanoTime() < deadline)
+                    {
+                        RowCacheKey key = key(cfId, threadRandom.nextInt(keys));
+                        IRowCacheEntry row = cache.get(key);
+                        if (row == null)
+                            cache.put(key, newRow(metadata, threadRandom, columns, valueSize));
+                        else
+                            columnsRead += ((ColumnFamily) row).getColumnCount();
+                        count++;
+                    }
+                    reads.addAndGet(count);
+                    sink.addAndGet(columnsRead);
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        long maxPause = 0;
+        while (!done.await(10, TimeUnit.MILLISECONDS))
+        {
+            for (GarbageCollectorMXBean collector : collectors)
+            {
+                GcInfo info = collector.getLastGcInfo();
+                if (info == null || Long.valueOf(info.getId()).equals(lastIds.get(collector.getName())))
+                    continue;
+                lastIds.put(collector.getName(), info.getId());
+                maxPause = Math.max(maxPause, info.getDuration());
+            }
+        }
+        long[] after = collections(collectors);
+
+        System.gc();
+        long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        System.out.printf("%-10s%14d%10d%14d%16d%18d%s%n",
+                          name,
+                          reads.get() / seconds,
+                          after[0] - collections[0],
+                          after[1] - collections[1],
+                          maxPause,
+                          heapUsed / (1024 * 1024),
+                          suffix);
+        cache.clear();
+    }
+
+    /**
+     * @return the collections so far and the milliseconds spent in them, over all the collectors
+     */
+    private static long[] collections(List<GarbageCollectorMXBean> collectors)
+    {
+        long[] total = new long[2];
+        for (GarbageCollectorMXBean collector : collectors)
+        {
+            total[0] += collector.getCollectionCount();
+            total[1] += collector.getCollectionTime();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.sstable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.io.compress.CompressionMetadata;
+import org.apache.cassandra.io.compress.CompressionParameters;
+import org.apache.cassandra.io.compress.DeflateCompressor;
+import org.apache.cassandra.io.compress.LZCompressor;
+import org.apache.cassandra.io.util.CompressedSegmentedFile;
+import org.apache.cassandra.io.util.FileDataInput;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * Writes the same rows uncompressed and with each compressor, then reads rows at random from each sstable.
+ * Reports the write throughput, the size on disk, and the read amplification of a row read: the bytes read
+ * from disk and the bytes decompressed, relative to the size of the row. Uncompressed rows are counted as read
+ * through the 4KB pages covering them, compressed rows through the chunks covering them.
+ *
+ * Usage: SSTableCompressionBenchmark [rows] [columns per row] [chunk length in KB] [keyspace] [column family]
+ *
+ * The storage configuration must be on the classpath as for the server, and define the column family. The
+ * sstables are written to a temporary directory, and the reads are served from the page cache. Values are
+ * words drawn from a small vocabulary, so they compress about as well as text. Each configuration is run
+ * twice, the first run being a warm up.
+ */
+public class SSTableCompressionBenchmark
+{
+    private static final int PAGE_SIZE = 4096;
+    private static final int READS = 10000;
+    private static final String[] WORDS = { "the", "row", "column", "value", "cluster", "node", "replica", "token",
+                                            "compaction", "memtable", "flush", "commit", "gossip", "ring", "stream" };
+
+    // keeps the bytes read alive so that the reads can't be optimized away
+    private static long sink;
+
+    public static void main(String[] args) throws IOException
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int columns = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int chunkLength = (args.length > 2 ? Integer.parseInt(args[2]) : 64) * 1024;
+        String ksName = args.length > 3 ? args[3] : "Keyspace1";
+        String cfName = args.length > 4 ? args[4] : "Standard1";
+
+        CFMetaData metadata = DatabaseDescriptor.getCFMetaData(ksName, cfName);
+        IPartitioner partitioner = StorageService.getPartitioner();
+        SortedMap<DecoratedKey, ColumnFamily> data = generate(metadata, partitioner, rows, columns);
+        File directory = File.createTempFile("SSTableCompressionBenchmark", "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Unable to create " + directory);
+
+        CompressionParameters[] compressions = { null,
+                                                 new CompressionParameters(LZCompressor.instance, chunkLength),
+                                                 new CompressionParameters(DeflateCompressor.instance, chunkLength) };
+        System.out.printf("%d rows of %d columns, %d KB chunks%n", rows, columns, chunkLength / 1024);
+        System.out.printf("%-20s%14s%12s%10s%16s%18s%12s%n",
+                          "Compressor", "Write (MB/s)", "Size (MB)", "Ratio", "Disk read (x)", "Decompressed (x)", "Read (us)");
+        try
+        {
+            int generation = 0;
+            for (int round = 0; round < 2; round++)
+            {
+                String suffix = round == 0 ? " (warm up)" : "";
+                for (CompressionParameters compression : compressions)
+                {
+                    Descriptor desc = new Descriptor(directory, ksName, cfName, ++generation, true);
+                    run(desc, metadata, partitioner, data, compression, suffix);
+                    for (File file : directory.listFiles())
+                        FileUtils.deleteWithConfirm(file);
+                }
+            }
+        }
+        finally
+        {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+
+    private static SortedMap<DecoratedKey, ColumnFamily> generate(CFMetaData metadata, IPartitioner partitioner, int rows, int columns)
+    {
+        Random random = new Random(0);
+        SortedMap<DecoratedKey, ColumnFamily> data = new TreeMap<DecoratedKey, ColumnFamily>();
+        for (int i = 0; i < rows; i++)
+        {
+            ColumnFamily cf = ColumnFamily.create(metadata);
+            for (int j = 0; j < columns; j++)
+            {
+                StringBuilder value = new StringBuilder();
+                while (value.length() < 100)
+                    value.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                cf.addColumn(new Column(ByteBufferUtil.bytes("column" + j), ByteBufferUtil.bytes(value.toString()), System.currentTimeMillis()));
+            }
+            data.put(partitioner.decorateKey(ByteBufferUtil.bytes("key" + i)), cf);
+        }
+        return data;
+    }
+
+    private static void run(Descriptor desc, CFMetaData metadata, IPartitioner partitioner, SortedMap<DecoratedKey, ColumnFamily> data, CompressionParameters compression, String suffix)
+    throws IOException
+    {
+        // where each row starts, and where the last one ends
+        long[] positions = new long[data.size() + 1];
+        long start = System.nanoTime();
+        SSTableWriter writer = new SSTableWriter(desc.filenameFor(Component.DATA), data.size(), metadata, partitioner, ReplayPosition.NONE, compression);
+        int i = 0;
+        for (Map.Entry<DecoratedKey, ColumnFamily> row : data.entrySet())
+        {
+            positions[i++] = writer.getFilePointer();
+            writer.append(row.getKey(), row.getValue());
+        }
+        positions[i] = writer.getFilePointer();
+        SSTableReader sstable = writer.closeAndOpenReader();
+        double writeSeconds = (System.nanoTime() - start) / 1e9;
+
+        long dataLength = positions[data.size()];
+        long onDisk = new File(sstable.getFilename()).length();
+        CompressionMetadata chunks = compression == null ? null : ((CompressedSegmentedFile) sstable.dfile).metadata;
+
+        Random random = new Random(0);
+        long rowBytes = 0, diskBytes = 0, decompressedBytes = 0;
+        byte[] buffer = new byte[0];
+        start = System.nanoTime();
+        for (int read = 0; read < READS; read++)
+        {
+            int row = random.nextInt(data.size());
+            long rowStart = positions[row];
+            int length = (int) (positions[row + 1] - rowStart);
+            rowBytes += length;
+            if (chunks == null)
+            {
+                diskBytes += ((rowStart + length - 1) / PAGE_SIZE - rowStart / PAGE_SIZE + 1) * PAGE_SIZE;
+            }
+            else
+            {
+                for (long chunkStart = rowStart - rowStart % chunks.chunkLength; chunkStart < rowStart + length; chunkStart += chunks.chunkLength)
+                {
+                    diskBytes += chunks.chunkFor(chunkStart).length;
+                    decompressedBytes += Math.min(chunks.chunkLength, dataLength - chunkStart);
+                }
+            }
+
+            if (buffer.length < length)
+                buffer = new byte[length];
+            FileDataInput in = sstable.dfile.getSegment(rowStart);
+            try
+            {
+                in.readFully(buffer, 0, length);
+                sink += buffer[length - 1];
+            }
+            finally
+            {
+                FileUtils.closeQuietly(in);
+            }
+        }
+        double readMicros = (System.nanoTime() - start) / 1e3 / READS;
+
+        System.out.printf("%-20s%14.1f%12.1f%10.2f%16.2f%18.2f%12.1f%s%n",
+                          compression == null ? "none" : compression.compressor.getClass().getSimpleName(),
+                          dataLength / writeSeconds / (1024 * 1024),
+                          onDisk / (1024.0 * 1024),
+                          (double) onDisk / dataLength,
+                          (double) diskBytes / rowBytes,
+                          (double) decompressedBytes / rowBytes,
+                          readMicros,
+                          suffix);
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.sstable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.Table;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.streaming.OperationType;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * Rebuilds the index and filter of the same streamed sstable with 1 to max threads, doubling the threads
+ * every time: one thread is the sequential scan of RowIndexer, more are the chunks of ParallelRowIndexer, the
+ * indexers that the Builder picks for cassandra.sstable_build_threads. Reports the throughput of the rebuild
+ * and its speedup over the sequential scan.
+ *
+ * Usage: SSTableRebuildBenchmark [rows] [columns per row] [max threads] [keyspace] [column family]
+ *
+ * The storage configuration must be on the classpath as for the server, and define the column family, which
+ * must not be a counter column family. The sstable is written to a temporary directory, and is read from the
+ * page cache. Each thread count is run twice, the first run being a warm up.
+ */
+public class SSTableRebuildBenchmark
+{
+    // keeps the row counts of the rebuilds alive
+    private static long sink;
+
+    public static void main(String[] args) throws IOException
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int columns = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        String ksName = args.length > 3 ? args[3] : "Keyspace1";
+        String cfName = args.length > 4 ? args[4] : "Standard1";
+
+        CFMetaData metadata = DatabaseDescriptor.getCFMetaData(ksName, cfName);
+        ColumnFamilyStore cfs = Table.open(ksName).getColumnFamilyStore(cfName);
+        IPartitioner partitioner = StorageService.getPartitioner();
+        File directory = File.createTempFile("SSTableRebuildBenchmark", "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Unable to create " + directory);
+
+        try
+        {
+            Descriptor desc = write(new Descriptor(directory, ksName, cfName, 1, true), metadata, partitioner, rows, columns);
+            long dataLength = new File(desc.filenameFor(Component.DATA)).length();
+            System.out.printf("%d rows of %d columns, %.1f MB of data%n", rows, columns, dataLength / (1024.0 * 1024));
+            System.out.printf("%-10s%16s%14s%10s%n", "Threads", "Rebuild (MB/s)", "Rows/s", "Speedup");
+            for (int round = 0; round < 2; round++)
+            {
+                String suffix = round == 0 ? " (warm up)" : "";
+                double sequential = 0;
+                for (int threads = 1; threads <= maxThreads; threads *= 2)
+                {
+                    SSTableWriter.RowIndexer indexer = threads == 1
+                                                     ? new SSTableWriter.RowIndexer(desc, cfs, OperationType.BOOTSTRAP)
+                                                     : new SSTableWriter.ParallelRowIndexer(desc, cfs, OperationType.BOOTSTRAP, threads);
+                    long start = System.nanoTime();
+                    long indexed = indexer.index();
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    assert indexed == rows : indexed + " rows indexed out of " + rows;
+                    sink += indexed;
+                    if (threads == 1)
+                        sequential = seconds;
+
+                    System.out.printf("%-10d%16.1f%14.0f%10.2f%s%n",
+                                      threads,
+                                      dataLength / seconds / (1024 * 1024),
+                                      rows / seconds,
+                                      sequential / seconds,
+                                      suffix);
+                    deleteRebuiltComponents(desc);
+                }
+            }
+        }
+        finally
+        {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+
+    /**
+     * Writes the rows and removes everything but the data file, as streaming leaves it.
+     * @return the descriptor of the sstable written
+     */
+    private static Descriptor write(Descriptor desc, CFMetaData metadata, IPartitioner partitioner, int rows, int columns) throws IOException
+    {
+        // rows are generated as they are appended, in the order of their keys, rather than all held in memory
+        DecoratedKey[] keys = new DecoratedKey[rows];
+        for (int i = 0; i < rows; i++)
+            keys[i] = partitioner.decorateKey(ByteBufferUtil.bytes("key" + i));
+        Arrays.sort(keys);
+
+        Random random = new Random(0);
+        SSTableWriter writer = new SSTableWriter(desc.filenameFor(Component.DATA), rows, metadata, partitioner, ReplayPosition.NONE);
+        for (DecoratedKey key : keys)
+        {
+            ColumnFamily cf = ColumnFamily.create(metadata);
+            for (int j = 0; j < columns; j++)
+            {
+                byte[] value = new byte[32];
+                random.nextBytes(value);
+                cf.addColumn(new Column(ByteBufferUtil.bytes("column" + j), ByteBuffer.wrap(value), System.currentTimeMillis()));
+            }
+            writer.append(key, cf);
+        }
+        Descriptor written = writer.closeAndOpenReader().descriptor;
+        deleteRebuiltComponents(written);
+        return written;
+    }
+
+    static void deleteRebuiltComponents(Descriptor desc) throws IOException
+    {
+        for (Component component : new Component[]{ Component.PRIMARY_INDEX, Component.FILTER, Component.STATS })
+        {
+            File file = new File(desc.filenameFor(component));
+            if (file.exists())
+                FileUtils.deleteWithConfirm(file);
+        }
+    }
+}
@@ -21,13 +21,20 @@ package org.apache.cassandra.io.sstable;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.*;
 
 import com.google.common.collect.Sets;
 
+import org.apache.cassandra.concurrent.DebuggableThreadPoolExecutor;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.db.commitlog.ReplayPosition;
 import org.apache.cassandra.db.compaction.*;
 import org.apache.cassandra.utils.ByteBufferUtil;
@@ -35,31 +42,76 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.Config;
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.db.ColumnFamily;
 import org.apache.cassandra.db.ColumnFamilyStore;
 import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.Table;
 import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.io.compress.CompressedSequentialWriter;
+import org.apache.cassandra.io.compress.CompressionMetadata;
+import org.apache.cassandra.io.compress.CompressionParameters;
+import org.apache.cassandra.io.util.BoundedSegmentedFile;
 import org.apache.cassandra.io.util.BufferedRandomAccessFile;
+import org.apache.cassandra.io.util.BufferedSequentialWriter;
+import org.apache.cassandra.io.util.CompressedSegmentedFile;
+import org.apache.cassandra.io.util.DataOutputBuffer;
+import org.apache.cassandra.io.util.FileDataInput;
 import org.apache.cassandra.io.util.FileMark;
 import org.apache.cassandra.io.util.FileUtils;
 import org.apache.cassandra.io.util.SegmentedFile;
+import org.apache.cassandra.io.util.SequentialWriter;
 import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.streaming.OperationType;
 import org.apache.cassandra.utils.BloomFilter;
 import org.apache.cassandra.utils.EstimatedHistogram;
 import org.apache.cassandra.utils.FBUtilities;
+import org.apache.cassandra.utils.WrappedRunnable;
 
 public class SSTableWriter extends SSTable
 {
     private static Logger logger = LoggerFactory.getLogger(SSTableWriter.class);
 
+    // serialized rows are handed to the disk by chunks of (at least) this size, cassandra.sstable_write_buffer_size_in_kb
+    static final int WRITE_BUFFER_SIZE = Integer.getInteger("cassandra.sstable_write_buffer_size_in_kb", 1024) * 1024;
+    // buffers grown past this size by a large row appended whole are dropped once written rather than kept for reuse
+    private static final int MAX_RETAINED_BUFFER_SIZE = 4 * WRITE_BUFFER_SIZE;
+
+    // shared by all writers; each writer has at most one write in flight, which keeps its data file ordered
+    private static final ExecutorService writeExecutor = new DebuggableThreadPoolExecutor(DatabaseDescriptor.getFlushWriters() + DatabaseDescriptor.getConcurrentCompactors(),
+                                                                                          Integer.MAX_VALUE,
+                                                                                          TimeUnit.SECONDS,
+                                                                                          new LinkedBlockingQueue<Runnable>(),
+                                                                                          new NamedThreadFactory("SSTableDataWriter"));
+
+    // amount of data written between two early opens, see setEarlyOpenListener
+    private static final long EARLY_OPEN_INTERVAL = Long.getLong("cassandra.sstable_early_open_interval_in_mb", 50) * 1024 * 1024;
+
     private IndexWriter iwriter;
     private SegmentedFile.Builder dbuilder;
-    private final BufferedRandomAccessFile dataFile;
+    private final SequentialWriter dataFile;
+    // null if the data file is not compressed
+    private final CompressionParameters compression;
+    private final DoubleBufferedWriter writer;
     private DecoratedKey lastWrittenKey;
-    private FileMark dataMark;
+    private boolean marked;
+    // the last key appended before the latest mark, and the rows written by then, restored by reset()
+    private DecoratedKey lastMarkedKey;
+    private long rowsWrittenAtMark;
+    private EarlyOpenListener earlyOpenListener;
+    private long earlyOpenMaxDataAge;
+    private long openedEarlyAt;
+    // the latest reader published to the listener, released when replaced or when this writer is closed
+    private SSTableReader earlyReader;
+
+    private final SSTableWriterMetrics metrics;
+    private final long createdAt = System.nanoTime();
+    // the rows and bytes appended so far, read over JMX while the writer is appending
+    private volatile long rowsWritten;
+    private volatile long bytesWritten;
+    // time spent in the index writer, reported once it is closed
+    private long indexNanos;
 
     public SSTableWriter(String filename, long keyCount) throws IOException
     {
@@ -67,6 +119,16 @@ public class SSTableWriter extends SSTable
     }
 
     public SSTableWriter(String filename, long keyCount, CFMetaData metadata, IPartitioner partitioner, ReplayPosition replayPosition) throws IOException
+    {
+        this(filename, keyCount, metadata, partitioner, replayPosition, null);
+    }
+
+    /**
+     * @param compression how to compress the data file, or null to leave it uncompressed. The data file is then
+     * written in chunks, located through the CompressionInfo component written on close, and the reader returned
+     * by closeAndOpenReader decompresses them. SSTableReader.open and streaming don't read that component yet.
+     */
+    public SSTableWriter(String filename, long keyCount, CFMetaData metadata, IPartitioner partitioner, ReplayPosition replayPosition, CompressionParameters compression) throws IOException
     {
         super(Descriptor.fromFilename(filename),
               new HashSet<Component>(Arrays.asList(Component.DATA, Component.FILTER, Component.PRIMARY_INDEX, Component.STATS)),
@@ -76,13 +138,37 @@ public class SSTableWriter extends SSTable
               SSTable.defaultRowHistogram(),
               SSTable.defaultColumnHistogram());
         iwriter = new IndexWriter(descriptor, partitioner, keyCount);
-        dbuilder = SegmentedFile.getBuilder(DatabaseDescriptor.getDiskAccessMode());
-        dataFile = new BufferedRandomAccessFile(new File(getFilename()), "rw", BufferedRandomAccessFile.DEFAULT_BUFFER_SIZE, true);
+        this.compression = compression;
+        if (compression == null)
+        {
+            dbuilder = SegmentedFile.getBuilder(DatabaseDescriptor.getDiskAccessMode());
+            dataFile = new BufferedSequentialWriter(new File(getFilename()), BufferedRandomAccessFile.DEFAULT_BUFFER_SIZE);
+        }
+        else
+        {
+            dbuilder = new CompressedSegmentedFile.Builder();
+            dataFile = new CompressedSequentialWriter(new File(getFilename()), descriptor.filenameFor(CompressionMetadata.COMPONENT), compression);
+        }
+        writer = new DoubleBufferedWriter(dataFile);
+        metrics = SSTableWriterMetrics.get(descriptor.ksname, descriptor.cfname);
+        metrics.addWriter(this);
     }
     
     public void mark()
     {
-        dataMark = dataFile.mark();
+        // a new mark means the rows appended before it won't be reset anymore, so they can be published
+        try
+        {
+            maybeOpenEarly();
+        }
+        catch (IOException e)
+        {
+            throw new IOError(e);
+        }
+        writer.mark();
+        marked = true;
+        lastMarkedKey = lastWrittenKey;
+        rowsWrittenAtMark = rowsWritten;
         iwriter.mark();
     }
 
@@ -90,8 +176,14 @@ public class SSTableWriter extends SSTable
     {
         try
         {
-            dataFile.reset(dataMark);
+            long discardedBytes = writer.getFilePointer();
+            writer.reset();
+            discardedBytes -= writer.getFilePointer();
             iwriter.reset();
+            lastWrittenKey = lastMarkedKey;
+            metrics.removeRows(rowsWritten - rowsWrittenAtMark, discardedBytes);
+            rowsWritten = rowsWrittenAtMark;
+            bytesWritten = writer.getFilePointer();
         }
         catch (IOException e)
         {
@@ -112,7 +204,7 @@ public class SSTableWriter extends SSTable
             logger.info("Writing into file " + getFilename());
             throw new IOException("Keys must be written in ascending order.");
         }
-        return (lastWrittenKey == null) ? 0 : dataFile.getFilePointer();
+        return (lastWrittenKey == null) ? 0 : writer.getFilePointer();
     }
 
     private void afterAppend(DecoratedKey decoratedKey, long dataPosition) throws IOException
@@ -121,16 +213,49 @@ public class SSTableWriter extends SSTable
 
         if (logger.isTraceEnabled())
             logger.trace("wrote " + decoratedKey + " at " + dataPosition);
+        long start = System.nanoTime();
         iwriter.afterAppend(decoratedKey, dataPosition);
+        indexNanos += System.nanoTime() - start;
         dbuilder.addPotentialBoundary(dataPosition);
+
+        // the row has been fully serialized by now, even if it hasn't reached the file
+        rowsWritten++;
+        bytesWritten = writer.getFilePointer();
+        metrics.addRow(bytesWritten - dataPosition);
+
+        // rows appended after a mark may still be reset, so once marked, rows are only published by the next mark
+        if (!marked)
+            maybeOpenEarly();
+    }
+
+    private void maybeOpenEarly() throws IOException
+    {
+        if (earlyOpenListener == null || compression != null || lastWrittenKey == null || writer.getFilePointer() - openedEarlyAt < EARLY_OPEN_INTERVAL)
+            return;
+
+        SSTableReader reader = openEarly(earlyOpenMaxDataAge);
+        reader.acquireReference();
+        earlyOpenListener.opened(reader, lastWrittenKey);
+        releaseEarlyReader();
+        earlyReader = reader;
+    }
+
+    private void releaseEarlyReader()
+    {
+        if (earlyReader != null)
+            earlyReader.releaseReference();
+        earlyReader = null;
     }
 
     public long append(AbstractCompactedRow row) throws IOException
     {
         long currentPosition = beforeAppend(row.key);
-        ByteBufferUtil.writeWithShortLength(row.key.key, dataFile);
-        row.write(dataFile);
-        estimatedRowSize.add(dataFile.getFilePointer() - currentPosition);
+        // the row writes its size first, so it can be streamed: lazily compacted rows, which can be arbitrarily
+        // large, are handed to the disk a buffer at a time
+        DataOutput out = writer.stream();
+        ByteBufferUtil.writeWithShortLength(row.key.key, out);
+        row.write(out);
+        estimatedRowSize.add(writer.getFilePointer() - currentPosition);
         estimatedColumnCount.add(row.columnCount());
         afterAppend(row.key, currentPosition);
         return currentPosition;
@@ -139,35 +264,101 @@ public class SSTableWriter extends SSTable
     public void append(DecoratedKey decoratedKey, ColumnFamily cf) throws IOException
     {
         long startPosition = beforeAppend(decoratedKey);
-        ByteBufferUtil.writeWithShortLength(decoratedKey.key, dataFile);
+        DataOutputBuffer buffer = writer.buffer();
+        ByteBufferUtil.writeWithShortLength(decoratedKey.key, buffer);
         // write placeholder for the row size, since we don't know it yet
-        long sizePosition = dataFile.getFilePointer();
-        dataFile.writeLong(-1);
+        int sizePosition = buffer.getLength();
+        buffer.writeLong(-1);
         // write out row data
-        int columnCount = ColumnFamily.serializer().serializeWithIndexes(cf, dataFile);
-        // seek back and write the row size (not including the size Long itself)
-        long endPosition = dataFile.getFilePointer();
-        dataFile.seek(sizePosition);
+        int columnCount = ColumnFamily.serializer().serializeWithIndexes(cf, buffer);
+        // patch the row size (not including the size Long itself) in memory, the row hasn't reached the file yet
+        int endPosition = buffer.getLength();
         long dataSize = endPosition - (sizePosition + 8);
         assert dataSize > 0;
-        dataFile.writeLong(dataSize);
-        // finally, reset for next row
-        dataFile.seek(endPosition);
+        ByteBuffer.wrap(buffer.getData()).putLong(sizePosition, dataSize);
         afterAppend(decoratedKey, startPosition);
-        estimatedRowSize.add(endPosition - startPosition);
+        estimatedRowSize.add(writer.getFilePointer() - startPosition);
         estimatedColumnCount.add(columnCount);
+        writer.maybeSubmit();
     }
 
     public void append(DecoratedKey decoratedKey, ByteBuffer value) throws IOException
     {
         long currentPosition = beforeAppend(decoratedKey);
-        ByteBufferUtil.writeWithShortLength(decoratedKey.key, dataFile);
+        DataOutput out = writer.stream();
+        ByteBufferUtil.writeWithShortLength(decoratedKey.key, out);
         assert value.remaining() > 0;
-        dataFile.writeLong(value.remaining());
-        ByteBufferUtil.write(value, dataFile);
+        out.writeLong(value.remaining());
+        ByteBufferUtil.write(value, out);
         afterAppend(decoratedKey, currentPosition);
     }
 
+    /**
+     * Asks for a reader over the rows written so far to be published to the listener every
+     * cassandra.sstable_early_open_interval_in_mb of data, so that reads can start using the
+     * sstable (and stop using its sources) before it is complete. Once mark() has been called, rows are only
+     * published when the next mark makes them final. Ignored for compressed sstables.
+     */
+    public void setEarlyOpenListener(EarlyOpenListener listener, long maxDataAge)
+    {
+        earlyOpenListener = listener;
+        earlyOpenMaxDataAge = maxDataAge;
+    }
+
+    /**
+     * Opens a reader over the rows written so far, without closing the writer.
+     *
+     * The sstable is still temporary. The reader only sees the index and data files up to their current length,
+     * and gets its own copies of the bloom filter, summary and histograms, so the rows appended afterwards are
+     * invisible to it: a key after the last one appended is either rejected by the bloom filter or not found
+     * before the end of the index. The data and index are read through buffered segments since the builders of
+     * the mapped ones can only be completed once, at close.
+     */
+    public SSTableReader openEarly(long maxDataAge) throws IOException
+    {
+        // the last chunk and metadata of a compressed file are only written on close
+        assert compression == null : "Compressed sstables can't be opened before they are complete";
+
+        // make all appended rows visible in the files
+        writer.flush();
+        dataFile.flush();
+        iwriter.flush();
+        openedEarlyAt = writer.getFilePointer();
+
+        SegmentedFile ifile = new BoundedSegmentedFile(descriptor.filenameFor(SSTable.COMPONENT_INDEX), iwriter.getFilePointer());
+        SegmentedFile dfile = new BoundedSegmentedFile(getFilename(), openedEarlyAt);
+        return SSTableReader.internalOpen(descriptor,
+                                          components,
+                                          metadata,
+                                          replayPosition,
+                                          partitioner,
+                                          ifile,
+                                          dfile,
+                                          iwriter.earlySummary(),
+                                          iwriter.earlyFilter(),
+                                          maxDataAge,
+                                          copyOf(estimatedRowSize),
+                                          copyOf(estimatedColumnCount));
+    }
+
+    private static EstimatedHistogram copyOf(EstimatedHistogram histogram)
+    {
+        return new EstimatedHistogram(histogram.getBucketOffsets(), histogram.getBuckets(false));
+    }
+
+    public interface EarlyOpenListener
+    {
+        /**
+         * Called from the writing thread with a reader over the rows written so far. The writer releases its
+         * reference to the reader once a newer one has been published or the sstable is complete, so a listener
+         * that keeps the reader must acquire a reference of its own.
+         *
+         * @param reader the early opened reader, which doesn't see keys after lastKey
+         * @param lastKey the last key covered by the reader
+         */
+        public void opened(SSTableReader reader, DecoratedKey lastKey);
+    }
+
     public SSTableReader closeAndOpenReader() throws IOException
     {
         return closeAndOpenReader(System.currentTimeMillis());
@@ -175,19 +366,27 @@ public class SSTableWriter extends SSTable
 
     public SSTableReader closeAndOpenReader(long maxDataAge) throws IOException
     {
+        releaseEarlyReader();
+
         // index and filter
+        long start = System.nanoTime();
         iwriter.close();
+        metrics.indexWriter.addNano(indexNanos + System.nanoTime() - start);
+        metrics.addSSTable(iwriter.summarySize(), iwriter.filterSize());
 
         // main data
-        long position = dataFile.getFilePointer();
-        dataFile.close(); // calls force
-        FileUtils.truncate(dataFile.getPath(), position);
+        writer.flush();
+        start = System.nanoTime();
+        dataFile.close(); // calls force and truncates to the written length
+        metrics.fsync.addNano(System.nanoTime() - start);
 
         // write sstable statistics
         writeMetadata(descriptor, estimatedRowSize, estimatedColumnCount, replayPosition);
 
         // remove the 'tmp' marker from all components
+        start = System.nanoTime();
         final Descriptor newdesc = rename(descriptor, components);
+        metrics.rename.addNano(System.nanoTime() - start);
 
         // finalize in-memory state for the reader
         SegmentedFile ifile = iwriter.builder.complete(newdesc.filenameFor(SSTable.COMPONENT_INDEX));
@@ -195,9 +394,44 @@ public class SSTableWriter extends SSTable
         SSTableReader sstable = SSTableReader.internalOpen(newdesc, components, metadata, replayPosition, partitioner, ifile, dfile, iwriter.summary, iwriter.bf, maxDataAge, estimatedRowSize, estimatedColumnCount);
         iwriter = null;
         dbuilder = null;
+        released();
         return sstable;
     }
 
+    /**
+     * Gives up on the sstable: closes its files and deletes what was written of it.
+     */
+    public void abort()
+    {
+        releaseEarlyReader();
+        try
+        {
+            // the data file can't be closed under a pending write
+            writer.flush();
+        }
+        catch (IOException e)
+        {
+            logger.debug("Error flushing the aborted sstable {}: {}", descriptor, e);
+        }
+        FileUtils.closeQuietly(dataFile);
+        iwriter.abort();
+        for (Component component : components)
+            new File(descriptor.filenameFor(component)).delete();
+        new File(descriptor.filenameFor(CompressionMetadata.COMPONENT)).delete();
+        released();
+    }
+
+    /**
+     * Stops reporting this writer, and unregisters the metrics of its column family if it has been dropped
+     * meanwhile, since no new writer will be created for it.
+     */
+    private void released()
+    {
+        metrics.removeWriter(this);
+        if (DatabaseDescriptor.getCFMetaData(descriptor.ksname, descriptor.cfname) == null)
+            SSTableWriterMetrics.unregister(descriptor.ksname, descriptor.cfname);
+    }
+
     private static void writeMetadata(Descriptor desc, EstimatedHistogram rowSizes, EstimatedHistogram columnCounts, ReplayPosition rp) throws IOException
     {
         BufferedRandomAccessFile out = new BufferedRandomAccessFile(new File(desc.filenameFor(SSTable.COMPONENT_STATS)),
@@ -218,6 +452,9 @@ public class SSTableWriter extends SSTable
             // do -Data last because -Data present should mean the sstable was completely renamed before crash
             for (Component component : Sets.difference(components, Collections.singleton(Component.DATA)))
                 FBUtilities.renameWithConfirm(tmpdesc.filenameFor(component), newdesc.filenameFor(component));
+            // the compression info is not a Component, so it isn't part of the component set
+            if (CompressionMetadata.isCompressed(tmpdesc))
+                FBUtilities.renameWithConfirm(tmpdesc.filenameFor(CompressionMetadata.COMPONENT), newdesc.filenameFor(CompressionMetadata.COMPONENT));
             FBUtilities.renameWithConfirm(tmpdesc.filenameFor(Component.DATA), newdesc.filenameFor(Component.DATA));
         }
         catch (IOException e)
@@ -229,9 +466,231 @@ public class SSTableWriter extends SSTable
 
     public long getFilePointer()
     {
-        return dataFile.getFilePointer();
+        return writer.getFilePointer();
     }
-    
+
+    public long getRowsWritten()
+    {
+        return rowsWritten;
+    }
+
+    /**
+     * @return the bytes appended per second since this writer was created
+     */
+    public double getBytesPerSecond()
+    {
+        return bytesWritten * 1e9 / Math.max(1, System.nanoTime() - createdAt);
+    }
+
+    /**
+     * @return the write statistics of the column family of this sstable
+     */
+    public SSTableWriterMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Accumulates serialized rows in memory and hands them to the write executor once WRITE_BUFFER_SIZE bytes
+     * are pending, so that serializing the next rows overlaps with writing the previous ones to disk. Two
+     * buffers are used in turn, one being filled while the other is written; the appending thread only waits
+     * when it fills a buffer before the disk is done with the other one.
+     *
+     * The buffers are allocated once, at WRITE_BUFFER_SIZE. Rows written through stream() are split across
+     * buffers as they fill up, so they never grow them; only a row that must be whole in buffer(), to patch
+     * its size, can.
+     *
+     * A mark is only a position until the buffer holding it is written: the write task marks the file when it
+     * reaches that position, so marking doesn't wait for the disk.
+     */
+    private static class DoubleBufferedWriter
+    {
+        private final SequentialWriter out;
+        private DataOutputBuffer filling = new DataOutputBuffer(WRITE_BUFFER_SIZE);
+        private DataOutputBuffer writing = new DataOutputBuffer(WRITE_BUFFER_SIZE);
+        private Future<?> pending;
+        // position of the file once everything handed to the executor is written
+        private long position;
+        private PendingMark mark;
+
+        // appends to the buffer being filled, and submits it as soon as it is full
+        private final DataOutput stream = new DataOutputStream(new OutputStream()
+        {
+            public void write(int b) throws IOException
+            {
+                filling.write(b);
+                maybeSubmit();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                while (len > 0)
+                {
+                    int length = Math.min(len, Math.max(0, WRITE_BUFFER_SIZE - filling.getLength()));
+                    filling.write(b, off, length);
+                    off += length;
+                    len -= length;
+                    maybeSubmit();
+                }
+            }
+        });
+
+        DoubleBufferedWriter(SequentialWriter out)
+        {
+            this.out = out;
+            this.position = out.getFilePointer();
+        }
+
+        /**
+         * @return the buffer being filled, for rows to be patched once serialized; maybeSubmit() must be called
+         * once the row is complete
+         */
+        public DataOutputBuffer buffer()
+        {
+            return filling;
+        }
+
+        /**
+         * @return an output that hands the buffers to the disk as they fill up
+         */
+        public DataOutput stream()
+        {
+            return stream;
+        }
+
+        public long getFilePointer()
+        {
+            return position + filling.getLength();
+        }
+
+        public void maybeSubmit() throws IOException
+        {
+            if (filling.getLength() >= WRITE_BUFFER_SIZE)
+                submit();
+        }
+
+        /**
+         * Writes out everything buffered so far and waits for it to reach the file.
+         */
+        public void flush() throws IOException
+        {
+            if (filling.getLength() > 0)
+                submit();
+            waitForPendingWrite();
+            // a mark at the end of the buffers has not been taken by any write, and the file may be written directly next
+            if (mark != null && mark.fileMark == null && mark.position == position)
+                mark.fileMark = out.mark();
+        }
+
+        public void mark()
+        {
+            mark = new PendingMark(getFilePointer());
+        }
+
+        /**
+         * Drops everything appended since the last mark. If it is all still buffered, the buffer is truncated and
+         * the file is left alone; otherwise the file is reset to the mark taken by the write that reached it.
+         */
+        public void reset() throws IOException
+        {
+            assert mark != null;
+            waitForPendingWrite();
+            if (mark.position >= position)
+            {
+                int length = (int) (mark.position - position);
+                filling.reset();
+                // the array is left as is by reset(), so this only restores the count
+                filling.write(filling.getData(), 0, length);
+            }
+            else
+            {
+                assert mark.fileMark != null;
+                filling = trimmed(filling);
+                filling.reset();
+                out.reset(mark.fileMark);
+                position = out.getFilePointer();
+                assert position == mark.position;
+            }
+        }
+
+        private void submit() throws IOException
+        {
+            waitForPendingWrite();
+            final DataOutputBuffer toWrite = filling;
+            filling = writing;
+            filling.reset();
+            writing = toWrite;
+            final int length = toWrite.getLength();
+            // the mark falls in this buffer: have the write take it on the way
+            final PendingMark toTake = mark != null && mark.fileMark == null && mark.position >= position && mark.position < position + length
+                                     ? mark
+                                     : null;
+            final int markOffset = toTake == null ? 0 : (int) (toTake.position - position);
+            position += length;
+            pending = writeExecutor.submit(new WrappedRunnable()
+            {
+                protected void runMayThrow() throws IOException
+                {
+                    if (toTake != null)
+                    {
+                        out.write(toWrite.getData(), 0, markOffset);
+                        toTake.fileMark = out.mark();
+                    }
+                    out.write(toWrite.getData(), markOffset, length - markOffset);
+                }
+            });
+        }
+
+        private void waitForPendingWrite() throws IOException
+        {
+            if (pending == null)
+                return;
+            try
+            {
+                pending.get();
+            }
+            catch (InterruptedException e)
+            {
+                throw new AssertionError(e);
+            }
+            catch (ExecutionException e)
+            {
+                // WrappedRunnable rethrows checked exceptions wrapped in a RuntimeException
+                Throwable cause = e.getCause().getCause() == null ? e.getCause() : e.getCause().getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                throw new RuntimeException(cause);
+            }
+            finally
+            {
+                pending = null;
+                writing = trimmed(writing);
+            }
+        }
+
+        /**
+         * @return the buffer, or a new one if a large row has grown it past MAX_RETAINED_BUFFER_SIZE
+         */
+        private static DataOutputBuffer trimmed(DataOutputBuffer buffer)
+        {
+            return buffer.getData().length > MAX_RETAINED_BUFFER_SIZE ? new DataOutputBuffer(WRITE_BUFFER_SIZE) : buffer;
+        }
+
+        private static class PendingMark
+        {
+            // the logical position of the mark, as returned by getFilePointer()
+            final long position;
+            // set by whoever reaches the position in the file, and only read after waiting for the pending write
+            FileMark fileMark;
+
+            PendingMark(long position)
+            {
+                this.position = position;
+            }
+        }
+    }
+
     public static Builder createBuilder(Descriptor desc, OperationType type)
     {
         if (!desc.isLatestVersion)
@@ -249,6 +708,9 @@ public class SSTableWriter extends SSTable
      */
     public static class Builder implements CompactionInfo.Holder
     {
+        // number of threads used to rebuild the index of a non-counter sstable; 1 keeps the sequential scan
+        private static final int INDEXING_THREADS = Integer.getInteger("cassandra.sstable_build_threads", 1);
+
         private final Descriptor desc;
         private final OperationType type;
         private final ColumnFamilyStore cfs;
@@ -264,19 +726,16 @@ public class SSTableWriter extends SSTable
         public CompactionInfo getCompactionInfo()
         {
             maybeOpenIndexer();
-            try
-            {
-                // both file offsets are still valid post-close
-                return new CompactionInfo(desc.ksname,
-                                          desc.cfname,
-                                          CompactionType.SSTABLE_BUILD,
-                                          indexer.dfile.getFilePointer(),
-                                          indexer.dfile.length());
-            }
-            catch (IOException e)
-            {
-                throw new IOError(e);
-            }
+            // both file offsets are still valid post-close
+            long bytesIndexed = indexer.dfile.getFilePointer();
+            double seconds = indexer.getIndexingNanos() / 1e9;
+            return new CompactionInfo(desc.ksname,
+                                      desc.cfname,
+                                      CompactionType.SSTABLE_BUILD,
+                                      bytesIndexed,
+                                      indexer.dataLength,
+                                      seconds == 0 ? Double.NaN : bytesIndexed / seconds,
+                                      seconds == 0 ? Double.NaN : indexer.iwriter.getKeysWritten() / seconds);
         }
 
         // lazy-initialize the file to avoid opening it until it's actually executing on the CompactionManager,
@@ -288,7 +747,14 @@ public class SSTableWriter extends SSTable
             try
             {
                 if (cfs.metadata.getDefaultValidator().isCommutative())
+                {
+                    // counter rows are rewritten in place, which a compressed file doesn't allow
+                    if (CompressionMetadata.isCompressed(desc))
+                        throw new IOException("Cannot rebuild compressed counter sstable " + desc);
                     indexer = new CommutativeRowIndexer(desc, cfs, type);
+                }
+                else if (INDEXING_THREADS > 1)
+                    indexer = new ParallelRowIndexer(desc, cfs, type, INDEXING_THREADS);
                 else
                     indexer = new RowIndexer(desc, cfs, type);
             }
@@ -320,29 +786,66 @@ public class SSTableWriter extends SSTable
 
     static class RowIndexer
     {
+        // data files up to this size are scanned through a mapping rather than copied through an 8MB buffer
+        private static final long MAX_MAPPED_SIZE = Math.min(Long.getLong("cassandra.sstable_build_max_mapped_size_in_mb", 2048) * 1024 * 1024,
+                                                             Integer.MAX_VALUE);
+
+        // if set, cached rows are refreshed in the background once the sstable is indexed, instead of before
+        // it is opened; until then, reads served from the cache don't see the rebuilt rows
+        private static final boolean ASYNC_CACHE_REFRESH = Boolean.getBoolean("cassandra.sstable_build_async_cache_refresh");
+        private static final ExecutorService cacheRefreshExecutor = new DebuggableThreadPoolExecutor(1,
+                                                                                                     Integer.MAX_VALUE,
+                                                                                                     TimeUnit.SECONDS,
+                                                                                                     new LinkedBlockingQueue<Runnable>(),
+                                                                                                     new NamedThreadFactory("SSTableCacheRefresh"));
+
         protected final Descriptor desc;
-        public final BufferedRandomAccessFile dfile;
+        public final FileDataInput dfile;
+        public final long dataLength;
+        // the whole data file as a single mapped (or compressed) segment, or null if it is read through a buffer
+        protected final SegmentedFile mappedData;
         private final OperationType type;
         protected final IndexWriter iwriter;
         public final long estimatedRows;
+        // cached rows to be read back from the data file once indexing is done; appended to by the indexing threads
+        private final List<CachedRowPosition> cachedRows = Collections.synchronizedList(new ArrayList<CachedRowPosition>());
 
         protected ColumnFamilyStore cfs;
+        // read by the progress reports of the builder
+        private volatile long indexingStartedAt;
+        private volatile long indexingFinishedAt;
 
         RowIndexer(Descriptor desc, ColumnFamilyStore cfs, OperationType type) throws IOException
         {
-            this(desc, new BufferedRandomAccessFile(new File(desc.filenameFor(SSTable.COMPONENT_DATA)), "r", 8 * 1024 * 1024, true), cfs, type);
+            this(desc, mapDataFile(desc), cfs, type);
         }
 
-        protected RowIndexer(Descriptor desc, BufferedRandomAccessFile dfile, ColumnFamilyStore cfs, OperationType type) throws IOException
+        private RowIndexer(Descriptor desc, SegmentedFile mappedData, ColumnFamilyStore cfs, OperationType type) throws IOException
+        {
+            this(desc,
+                 mappedData == null
+                 ? new BufferedRandomAccessFile(new File(desc.filenameFor(SSTable.COMPONENT_DATA)), "r", 8 * 1024 * 1024, true)
+                 : mappedData.getSegment(0),
+                 mappedData,
+                 cfs,
+                 type);
+        }
+
+        protected RowIndexer(Descriptor desc, FileDataInput dfile, SegmentedFile mappedData, ColumnFamilyStore cfs, OperationType type) throws IOException
         {
             this.desc = desc;
             this.dfile = dfile;
+            this.mappedData = mappedData;
+            // positions in a compressed file are positions in its uncompressed data
+            this.dataLength = mappedData instanceof CompressedSegmentedFile
+                            ? ((CompressedSegmentedFile) mappedData).metadata.dataLength
+                            : new File(desc.filenameFor(SSTable.COMPONENT_DATA)).length();
             this.type = type;
             this.cfs = cfs;
 
             try
             {
-                this.estimatedRows = SSTable.estimateRowsFromData(desc, dfile);
+                this.estimatedRows = estimateRows(desc, dfile, dataLength);
                 this.iwriter = new IndexWriter(desc, StorageService.getPartitioner(), estimatedRows);
             }
             catch(IOException e)
@@ -352,11 +855,81 @@ public class SSTableWriter extends SSTable
             }
         }
 
+        /**
+         * Same as SSTable.estimateRowsFromData, for any kind of data input: length is the length of the data,
+         * uncompressed if the file is compressed, since that is what the row positions are counted in.
+         */
+        private static long estimateRows(Descriptor desc, FileDataInput dfile, long length) throws IOException
+        {
+            // collect sizes for the first 10000 keys, or first 10 megabytes of data
+            final int SAMPLES_CAP = 10000;
+            final long BYTES_CAP = Math.min(10000000, length);
+            int keys = 0;
+            long dataPosition = 0;
+            while (dataPosition < BYTES_CAP && keys < SAMPLES_CAP)
+            {
+                dfile.seek(dataPosition);
+                int keyLength = ByteBufferUtil.readShortLength(dfile);
+                dfile.seek(dfile.getFilePointer() + keyLength);
+                long dataSize = SSTableReader.readRowSize(dfile, desc);
+                keys++;
+                dataPosition = dfile.getFilePointer() + dataSize;
+            }
+            dfile.seek(0);
+            return keys == 0 ? 0 : length / (dataPosition / keys);
+        }
+
+        /**
+         * @return the data file mapped as a single segment, or null if the disk access mode doesn't allow mmap
+         * or if the file is over the mapping limit, in which case it should be read through a buffer.
+         * Compressed data files are always returned as a CompressedSegmentedFile.
+         */
+        private static SegmentedFile mapDataFile(Descriptor desc)
+        {
+            String path = desc.filenameFor(SSTable.COMPONENT_DATA);
+            if (CompressionMetadata.isCompressed(desc))
+                return new CompressedSegmentedFile.Builder().complete(path);
+            if (DatabaseDescriptor.getDiskAccessMode() != Config.DiskAccessMode.mmap || new File(path).length() > MAX_MAPPED_SIZE)
+                return null;
+            // no potential boundaries are added, so the builder maps the whole file and rows never straddle segments
+            return SegmentedFile.getBuilder(Config.DiskAccessMode.mmap).complete(path);
+        }
+
+        /**
+         * Opens a new reader over the data file, positioned at the given offset. Mapped files are shared without
+         * copying, compressed files are read a chunk at a time, otherwise a new buffered file of bufferSize is opened.
+         */
+        protected FileDataInput openData(long position, int bufferSize) throws IOException
+        {
+            if (mappedData != null)
+                return mappedData.getSegment(position);
+
+            BufferedRandomAccessFile file = new BufferedRandomAccessFile(new File(desc.filenameFor(SSTable.COMPONENT_DATA)), "r", bufferSize, true);
+            file.seek(position);
+            return file;
+        }
+
+        /**
+         * @return the time spent indexing so far, 0 until started
+         */
+        long getIndexingNanos()
+        {
+            long started = indexingStartedAt;
+            if (started == 0)
+                return 0;
+            long finished = indexingFinishedAt;
+            return (finished == 0 ? System.nanoTime() : finished) - started;
+        }
+
         long index() throws IOException
         {
+            indexingStartedAt = System.nanoTime();
             try
             {
-                return doIndexing();
+                long rows = doIndexing();
+                indexingFinishedAt = System.nanoTime();
+                refreshCache();
+                return rows;
             }
             finally
             {
@@ -385,6 +958,14 @@ public class SSTableWriter extends SSTable
          *     would be obsolete and so we must invalidate the cache).
          */
         protected void updateCache(DecoratedKey key, long dataSize, AbstractCompactedRow row) throws IOException
+        {
+            updateCache(key, dataSize, row, dfile);
+        }
+
+        /**
+         * Same as above, but the row (if needed) is located in the given file, which must be positioned before the columns.
+         */
+        protected void updateCache(DecoratedKey key, long dataSize, AbstractCompactedRow row, FileDataInput in) throws IOException
         {
             ColumnFamily cached = cfs.getRawCachedRow(key);
             if (cached != null)
@@ -401,22 +982,17 @@ public class SSTableWriter extends SSTable
                         }
                         else
                         {
-                            ColumnFamily cf;
                             if (row == null)
                             {
-                                // If not provided, read from disk.
-                                long position = dfile.getFilePointer();
-                                cf = ColumnFamily.create(cfs.metadata);
-                                ColumnFamily.serializer().deserializeColumns(dfile, cf, true, true);
-                                dfile.seek(position);
+                                // If not provided, read from disk, but only once indexing is done (see refreshCache)
+                                cachedRows.add(new CachedRowPosition(key, in.getFilePointer()));
                             }
                             else
                             {
                                 assert row instanceof PrecompactedRow;
                                 // we do not purge so we should not get a null here
-                                cf = ((PrecompactedRow)row).getFullColumnFamily();
+                                cfs.updateRowCache(key, ((PrecompactedRow)row).getFullColumnFamily());
                             }
-                            cfs.updateRowCache(key, cf);
                         }
                         break;
                     default:
@@ -426,6 +1002,64 @@ public class SSTableWriter extends SSTable
             }
         }
 
+        /**
+         * Runs the cached rows found during indexing by the cache, reading them in a single forward pass over
+         * the data file rather than seeking back and forth while indexing.
+         */
+        private void refreshCache() throws IOException
+        {
+            if (cachedRows.isEmpty())
+                return;
+
+            final List<CachedRowPosition> rows = new ArrayList<CachedRowPosition>(cachedRows);
+            cachedRows.clear();
+            // the parallel indexer finds them out of order
+            Collections.sort(rows);
+            // opened now, so that the file is still reachable after being renamed
+            final FileDataInput in = openData(rows.get(0).position, 8 * 1024 * 1024);
+            if (!ASYNC_CACHE_REFRESH)
+            {
+                refreshCache(rows, in);
+                return;
+            }
+
+            cacheRefreshExecutor.execute(new WrappedRunnable()
+            {
+                protected void runMayThrow() throws IOException
+                {
+                    refreshCache(rows, in);
+                }
+            });
+        }
+
+        private void refreshCache(List<CachedRowPosition> rows, FileDataInput in) throws IOException
+        {
+            long start = System.nanoTime();
+            int refreshed = 0;
+            try
+            {
+                for (CachedRowPosition row : rows)
+                {
+                    // the row may have left the cache since it was indexed
+                    if (cfs.getRawCachedRow(row.key) == null)
+                        continue;
+                    in.seek(row.position);
+                    ColumnFamily cf = ColumnFamily.create(cfs.metadata);
+                    ColumnFamily.serializer().deserializeColumns(in, cf, true, true);
+                    cfs.updateRowCache(row.key, cf);
+                    refreshed++;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            long elapsed = System.nanoTime() - start;
+            SSTableWriterMetrics.get(desc.ksname, desc.cfname).addCacheRefresh(refreshed, rows.size() - refreshed, elapsed);
+            logger.debug("Refreshed {} of {} cached rows of {} in {} ms",
+                         new Object[]{ refreshed, rows.size(), desc, TimeUnit.NANOSECONDS.toMillis(elapsed) });
+        }
+
         protected long doIndexing() throws IOException
         {
             EstimatedHistogram rowSizes = SSTable.defaultRowHistogram();
@@ -433,7 +1067,7 @@ public class SSTableWriter extends SSTable
             long rows = 0;
             DecoratedKey key;
             long rowPosition = 0;
-            while (rowPosition < dfile.length())
+            while (rowPosition < dataLength)
             {
                 // read key
                 key = SSTableReader.decodeKey(StorageService.getPartitioner(), desc, ByteBufferUtil.readWithShortLength(dfile));
@@ -462,6 +1096,194 @@ public class SSTableWriter extends SSTable
         }
     }
 
+    private static class CachedRowPosition implements Comparable<CachedRowPosition>
+    {
+        final DecoratedKey key;
+        // position of the columns of the row in the data file
+        final long position;
+
+        CachedRowPosition(DecoratedKey key, long position)
+        {
+            this.key = key;
+            this.position = position;
+        }
+
+        public int compareTo(CachedRowPosition other)
+        {
+            return position < other.position ? -1 : (position == other.position ? 0 : 1);
+        }
+    }
+
+    /*
+     * Rebuilds the index of a (non-counter) sstable using several threads.
+     *
+     * The data file is split into chunks of roughly CHUNK_SIZE bytes, aligned on row boundaries. Finding the
+     * boundaries only requires reading the key length and row size of each row, which is done sequentially
+     * on dfile; each chunk is handed to the executor as soon as its end is known. The workers do the actual
+     * per-row work (decoding the key, skipping the row bloom filter and column index, reading the row header,
+     * updating the cache) on their own file handle. Chunks are merged back in file order, which is also key
+     * order, so the resulting index, filter and statistics are the same as with the sequential RowIndexer.
+     */
+    static class ParallelRowIndexer extends RowIndexer
+    {
+        private static final long CHUNK_SIZE = 64L * 1024 * 1024;
+        // when the data file isn't mapped, every worker opens its own file: keep its buffer well below the 8MB of the scan
+        private static final int WORKER_BUFFER_SIZE = 1024 * 1024;
+
+        private final int threads;
+
+        ParallelRowIndexer(Descriptor desc, ColumnFamilyStore cfs, OperationType type, int threads) throws IOException
+        {
+            super(desc, cfs, type);
+            this.threads = threads;
+        }
+
+        @Override
+        protected long doIndexing() throws IOException
+        {
+            EstimatedHistogram rowSizes = SSTable.defaultRowHistogram();
+            EstimatedHistogram columnCounts = SSTable.defaultColumnHistogram();
+            long rows = 0;
+
+            ExecutorService executor = new DebuggableThreadPoolExecutor(threads,
+                                                                        Integer.MAX_VALUE,
+                                                                        TimeUnit.SECONDS,
+                                                                        new LinkedBlockingQueue<Runnable>(),
+                                                                        new NamedThreadFactory("SSTableIndexer"));
+            // bounds the number of chunks held in memory: the scan waits for the oldest chunk to be merged
+            Deque<Future<IndexedChunk>> pending = new ArrayDeque<Future<IndexedChunk>>();
+            try
+            {
+                long length = dataLength;
+                long chunkStart = 0;
+                int chunkRows = 0;
+                long rowPosition = 0;
+                while (rowPosition < length)
+                {
+                    dfile.seek(rowPosition);
+                    int keyLength = ByteBufferUtil.readShortLength(dfile);
+                    dfile.seek(dfile.getFilePointer() + keyLength);
+                    long dataSize = SSTableReader.readRowSize(dfile, desc);
+                    rowPosition = dfile.getFilePointer() + dataSize;
+                    chunkRows++;
+
+                    if (rowPosition - chunkStart >= CHUNK_SIZE || rowPosition >= length)
+                    {
+                        if (pending.size() >= threads * 2)
+                            rows += merge(pending.poll(), rowSizes, columnCounts);
+                        pending.add(executor.submit(new ChunkIndexer(chunkStart, rowPosition, chunkRows)));
+                        chunkStart = rowPosition;
+                        chunkRows = 0;
+                    }
+                }
+
+                while (!pending.isEmpty())
+                    rows += merge(pending.poll(), rowSizes, columnCounts);
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+
+            writeMetadata(desc, rowSizes, columnCounts, ReplayPosition.NONE);
+            return rows;
+        }
+
+        private int merge(Future<IndexedChunk> future, EstimatedHistogram rowSizes, EstimatedHistogram columnCounts) throws IOException
+        {
+            IndexedChunk chunk;
+            try
+            {
+                chunk = future.get();
+            }
+            catch (InterruptedException e)
+            {
+                throw new AssertionError(e);
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+
+            for (int i = 0; i < chunk.keys.length; i++)
+            {
+                iwriter.afterAppend(chunk.keys[i], chunk.positions[i]);
+                rowSizes.add(chunk.dataSizes[i]);
+                columnCounts.add(chunk.columnCounts[i]);
+            }
+            return chunk.keys.length;
+        }
+
+        private static class IndexedChunk
+        {
+            final DecoratedKey[] keys;
+            final long[] positions;
+            final long[] dataSizes;
+            final int[] columnCounts;
+
+            IndexedChunk(int rows)
+            {
+                keys = new DecoratedKey[rows];
+                positions = new long[rows];
+                dataSizes = new long[rows];
+                columnCounts = new int[rows];
+            }
+        }
+
+        private class ChunkIndexer implements Callable<IndexedChunk>
+        {
+            private final long start;
+            private final long end;
+            private final int rows;
+
+            ChunkIndexer(long start, long end, int rows)
+            {
+                this.start = start;
+                this.end = end;
+                this.rows = rows;
+            }
+
+            public IndexedChunk call() throws IOException
+            {
+                IndexedChunk chunk = new IndexedChunk(rows);
+                FileDataInput in = openData(start, WORKER_BUFFER_SIZE);
+                try
+                {
+                    long rowPosition = start;
+                    for (int i = 0; i < rows; i++)
+                    {
+                        in.seek(rowPosition);
+                        DecoratedKey key = SSTableReader.decodeKey(StorageService.getPartitioner(), desc, ByteBufferUtil.readWithShortLength(in));
+                        long dataSize = SSTableReader.readRowSize(in, desc);
+                        long nextPosition = in.getFilePointer() + dataSize;
+
+                        IndexHelper.skipBloomFilter(in);
+                        IndexHelper.skipIndex(in);
+                        ColumnFamily.serializer().deserializeFromSSTableNoColumns(ColumnFamily.create(cfs.metadata), in);
+
+                        // don't move that statement around, it expects the file to be before the columns
+                        updateCache(key, dataSize, null, in);
+
+                        chunk.keys[i] = key;
+                        chunk.positions[i] = rowPosition;
+                        chunk.dataSizes[i] = dataSize;
+                        chunk.columnCounts[i] = in.readInt();
+
+                        rowPosition = nextPosition;
+                    }
+                    assert rowPosition == end : "chunk ended at " + rowPosition + " instead of " + end;
+                    return chunk;
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+        }
+    }
+
     /*
      * When a sstable for a counter column family is streamed, we must ensure
      * that on the receiving node all counter column goes through the
@@ -475,12 +1297,21 @@ public class SSTableWriter extends SSTable
      */
     static class CommutativeRowIndexer extends RowIndexer
     {
+        // rows are re-read through SSTableIdentityIterator, which needs a seekable file rather than a mapped segment
+        protected final BufferedRandomAccessFile reader;
         protected BufferedRandomAccessFile writerDfile;
 
         CommutativeRowIndexer(Descriptor desc, ColumnFamilyStore cfs, OperationType type) throws IOException
         {
-            super(desc, new BufferedRandomAccessFile(new File(desc.filenameFor(SSTable.COMPONENT_DATA)), "r", 8 * 1024 * 1024, true), cfs, type);
-            writerDfile = new BufferedRandomAccessFile(new File(desc.filenameFor(SSTable.COMPONENT_DATA)), "rw", 8 * 1024 * 1024, true);
+            this(desc, new BufferedRandomAccessFile(new File(desc.filenameFor(SSTable.COMPONENT_DATA)), "r", 8 * 1024 * 1024, true), cfs, type);
+        }
+
+        private CommutativeRowIndexer(Descriptor desc, BufferedRandomAccessFile reader, ColumnFamilyStore cfs, OperationType type) throws IOException
+        {
+            super(desc, reader, null, cfs, type);
+            this.reader = reader;
+            // the rewrite is strictly sequential and never gets ahead of the reader, so a small buffer is enough
+            writerDfile = new BufferedRandomAccessFile(new File(desc.filenameFor(SSTable.COMPONENT_DATA)), "rw", BufferedRandomAccessFile.DEFAULT_BUFFER_SIZE, true);
         }
 
         @Override
@@ -492,14 +1323,14 @@ public class SSTableWriter extends SSTable
             DecoratedKey key;
 
             CompactionController controller = new CompactionController(cfs, Collections.<SSTableReader>emptyList(), Integer.MIN_VALUE, true);
-            while (!dfile.isEOF())
+            while (!reader.isEOF())
             {
                 // read key
-                key = SSTableReader.decodeKey(StorageService.getPartitioner(), desc, ByteBufferUtil.readWithShortLength(dfile));
+                key = SSTableReader.decodeKey(StorageService.getPartitioner(), desc, ByteBufferUtil.readWithShortLength(reader));
 
                 // skip data size, bloom filter, column index
-                long dataSize = SSTableReader.readRowSize(dfile, desc);
-                SSTableIdentityIterator iter = new SSTableIdentityIterator(cfs.metadata, dfile, key, dfile.getFilePointer(), dataSize, true);
+                long dataSize = SSTableReader.readRowSize(reader, desc);
+                SSTableIdentityIterator iter = new SSTableIdentityIterator(cfs.metadata, reader, key, reader.getFilePointer(), dataSize, true);
 
                 AbstractCompactedRow row = controller.getCompactedRow(iter);
                 // We don't remove any tombstone, so we can't have an empty row here
@@ -520,7 +1351,7 @@ public class SSTableWriter extends SSTable
             }
             writeMetadata(desc, rowSizes, columnCounts, ReplayPosition.NONE);
 
-            if (writerDfile.getFilePointer() != dfile.getFilePointer())
+            if (writerDfile.getFilePointer() != reader.getFilePointer())
             {
                 // truncate file to new, reduced length
                 writerDfile.setLength(writerDfile.getFilePointer());
@@ -549,6 +1380,10 @@ public class SSTableWriter extends SSTable
         public final SegmentedFile.Builder builder;
         public final IndexSummary summary;
         public final BloomFilter bf;
+        // read by the progress reports of a rebuild
+        private volatile long keysWritten;
+        // serialized size of the bloom filter, known once closed
+        private long filterSize;
         private FileMark mark;
 
         IndexWriter(Descriptor desc, IPartitioner part, long keyCount) throws IOException
@@ -557,7 +1392,7 @@ public class SSTableWriter extends SSTable
             this.partitioner = part;
             indexFile = new BufferedRandomAccessFile(new File(desc.filenameFor(SSTable.COMPONENT_INDEX)), "rw", 8 * 1024 * 1024, true);
             builder = SegmentedFile.getBuilder(DatabaseDescriptor.getIndexAccessMode());
-            summary = new IndexSummary(keyCount);
+            summary = new IndexSummary(keyCount, IndexSummary.indexInterval(desc.ksname, desc.cfname), part);
             bf = BloomFilter.getFilter(keyCount, 15);
         }
 
@@ -570,6 +1405,7 @@ public class SSTableWriter extends SSTable
             if (logger.isTraceEnabled())
                 logger.trace("wrote index of " + key + " at " + indexPosition);
 
+            keysWritten++;
             summary.maybeAddEntry(key, indexPosition);
             builder.addPotentialBoundary(indexPosition);
         }
@@ -584,6 +1420,7 @@ public class SSTableWriter extends SSTable
             DataOutputStream stream = new DataOutputStream(fos);
             BloomFilter.serializer().serialize(bf, stream);
             stream.flush();
+            filterSize = fos.getChannel().position();
             fos.getFD().sync();
             stream.close();
 
@@ -594,6 +1431,61 @@ public class SSTableWriter extends SSTable
 
             // finalize in-memory index state
             summary.complete();
+            if (logger.isDebugEnabled())
+                logger.debug(String.format("Index summary of %s samples %d of %d keys (interval %d) in %d bytes off heap; bloom filter is %d bytes",
+                                           desc, summary.getIndexPositions().size(), keysWritten, summary.getIndexInterval(), summary.offHeapSize(), filterSize));
+        }
+
+        public long getKeysWritten()
+        {
+            return keysWritten;
+        }
+
+        /**
+         * @return the native memory used by the index summary, final once closed
+         */
+        public long summarySize()
+        {
+            return summary.offHeapSize();
+        }
+
+        /**
+         * @return the size of the bloom filter, or 0 until closed
+         */
+        public long filterSize()
+        {
+            return filterSize;
+        }
+
+        /**
+         * Makes the entries written so far visible in the index file.
+         */
+        public void flush() throws IOException
+        {
+            indexFile.flush();
+        }
+
+        public long getFilePointer()
+        {
+            return indexFile.getFilePointer();
+        }
+
+        /**
+         * @return a copy of the bloom filter of the keys written so far, which later keys won't be added to
+         */
+        public BloomFilter earlyFilter() throws IOException
+        {
+            DataOutputBuffer buffer = new DataOutputBuffer();
+            BloomFilter.serializer().serialize(bf, buffer);
+            return BloomFilter.serializer().deserialize(new DataInputStream(new ByteArrayInputStream(buffer.getData(), 0, buffer.getLength())));
+        }
+
+        /**
+         * @return a completed copy of the summary of the entries written so far.
+         */
+        public IndexSummary earlySummary()
+        {
+            return summary.completedCopy();
         }
 
         public void mark()
@@ -601,6 +1493,14 @@ public class SSTableWriter extends SSTable
             mark = indexFile.mark();
         }
 
+        /**
+         * Closes the index file of an sstable given up on, leaving the files to be deleted by the caller.
+         */
+        public void abort()
+        {
+            FileUtils.closeQuietly(indexFile);
+        }
+
         public void reset() throws IOException
         {
             // we can't un-set the bloom filter addition, but extra keys in there are harmless.
@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.sstable;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.sun.management.ThreadMXBean;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.CounterColumn;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.Table;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
+import org.apache.cassandra.db.compaction.PrecompactedRow;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.io.util.DataOutputBuffer;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.streaming.OperationType;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * Times the paths by which rows reach an sstable: the three appends of SSTableWriter, of a column family as a
+ * flush does, of a compacted row as a compaction does and of serialized bytes as a binary memtable does, then
+ * the rebuild of the index and filter of the sstable as after streaming, by RowIndexer, or by
+ * CommutativeRowIndexer for counters. Each path writes narrow rows, wide rows and counter rows, all holding the
+ * same number of columns. Reports the throughput of each path and the bytes allocated per row by the thread
+ * running it, which is where rows are serialized.
+ *
+ * Usage: SSTableWriterBenchmark [columns] [columns per wide row] [value size] [keyspace] [column family] [counter column family]
+ *
+ * The storage configuration must be on the classpath as for the server, and define both column families, the
+ * second one being a counter column family. Appended rows are handed to the disk in write buffers of
+ * cassandra.sstable_write_buffer_size_in_kb, which can be set to compare buffer sizes. The sstables are written
+ * to a temporary directory. Each kind of row is run twice, the first run being a warm up.
+ */
+public class SSTableWriterBenchmark
+{
+    private static final int NARROW_ROW_COLUMNS = 5;
+    private static final String[] APPENDS = { "append cf", "append row", "append bytes" };
+
+    private static final ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // the rows counted by the rebuilds
+    private static long sink;
+
+    public static void main(String[] args) throws IOException
+    {
+        int columns = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int wideRowColumns = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int valueSize = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        String ksName = args.length > 3 ? args[3] : "Keyspace1";
+        String cfName = args.length > 4 ? args[4] : "Standard1";
+        String counterCfName = args.length > 5 ? args[5] : "Counter1";
+
+        CFMetaData metadata = DatabaseDescriptor.getCFMetaData(ksName, cfName);
+        CFMetaData counterMetadata = DatabaseDescriptor.getCFMetaData(ksName, counterCfName);
+        IPartitioner partitioner = StorageService.getPartitioner();
+        File directory = File.createTempFile("SSTableWriterBenchmark", "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Unable to create " + directory);
+
+        System.out.printf("%d columns of %d bytes, %d columns per wide row, %d KB write buffers%n",
+                          columns, valueSize, wideRowColumns, SSTableWriter.WRITE_BUFFER_SIZE / 1024);
+        System.out.printf("%-10s%-16s%14s%14s%18s%n", "Rows", "Path", "MB/s", "Rows/s", "Allocated/row (B)");
+        try
+        {
+            int generation = 0;
+            for (int round = 0; round < 2; round++)
+            {
+                String suffix = round == 0 ? " (warm up)" : "";
+                generation = run("narrow", directory, generation, metadata, partitioner, generate(metadata, partitioner, columns / NARROW_ROW_COLUMNS, NARROW_ROW_COLUMNS, valueSize), suffix);
+                generation = run("wide", directory, generation, metadata, partitioner, generate(metadata, partitioner, columns / wideRowColumns, wideRowColumns, valueSize), suffix);
+                generation = run("counter", directory, generation, counterMetadata, partitioner, generate(counterMetadata, partitioner, columns / NARROW_ROW_COLUMNS, NARROW_ROW_COLUMNS, valueSize), suffix);
+            }
+        }
+        finally
+        {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+
+    private static SortedMap<DecoratedKey, ColumnFamily> generate(CFMetaData metadata, IPartitioner partitioner, int rows, int columns, int valueSize)
+    {
+        Random random = new Random(0);
+        SortedMap<DecoratedKey, ColumnFamily> data = new TreeMap<DecoratedKey, ColumnFamily>();
+        for (int i = 0; i < rows; i++)
+        {
+            ColumnFamily cf = ColumnFamily.create(metadata);
+            for (int j = 0; j < columns; j++)
+            {
+                ByteBuffer name = ByteBufferUtil.bytes("column" + j);
+                if (metadata.getDefaultValidator().isCommutative())
+                {
+                    cf.addColumn(new CounterColumn(name, random.nextInt(1000), System.currentTimeMillis()));
+                }
+                else
+                {
+                    byte[] value = new byte[valueSize];
+                    random.nextBytes(value);
+                    cf.addColumn(new Column(name, ByteBuffer.wrap(value), System.currentTimeMillis()));
+                }
+            }
+            data.put(partitioner.decorateKey(ByteBufferUtil.bytes("key" + i)), cf);
+        }
+        return data;
+    }
+
+    /**
+     * Writes the rows through each append, then rebuilds the last sstable written.
+     * @return the last generation used
+     */
+    private static int run(String rowKind, File directory, int generation, CFMetaData metadata, IPartitioner partitioner, SortedMap<DecoratedKey, ColumnFamily> data, String suffix)
+    throws IOException
+    {
+        // the bytes of the rows as append(key, bytes) takes them, serialized before timing
+        Map<DecoratedKey, ByteBuffer> serialized = new HashMap<DecoratedKey, ByteBuffer>();
+        for (Map.Entry<DecoratedKey, ColumnFamily> row : data.entrySet())
+        {
+            DataOutputBuffer buffer = new DataOutputBuffer();
+            ColumnFamily.serializer().serializeWithIndexes(row.getValue(), buffer);
+            serialized.put(row.getKey(), ByteBuffer.wrap(buffer.getData(), 0, buffer.getLength()));
+        }
+
+        Descriptor written = null;
+        for (int append = 0; append < APPENDS.length; append++)
+        {
+            if (written != null)
+                deleteAll(directory);
+            Descriptor desc = new Descriptor(directory, metadata.ksName, metadata.cfName, ++generation, true);
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            SSTableWriter writer = new SSTableWriter(desc.filenameFor(Component.DATA), data.size(), metadata, partitioner, ReplayPosition.NONE);
+            for (Map.Entry<DecoratedKey, ColumnFamily> row : data.entrySet())
+            {
+                switch (append)
+                {
+                    case 0:
+                        writer.append(row.getKey(), row.getValue());
+                        break;
+                    case 1:
+                        writer.append(new PrecompactedRow(row.getKey(), row.getValue()));
+                        break;
+                    default:
+                        writer.append(row.getKey(), serialized.get(row.getKey()).duplicate());
+                        break;
+                }
+            }
+            written = writer.closeAndOpenReader().descriptor;
+            double seconds = (System.nanoTime() - start) / 1e9;
+            print(rowKind, APPENDS[append], new File(written.filenameFor(Component.DATA)).length(), data.size(), seconds, allocatedBytes() - allocated, suffix);
+        }
+
+        // the rebuild starts from the data file alone, as streaming leaves it
+        SSTableRebuildBenchmark.deleteRebuiltComponents(written);
+        ColumnFamilyStore cfs = Table.open(metadata.ksName).getColumnFamilyStore(metadata.cfName);
+        boolean commutative = metadata.getDefaultValidator().isCommutative();
+        long dataLength = new File(written.filenameFor(Component.DATA)).length();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        SSTableWriter.RowIndexer indexer = commutative
+                                         ? new SSTableWriter.CommutativeRowIndexer(written, cfs, OperationType.BOOTSTRAP)
+                                         : new SSTableWriter.RowIndexer(written, cfs, OperationType.BOOTSTRAP);
+        sink += indexer.index();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        print(rowKind, commutative ? "rebuild counter" : "rebuild", dataLength, data.size(), seconds, allocatedBytes() - allocated, suffix);
+        deleteAll(directory);
+        return generation;
+    }
+
+    private static void print(String rowKind, String path, long dataLength, int rows, double seconds, long allocated, String suffix)
+    {
+        System.out.printf("%-10s%-16s%14.1f%14.0f%18d%s%n",
+                          rowKind,
+                          path,
+                          dataLength / seconds / (1024 * 1024),
+                          rows / seconds,
+                          allocated / rows,
+                          suffix);
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread
+     */
+    private static long allocatedBytes()
+    {
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void deleteAll(File directory) throws IOException
+    {
+        for (File file : directory.listFiles())
+            FileUtils.deleteWithConfirm(file);
+    }
+}
@@ -0,0 +1,310 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.sstable;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.cassandra.utils.LatencyTracker;
+
+/**
+ * Write statistics of the sstables of a column family, shared by all its writers.
+ */
+public class SSTableWriterMetrics implements SSTableWriterMetricsMBean
+{
+    public static final String MBEAN_NAME_PREFIX = "org.apache.cassandra.db:type=SSTableWriters";
+
+    private static final ConcurrentMap<String, SSTableWriterMetrics> instances = new ConcurrentHashMap<String, SSTableWriterMetrics>();
+
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong sstables = new AtomicLong();
+    private final AtomicLong summaryBytes = new AtomicLong();
+    private final AtomicLong filterBytes = new AtomicLong();
+    private final AtomicLong cachedRowsRefreshed = new AtomicLong();
+    private final AtomicLong cachedRowsSkipped = new AtomicLong();
+
+    public final LatencyTracker fsync = new LatencyTracker();
+    public final LatencyTracker rename = new LatencyTracker();
+    public final LatencyTracker indexWriter = new LatencyTracker();
+    public final LatencyTracker cacheRefresh = new LatencyTracker();
+
+    private final Rate recentRows = new Rate(rows);
+    private final Rate recentBytes = new Rate(bytes);
+
+    // the writers of the column family that are still open
+    private final Set<SSTableWriter> writers = Collections.newSetFromMap(new ConcurrentHashMap<SSTableWriter, Boolean>());
+
+    private SSTableWriterMetrics()
+    {
+    }
+
+    /**
+     * @return the metrics of the given column family, registered with the platform MBean server on first use
+     */
+    public static SSTableWriterMetrics get(String ksname, String cfname)
+    {
+        String name = mbeanName(ksname, cfname);
+        SSTableWriterMetrics metrics = instances.get(name);
+        if (metrics != null)
+            return metrics;
+
+        return register(name);
+    }
+
+    // registration and unregistration are serialized, so that an instance is never registered under a name that
+    // is being unregistered
+    private static synchronized SSTableWriterMetrics register(String name)
+    {
+        SSTableWriterMetrics metrics = instances.get(name);
+        if (metrics != null)
+            return metrics;
+
+        metrics = new SSTableWriterMetrics();
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            mbs.registerMBean(metrics, new ObjectName(name));
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException(e);
+        }
+        instances.put(name, metrics);
+        return metrics;
+    }
+
+    /**
+     * Unregisters the metrics of a column family, to be called when it is dropped. Writers still open for it
+     * keep updating their (now unreachable) instance.
+     */
+    public static synchronized void unregister(String ksname, String cfname)
+    {
+        String name = mbeanName(ksname, cfname);
+        if (instances.remove(name) == null)
+            return;
+
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            mbs.unregisterMBean(new ObjectName(name));
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String mbeanName(String ksname, String cfname)
+    {
+        return MBEAN_NAME_PREFIX + ",keyspace=" + ksname + ",columnfamily=" + cfname;
+    }
+
+    public void addWriter(SSTableWriter writer)
+    {
+        writers.add(writer);
+    }
+
+    public void removeWriter(SSTableWriter writer)
+    {
+        writers.remove(writer);
+    }
+
+    public void addRow(long size)
+    {
+        rows.incrementAndGet();
+        bytes.addAndGet(size);
+    }
+
+    /**
+     * Takes back rows discarded by SSTableWriter.reset()
+     */
+    public void removeRows(long count, long size)
+    {
+        rows.addAndGet(-count);
+        bytes.addAndGet(-size);
+    }
+
+    public void addSSTable(long summarySize, long filterSize)
+    {
+        sstables.incrementAndGet();
+        summaryBytes.addAndGet(summarySize);
+        filterBytes.addAndGet(filterSize);
+    }
+
+    /**
+     * Records a pass refreshing the cached rows of a rebuilt sstable.
+     *
+     * @param refreshed rows read back into the row cache
+     * @param skipped rows that had left the cache by the time the pass reached them
+     */
+    public void addCacheRefresh(int refreshed, int skipped, long nanos)
+    {
+        cachedRowsRefreshed.addAndGet(refreshed);
+        cachedRowsSkipped.addAndGet(skipped);
+        cacheRefresh.addNano(nanos);
+    }
+
+    public long getRowsWritten()
+    {
+        return rows.get();
+    }
+
+    public long getBytesWritten()
+    {
+        return bytes.get();
+    }
+
+    public long getSSTablesWritten()
+    {
+        return sstables.get();
+    }
+
+    public Map<String, long[]> getWritesInProgress()
+    {
+        Map<String, long[]> writes = new TreeMap<String, long[]>();
+        for (SSTableWriter writer : writers)
+            writes.put(writer.getFilename(), new long[]{ writer.getRowsWritten(), (long) writer.getBytesPerSecond() });
+        return writes;
+    }
+
+    public double getRecentRowsPerSecond()
+    {
+        return recentRows.perSecond();
+    }
+
+    public double getRecentBytesPerSecond()
+    {
+        return recentBytes.perSecond();
+    }
+
+    public long getTotalFsyncLatencyMicros()
+    {
+        return fsync.getTotalLatencyMicros();
+    }
+
+    public long[] getTotalFsyncLatencyHistogramMicros()
+    {
+        return fsync.getTotalLatencyHistogramMicros();
+    }
+
+    public long[] getRecentFsyncLatencyHistogramMicros()
+    {
+        return fsync.getRecentLatencyHistogramMicros();
+    }
+
+    public long getTotalRenameLatencyMicros()
+    {
+        return rename.getTotalLatencyMicros();
+    }
+
+    public long[] getTotalRenameLatencyHistogramMicros()
+    {
+        return rename.getTotalLatencyHistogramMicros();
+    }
+
+    public long[] getRecentRenameLatencyHistogramMicros()
+    {
+        return rename.getRecentLatencyHistogramMicros();
+    }
+
+    public long getTotalIndexWriterLatencyMicros()
+    {
+        return indexWriter.getTotalLatencyMicros();
+    }
+
+    public long[] getTotalIndexWriterLatencyHistogramMicros()
+    {
+        return indexWriter.getTotalLatencyHistogramMicros();
+    }
+
+    public long[] getRecentIndexWriterLatencyHistogramMicros()
+    {
+        return indexWriter.getRecentLatencyHistogramMicros();
+    }
+
+    public long getIndexSummaryBytesWritten()
+    {
+        return summaryBytes.get();
+    }
+
+    public long getBloomFilterBytesWritten()
+    {
+        return filterBytes.get();
+    }
+
+    public long getCachedRowsRefreshed()
+    {
+        return cachedRowsRefreshed.get();
+    }
+
+    public long getCachedRowsSkipped()
+    {
+        return cachedRowsSkipped.get();
+    }
+
+    public long getTotalCacheRefreshLatencyMicros()
+    {
+        return cacheRefresh.getTotalLatencyMicros();
+    }
+
+    public long[] getTotalCacheRefreshLatencyHistogramMicros()
+    {
+        return cacheRefresh.getTotalLatencyHistogramMicros();
+    }
+
+    public long[] getRecentCacheRefreshLatencyHistogramMicros()
+    {
+        return cacheRefresh.getRecentLatencyHistogramMicros();
+    }
+
+    /**
+     * Rate of change of a counter between two calls.
+     */
+    private static class Rate
+    {
+        private final AtomicLong counter;
+        private long lastCount;
+        private long lastNanos = System.nanoTime();
+
+        Rate(AtomicLong counter)
+        {
+            this.counter = counter;
+        }
+
+        synchronized double perSecond()
+        {
+            long count = counter.get();
+            long now = System.nanoTime();
+            double rate = (count - lastCount) * 1e9 / Math.max(1, now - lastNanos);
+            lastCount = count;
+            lastNanos = now;
+            return rate;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.sstable;
+
+import java.util.Map;
+
+public interface SSTableWriterMetricsMBean
+{
+    public long getRowsWritten();
+    public long getBytesWritten();
+    public long getSSTablesWritten();
+
+    /**
+     * @return rows (resp. bytes) written per second since the last call
+     */
+    public double getRecentRowsPerSecond();
+    public double getRecentBytesPerSecond();
+
+    /**
+     * @return the rows written, and the bytes written per second since it was created, of each sstable being
+     * written, by data file
+     */
+    public Map<String, long[]> getWritesInProgress();
+
+    /**
+     * Time spent forcing the data file to disk when closing it
+     */
+    public long getTotalFsyncLatencyMicros();
+    public long[] getTotalFsyncLatencyHistogramMicros();
+    public long[] getRecentFsyncLatencyHistogramMicros();
+
+    /**
+     * Time spent renaming the components of a finished sstable
+     */
+    public long getTotalRenameLatencyMicros();
+    public long[] getTotalRenameLatencyHistogramMicros();
+    public long[] getRecentRenameLatencyHistogramMicros();
+
+    /**
+     * Time spent writing the primary index and bloom filter of an sstable, per sstable
+     */
+    public long getTotalIndexWriterLatencyMicros();
+    public long[] getTotalIndexWriterLatencyHistogramMicros();
+    public long[] getRecentIndexWriterLatencyHistogramMicros();
+
+    /**
+     * Native memory used by the index summaries, and size of the bloom filters, of the sstables written
+     */
+    public long getIndexSummaryBytesWritten();
+    public long getBloomFilterBytesWritten();
+
+    /**
+     * Cached rows read back into the row cache after rebuilding an sstable, and those that had left the cache
+     * by the time they were reached
+     */
+    public long getCachedRowsRefreshed();
+    public long getCachedRowsSkipped();
+
+    /**
+     * Time spent refreshing the cached rows of a rebuilt sstable, per sstable
+     */
+    public long getTotalCacheRefreshLatencyMicros();
+    public long[] getTotalCacheRefreshLatencyHistogramMicros();
+    public long[] getRecentCacheRefreshLatencyHistogramMicros();
+}
@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.io.util;
+
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A file written sequentially, such as the data file of an sstable being written.
+ */
+public interface SequentialWriter extends DataOutput, Closeable
+{
+    public String getPath();
+
+    public long getFilePointer();
+
+    public FileMark mark();
+
+    /**
+     * Drops everything written since the mark was taken.
+     */
+    public void reset(FileMark mark) throws IOException;
+
+    /**
+     * Makes what was written so far visible to readers of the file; writers that need complete blocks of
+     * data before writing them may only flush those.
+     */
+    public void flush() throws IOException;
+}
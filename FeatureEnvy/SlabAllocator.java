@@ -0,0 +1,214 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.io.util.Memory;
+
+/**
+ * Allocates native memory slots from pages of a fixed size, memcached style: slot sizes grow geometrically
+ * from MIN_SLOT_SIZE, each size class carving its own pages into slots, and freed slots being reused by
+ * their class. Allocations larger than a quarter of a page get their own Memory.
+ *
+ * The free slots of a page are linked through their own first bytes, so free space costs no heap. A page
+ * whose slots are all free is given back, except for one per size class kept to absorb churn, so memory
+ * freed by a size class can be reused by the others.
+ */
+public class SlabAllocator
+{
+    private static final int MIN_SLOT_SIZE = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private final int pageSize;
+    private final SizeClass[] sizeClasses;
+    private final AtomicLong allocated = new AtomicLong();
+
+    public SlabAllocator(int pageSize)
+    {
+        this.pageSize = pageSize;
+        int classes = 0;
+        for (double size = MIN_SLOT_SIZE; size <= pageSize / 4; size *= GROWTH_FACTOR)
+            classes++;
+        sizeClasses = new SizeClass[classes];
+        double size = MIN_SLOT_SIZE;
+        for (int i = 0; i < classes; i++, size *= GROWTH_FACTOR)
+            sizeClasses[i] = new SizeClass(((int) size + 7) & ~7); // 8 bytes aligned
+    }
+
+    public Slot allocate(int size)
+    {
+        SizeClass sizeClass = sizeClass(size);
+        if (sizeClass == null)
+        {
+            allocated.addAndGet(size);
+            return new Slot(Memory.allocate(size), null, 0, size);
+        }
+        return sizeClass.allocate();
+    }
+
+    public void free(Slot slot)
+    {
+        if (slot.page == null)
+        {
+            slot.memory.free();
+            allocated.addAndGet(-slot.capacity);
+        }
+        else
+        {
+            slot.page.sizeClass.free(slot);
+        }
+    }
+
+    /**
+     * @return the native memory allocated, including free slots
+     */
+    public long allocated()
+    {
+        return allocated.get();
+    }
+
+    private SizeClass sizeClass(int size)
+    {
+        for (SizeClass sizeClass : sizeClasses)
+        {
+            if (size <= sizeClass.slotSize)
+                return sizeClass;
+        }
+        return null;
+    }
+
+    private class SizeClass
+    {
+        final int slotSize;
+        final int slotsPerPage;
+        // pages with at least one free slot, in the order they got one
+        private final Set<Page> partialPages = new LinkedHashSet<Page>();
+        private int emptyPages;
+
+        SizeClass(int slotSize)
+        {
+            this.slotSize = slotSize;
+            this.slotsPerPage = pageSize / slotSize;
+        }
+
+        synchronized Slot allocate()
+        {
+            Iterator<Page> iter = partialPages.iterator();
+            Page page;
+            if (iter.hasNext())
+            {
+                page = iter.next();
+            }
+            else
+            {
+                page = new Page(this, Memory.allocate(pageSize));
+                allocated.addAndGet(pageSize);
+                partialPages.add(page);
+                emptyPages++;
+            }
+
+            if (page.used == 0)
+                emptyPages--;
+            long offset = page.take();
+            if (page.used == slotsPerPage)
+                partialPages.remove(page);
+            return new Slot(page.memory, page, offset, slotSize);
+        }
+
+        synchronized void free(Slot slot)
+        {
+            Page page = slot.page;
+            if (page.used == slotsPerPage)
+                partialPages.add(page);
+            page.give(slot.offset);
+            if (page.used > 0)
+                return;
+
+            if (emptyPages == 0)
+            {
+                emptyPages++;
+                return;
+            }
+            partialPages.remove(page);
+            page.memory.free();
+            allocated.addAndGet(-pageSize);
+        }
+    }
+
+    /**
+     * A page of slots of a single size class. Slots past nextUnused have never been handed out; the others
+     * that are free form a stack, each holding the offset of the next one in its first 8 bytes.
+     */
+    private static class Page
+    {
+        final SizeClass sizeClass;
+        final Memory memory;
+        private long nextUnused;
+        private long freeHead = -1;
+        int used;
+
+        Page(SizeClass sizeClass, Memory memory)
+        {
+            this.sizeClass = sizeClass;
+            this.memory = memory;
+        }
+
+        long take()
+        {
+            used++;
+            if (freeHead >= 0)
+            {
+                long offset = freeHead;
+                freeHead = memory.getLong(offset);
+                return offset;
+            }
+            long offset = nextUnused;
+            nextUnused += sizeClass.slotSize;
+            return offset;
+        }
+
+        void give(long offset)
+        {
+            memory.setLong(offset, freeHead);
+            freeHead = offset;
+            used--;
+        }
+    }
+
+    public static class Slot
+    {
+        public final Memory memory;
+        public final long offset;
+        public final int capacity;
+        // null for the allocations that have their own Memory
+        private final Page page;
+
+        private Slot(Memory memory, Page page, long offset, int capacity)
+        {
+            this.memory = memory;
+            this.page = page;
+            this.offset = offset;
+            this.capacity = capacity;
+        }
+    }
+}
@@ -18,45 +18,60 @@
 
 package org.apache.cassandra.locator;
 
+import java.math.BigInteger;
 import java.util.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.RandomPartitioner;
 import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.net.EndPoint;
 import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.gms.EndPointState;
 import org.apache.cassandra.gms.FailureDetector;
+import org.apache.cassandra.gms.Gossiper;
+import org.apache.cassandra.gms.IEndPointStateChangeSubscriber;
+import org.apache.cassandra.gms.IFailureDetectionEventListener;
 import org.apache.cassandra.service.UnavailableException;
 
+/**
+ * The ring is held in an immutable Snapshot published through a volatile reference: readers never lock,
+ * and every update builds a new snapshot from the current one (updates are serialized among themselves).
+ */
 public class TokenMetadata
 {
-    /* Maintains token to endpoint map of every node in the cluster. */
-    private Map<Token, EndPoint> tokenToEndPointMap_;
-    /* Maintains a reverse index of endpoint to token in the cluster. */
-    private Map<EndPoint, Token> endPointToTokenMap_;
-    /* Bootstrapping nodes and their tokens */
-    private Map<Token, EndPoint> bootstrapNodes;
-    
-    /* Use this lock for manipulating the token map */
-    private final ReadWriteLock lock_ = new ReentrantReadWriteLock(true);
+    /* Liveness of every endpoint ever seen in a ring, shared by all the snapshots */
+    private static final Liveness liveness = new Liveness();
+
+    static
+    {
+        RingSummaryService.register();
+    }
+
+    private volatile Snapshot snapshot;
 
     public TokenMetadata()
     {
-        tokenToEndPointMap_ = new HashMap<Token, EndPoint>();
-        endPointToTokenMap_ = new HashMap<EndPoint, Token>();
-        this.bootstrapNodes = Collections.synchronizedMap(new HashMap<Token, EndPoint>());
+        snapshot = new Snapshot(new HashMap<Token, EndPoint>(), new HashMap<EndPoint, Token>(), new HashMap<Token, EndPoint>());
     }
 
     public TokenMetadata(Map<Token, EndPoint> tokenToEndPointMap, Map<EndPoint, Token> endPointToTokenMap, Map<Token, EndPoint> bootstrapNodes)
     {
-        tokenToEndPointMap_ = tokenToEndPointMap;
-        endPointToTokenMap_ = endPointToTokenMap;
-        this.bootstrapNodes = bootstrapNodes;
+        snapshot = new Snapshot(new HashMap<Token, EndPoint>(tokenToEndPointMap),
+                                new HashMap<EndPoint, Token>(endPointToTokenMap),
+                                new HashMap<Token, EndPoint>(bootstrapNodes));
     }
-    
+
+    private TokenMetadata(Snapshot snapshot)
+    {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Snapshots are immutable, so the clone shares the current one until either side is updated.
+     */
     public TokenMetadata cloneMe()
     {
-        return new TokenMetadata(cloneTokenEndPointMap(), cloneEndPointTokenMap(), cloneBootstrapNodes());
+        return new TokenMetadata(snapshot);
     }
         
     public void update(Token token, EndPoint endpoint)
@@ -66,135 +81,189 @@ public class TokenMetadata
     /**
      * Update the two maps in an safe mode. 
     */
-    public void update(Token token, EndPoint endpoint, boolean bootstrapState)
+    public synchronized void update(Token token, EndPoint endpoint, boolean bootstrapState)
     {
-        lock_.writeLock().lock();
-        try
+        Snapshot current = snapshot;
+        Map<Token, EndPoint> tokenToEndPointMap = new HashMap<Token, EndPoint>(current.tokenToEndPointMap);
+        Map<EndPoint, Token> endPointToTokenMap = new HashMap<EndPoint, Token>(current.endPointToTokenMap);
+        Map<Token, EndPoint> bootstrapNodes = new HashMap<Token, EndPoint>(current.bootstrapNodes);
+        if (bootstrapState)
         {
-            if (bootstrapState)
-            {
-                bootstrapNodes.put(token, endpoint);
-                this.remove(endpoint);
-            }
-            else
-            {
-                bootstrapNodes.remove(token); // If this happened to be there 
-                Token oldToken = endPointToTokenMap_.get(endpoint);
-                if ( oldToken != null )
-                    tokenToEndPointMap_.remove(oldToken);
-                tokenToEndPointMap_.put(token, endpoint);
-                endPointToTokenMap_.put(endpoint, token);
-            }
+            bootstrapNodes.put(token, endpoint);
+            Token oldToken = endPointToTokenMap.remove(endpoint);
+            if ( oldToken != null )
+                tokenToEndPointMap.remove(oldToken);
         }
-        finally
+        else
         {
-            lock_.writeLock().unlock();
+            bootstrapNodes.remove(token); // If this happened to be there 
+            Token oldToken = endPointToTokenMap.get(endpoint);
+            if ( oldToken != null )
+                tokenToEndPointMap.remove(oldToken);
+            tokenToEndPointMap.put(token, endpoint);
+            endPointToTokenMap.put(endpoint, token);
         }
+        snapshot = new Snapshot(tokenToEndPointMap, endPointToTokenMap, bootstrapNodes);
     }
     
     /**
      * Remove the entries in the two maps.
      * @param endpoint
      */
-    public void remove(EndPoint endpoint)
+    public synchronized void remove(EndPoint endpoint)
     {
-        lock_.writeLock().lock();
-        try
-        {            
-            Token oldToken = endPointToTokenMap_.get(endpoint);
-            if ( oldToken != null )
-                tokenToEndPointMap_.remove(oldToken);            
-            endPointToTokenMap_.remove(endpoint);
-        }
-        finally
-        {
-            lock_.writeLock().unlock();
-        }
+        Snapshot current = snapshot;
+        if (!current.endPointToTokenMap.containsKey(endpoint))
+            return;
+        Map<Token, EndPoint> tokenToEndPointMap = new HashMap<Token, EndPoint>(current.tokenToEndPointMap);
+        Map<EndPoint, Token> endPointToTokenMap = new HashMap<EndPoint, Token>(current.endPointToTokenMap);
+        tokenToEndPointMap.remove(endPointToTokenMap.remove(endpoint));
+        snapshot = new Snapshot(tokenToEndPointMap, endPointToTokenMap, new HashMap<Token, EndPoint>(current.bootstrapNodes));
     }
     
     public Token getToken(EndPoint endpoint)
     {
-        lock_.readLock().lock();
-        try
-        {
-            return endPointToTokenMap_.get(endpoint);
-        }
-        finally
-        {
-            lock_.readLock().unlock();
-        }
+        return snapshot.endPointToTokenMap.get(endpoint);
     }
     
     public boolean isKnownEndPoint(EndPoint ep)
     {
-        lock_.readLock().lock();
-        try
+        return snapshot.endPointToTokenMap.containsKey(ep);
+    }
+
+    public EndPoint getFirstEndpoint()
+    {
+        Snapshot current = snapshot;
+        return current.sortedEndPoints.length == 0 ? null : current.sortedEndPoints[0];
+    }
+    
+
+    public EndPoint getNextEndpoint(EndPoint endPoint) throws UnavailableException
+    {
+        Snapshot current = snapshot;
+        Token[] tokens = current.sortedTokens;
+        if (tokens.length == 0)
+            return null;
+        Token token = current.endPointToTokenMap.get(endPoint);
+        // an unknown endpoint starts from the first token, i.e. follows the last one
+        int i = token == null ? tokens.length - 1 : Arrays.binarySearch(tokens, token);
+        long[] alive = liveness.bitmap;
+        for (int endPointIndex : current.successors[i])
         {
-            return endPointToTokenMap_.containsKey(ep);
+            if (isSet(alive, current.livenessIds[endPointIndex]))
+                return current.endPoints[endPointIndex];
         }
-        finally
+        throw new UnavailableException();
+    }
+
+    /**
+     * @return the replicas of the given token: the endpoints of the replication factor distinct tokens
+     * following it on the ring, bootstrapping nodes included. The list must not be modified.
+     */
+    public List<EndPoint> getReplicaEndPoints(Token token)
+    {
+        return getReplicaEndPoints(snapshot, token);
+    }
+
+    private static List<EndPoint> getReplicaEndPoints(Snapshot current, Token token)
+    {
+        Token[] ring = current.ringTokens;
+        if (ring.length == 0)
+            return Collections.emptyList();
+        int i = Arrays.binarySearch(ring, token);
+        if (i < 0)
+            i = -i - 1;
+        return current.replicas[i == ring.length ? 0 : i];
+    }
+
+    /**
+     * @return the replicas of the given token that are alive, as last reported by gossip and the failure detector
+     */
+    public List<EndPoint> getLiveReplicaEndPoints(Token token)
+    {
+        Snapshot current = snapshot;
+        long[] alive = liveness.bitmap;
+        List<EndPoint> replicas = getReplicaEndPoints(current, token);
+        List<EndPoint> live = new ArrayList<EndPoint>(replicas.size());
+        for (EndPoint ep : replicas)
         {
-            lock_.readLock().unlock();
+            if (isSet(alive, current.livenessIds[current.endPointIndex.get(ep)]))
+                live.add(ep);
         }
+        return live;
     }
 
-    public EndPoint getFirstEndpoint()
+    /**
+     * @param partitioner the partitioner of the ring, which tells how much of the token space each range covers
+     * @param loads bytes stored by each endpoint, where known
+     * @return the ring, bootstrapping nodes included, packed for sending to tools in one piece
+     */
+    public RingSummary getRingSummary(IPartitioner partitioner, Map<EndPoint, Double> loads)
     {
-        lock_.readLock().lock();
-        try
+        Snapshot current = snapshot;
+        Token[] ringTokens = current.ringTokens;
+
+        String[] tokens = new String[ringTokens.length];
+        int[] owners = new int[tokens.length];
+        int[] replicaCounts = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++)
         {
-            ArrayList<Token> tokens = new ArrayList<Token>(tokenToEndPointMap_.keySet());
-            if (tokens.isEmpty())
-                return null;
-            Collections.sort(tokens);
-            return tokenToEndPointMap_.get(tokens.get(0));
+            tokens[i] = ringTokens[i].toString();
+            owners[i] = current.ringOwners[i];
+            replicaCounts[i] = current.replicas[i].size();
         }
-        finally
+
+        String[] endPoints = new String[current.endPoints.length];
+        double[] endPointLoads = new double[endPoints.length];
+        for (int i = 0; i < endPoints.length; i++)
         {
-            lock_.readLock().unlock();
+            endPoints[i] = current.endPoints[i].getHost();
+            Double load = loads.get(current.endPoints[i]);
+            endPointLoads[i] = load == null ? Double.NaN : load;
         }
+        float[] ownership = partitioner instanceof RandomPartitioner ? randomOwnership(ringTokens) : null;
+        return new RingSummary(partitioner.getClass().getName(), tokens, owners, replicaCounts, ownership, endPoints, endPointLoads);
     }
-    
 
-    public EndPoint getNextEndpoint(EndPoint endPoint) throws UnavailableException
+    /**
+     * @return the fraction of the RandomPartitioner token space, [0, 2**127], covered by each range
+     */
+    private static float[] randomOwnership(Token[] ringTokens)
     {
-        lock_.readLock().lock();
-        try
+        BigInteger tokenSpace = BigInteger.valueOf(2).pow(127);
+        float[] ownership = new float[ringTokens.length];
+        if (ringTokens.length == 1)
         {
-            ArrayList<Token> tokens = new ArrayList<Token>(tokenToEndPointMap_.keySet());
-            if (tokens.isEmpty())
-                return null;
-            Collections.sort(tokens);
-            int i = tokens.indexOf(endPointToTokenMap_.get(endPoint)); // TODO binary search
-            int j = 1;
-            EndPoint ep;
-            while (!FailureDetector.instance().isAlive((ep = tokenToEndPointMap_.get(tokens.get((i + j) % tokens.size())))))
-            {
-                if (++j > DatabaseDescriptor.getReplicationFactor())
-                {
-                    throw new UnavailableException();
-                }
-            }
-            return ep;
+            ownership[0] = 1f;
+            return ownership;
         }
-        finally
+        for (int i = 0; i < ringTokens.length; i++)
         {
-            lock_.readLock().unlock();
+            BigInteger previous = (BigInteger) ringTokens[i == 0 ? ringTokens.length - 1 : i - 1].token;
+            BigInteger width = ((BigInteger) ringTokens[i].token).subtract(previous);
+            if (width.signum() <= 0)
+                width = width.add(tokenSpace);
+            ownership[i] = width.multiply(BigInteger.valueOf(1000000)).divide(tokenSpace).floatValue() / 1000000;
         }
+        return ownership;
+    }
+
+    /**
+     * Marks an endpoint of the ring alive, as gossip would, for tools running without it.
+     */
+    static void markAlive(EndPoint ep)
+    {
+        liveness.onAlive(ep, null);
+    }
+
+    private static boolean isSet(long[] bitmap, int index)
+    {
+        return (bitmap[index >>> 6] & (1L << index)) != 0;
     }
     
     public Map<Token, EndPoint> cloneBootstrapNodes()
     {
-        lock_.readLock().lock();
-        try
-        {            
-            return new HashMap<Token, EndPoint>( bootstrapNodes );
-        }
-        finally
-        {
-            lock_.readLock().unlock();
-        }
-        
+        return new HashMap<Token, EndPoint>( snapshot.bootstrapNodes );
     }
 
     /*
@@ -202,33 +271,15 @@ public class TokenMetadata
     */
     public Map<Token, EndPoint> cloneTokenEndPointMap()
     {
-        lock_.readLock().lock();
-        try
-        {            
-            return new HashMap<Token, EndPoint>( tokenToEndPointMap_ );
-        }
-        finally
-        {
-            lock_.readLock().unlock();
-        }
+        return new HashMap<Token, EndPoint>( snapshot.tokenToEndPointMap );
     }
     
     public Map<Token, EndPoint> cloneTokenEndPointMapIncludingBootstrapNodes()
     {
-        lock_.readLock().lock();
-        try
-        {            
-            Map h1 = new HashMap<Token, EndPoint>( tokenToEndPointMap_ );
-            for (Map.Entry<Token, EndPoint> e: bootstrapNodes.entrySet())
-            {
-                h1.put(e.getKey(), e.getValue());
-            }
-            return h1;
-        }
-        finally
-        {
-            lock_.readLock().unlock();
-        }
+        Snapshot current = snapshot;
+        Map<Token, EndPoint> h1 = new HashMap<Token, EndPoint>( current.tokenToEndPointMap );
+        h1.putAll(current.bootstrapNodes);
+        return h1;
     }
     
     /*
@@ -236,30 +287,180 @@ public class TokenMetadata
     */
     public Map<EndPoint, Token> cloneEndPointTokenMap()
     {
-        lock_.readLock().lock();
-        try
-        {            
-            return new HashMap<EndPoint, Token>( endPointToTokenMap_ );
-        }
-        finally
-        {
-            lock_.readLock().unlock();
-        }
+        return new HashMap<EndPoint, Token>( snapshot.endPointToTokenMap );
     }
     
     public String toString()
     {
         StringBuilder sb = new StringBuilder();
-        Set<EndPoint> eps = endPointToTokenMap_.keySet();
-        
-        for ( EndPoint ep : eps )
+        for ( Map.Entry<EndPoint, Token> entry : snapshot.endPointToTokenMap.entrySet() )
         {
-            sb.append(ep);
+            sb.append(entry.getKey());
             sb.append(":");
-            sb.append(endPointToTokenMap_.get(ep));
+            sb.append(entry.getValue());
             sb.append(System.getProperty("line.separator"));
         }
         
         return sb.toString();
     }
+
+    /**
+     * An immutable state of the ring. The maps given to the constructor must not be modified afterwards.
+     */
+    private static class Snapshot
+    {
+        /* Maintains token to endpoint map of every node in the cluster. */
+        final Map<Token, EndPoint> tokenToEndPointMap;
+        /* Maintains a reverse index of endpoint to token in the cluster. */
+        final Map<EndPoint, Token> endPointToTokenMap;
+        /* Bootstrapping nodes and their tokens */
+        final Map<Token, EndPoint> bootstrapNodes;
+        /* The tokens of tokenToEndPointMap in ring order, and their endpoints */
+        final Token[] sortedTokens;
+        final EndPoint[] sortedEndPoints;
+
+        /* Every endpoint, normal or bootstrapping, with its index in this array and its bit in the liveness bitmap */
+        final EndPoint[] endPoints;
+        final Map<EndPoint, Integer> endPointIndex = new HashMap<EndPoint, Integer>();
+        final int[] livenessIds;
+        /* For each token of sortedTokens, the endpoint indexes of the replication factor tokens following it */
+        final int[][] successors;
+        /* The tokens of the ring including bootstrapping nodes, with the endpoint index of their owner and their replicas */
+        final Token[] ringTokens;
+        final int[] ringOwners;
+        final List<EndPoint>[] replicas;
+
+        @SuppressWarnings("unchecked")
+        Snapshot(Map<Token, EndPoint> tokenToEndPointMap, Map<EndPoint, Token> endPointToTokenMap, Map<Token, EndPoint> bootstrapNodes)
+        {
+            this.tokenToEndPointMap = Collections.unmodifiableMap(tokenToEndPointMap);
+            this.endPointToTokenMap = Collections.unmodifiableMap(endPointToTokenMap);
+            this.bootstrapNodes = Collections.unmodifiableMap(bootstrapNodes);
+            int replicationFactor = DatabaseDescriptor.getReplicationFactor();
+
+            sortedTokens = tokenToEndPointMap.keySet().toArray(new Token[tokenToEndPointMap.size()]);
+            Arrays.sort(sortedTokens);
+            sortedEndPoints = new EndPoint[sortedTokens.length];
+            for (int i = 0; i < sortedTokens.length; i++)
+                sortedEndPoints[i] = tokenToEndPointMap.get(sortedTokens[i]);
+
+            Map<Token, EndPoint> ring = new HashMap<Token, EndPoint>(tokenToEndPointMap);
+            ring.putAll(bootstrapNodes);
+            List<EndPoint> all = new ArrayList<EndPoint>(new HashSet<EndPoint>(ring.values()));
+            endPoints = all.toArray(new EndPoint[all.size()]);
+            livenessIds = new int[endPoints.length];
+            for (int i = 0; i < endPoints.length; i++)
+            {
+                endPointIndex.put(endPoints[i], i);
+                livenessIds[i] = liveness.idOf(endPoints[i]);
+            }
+
+            // same walk as the original getNextEndpoint: the replication factor next positions, wrapping around
+            successors = new int[sortedTokens.length][];
+            for (int i = 0; i < sortedTokens.length; i++)
+            {
+                successors[i] = new int[replicationFactor];
+                for (int j = 1; j <= replicationFactor; j++)
+                    successors[i][j - 1] = endPointIndex.get(sortedEndPoints[(i + j) % sortedTokens.length]);
+            }
+
+            ringTokens = ring.keySet().toArray(new Token[ring.size()]);
+            Arrays.sort(ringTokens);
+            ringOwners = new int[ringTokens.length];
+            replicas = new List[ringTokens.length];
+            for (int i = 0; i < ringTokens.length; i++)
+            {
+                ringOwners[i] = endPointIndex.get(ring.get(ringTokens[i]));
+                List<EndPoint> endpoints = new ArrayList<EndPoint>(replicationFactor);
+                for (int j = 0; j < ringTokens.length && endpoints.size() < replicationFactor; j++)
+                {
+                    EndPoint ep = ring.get(ringTokens[(i + j) % ringTokens.length]);
+                    if (!endpoints.contains(ep))
+                        endpoints.add(ep);
+                }
+                replicas[i] = Collections.unmodifiableList(endpoints);
+            }
+        }
+    }
+
+    /**
+     * One bit per endpoint, set while the endpoint is alive. Endpoints get their bit the first time a snapshot
+     * includes them, from what the failure detector says then; afterwards the bit is flipped as soon as gossip
+     * marks the endpoint alive or dead, or the failure detector convicts or suspects it. Request threads only
+     * read the bitmap, which is copied on every change so that it can be read without locking.
+     */
+    private static class Liveness implements IFailureDetectionEventListener, IEndPointStateChangeSubscriber
+    {
+        volatile long[] bitmap = new long[1];
+        private final Map<EndPoint, Integer> ids = new HashMap<EndPoint, Integer>();
+        private boolean registered;
+
+        synchronized int idOf(EndPoint ep)
+        {
+            Integer id = ids.get(ep);
+            if (id != null)
+                return id;
+            if (!registered)
+            {
+                FailureDetector.instance().registerFailureDetectionEventListener(this);
+                Gossiper.instance().register(this);
+                registered = true;
+            }
+            id = ids.size();
+            ids.put(ep, id);
+            set(id, FailureDetector.instance().isAlive(ep));
+            return id;
+        }
+
+        private synchronized void set(EndPoint ep, boolean isAlive)
+        {
+            Integer id = ids.get(ep);
+            // endpoints not in any ring yet get their state when they join one
+            if (id != null)
+                set(id, isAlive);
+        }
+
+        private void set(int id, boolean isAlive)
+        {
+            long[] current = bitmap;
+            if (id < current.length * 64 && isSet(current, id) == isAlive)
+                return;
+            long[] updated = Arrays.copyOf(current, Math.max(current.length, (id >>> 6) + 1));
+            if (isAlive)
+                updated[id >>> 6] |= 1L << id;
+            else
+                updated[id >>> 6] &= ~(1L << id);
+            bitmap = updated;
+        }
+
+        public void convict(EndPoint ep)
+        {
+            set(ep, false);
+        }
+
+        public void suspect(EndPoint ep)
+        {
+            set(ep, false);
+        }
+
+        public void onJoin(EndPoint endpoint, EndPointState epState)
+        {
+            set(endpoint, FailureDetector.instance().isAlive(endpoint));
+        }
+
+        public void onChange(EndPoint endpoint, EndPointState epState)
+        {
+            set(endpoint, FailureDetector.instance().isAlive(endpoint));
+        }
+
+        public void onAlive(EndPoint endpoint, EndPointState state)
+        {
+            set(endpoint, true);
+        }
+
+        public void onDead(EndPoint endpoint, EndPointState state)
+        {
+            set(endpoint, false);
+        }
+    }
 }
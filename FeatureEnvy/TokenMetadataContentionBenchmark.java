@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.locator;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.cassandra.dht.BigIntegerToken;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.net.EndPoint;
+
+/**
+ * Compares the read throughput of TokenMetadata, whose ring is an immutable snapshot, with the same reads done
+ * under a fair read-write lock as it used to, while a writer keeps moving tokens around as gossip would.
+ *
+ * Usage: TokenMetadataContentionBenchmark [reader threads] [ring size] [seconds per run] [writer pause in ms]
+ *
+ * The storage configuration must be on the classpath as for the server. Each implementation is run twice,
+ * the first run being a warm up.
+ */
+public class TokenMetadataContentionBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int ringSize = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int writerPause = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        Random random = new Random(0);
+        List<EndPoint> endPoints = new ArrayList<EndPoint>(ringSize);
+        for (int i = 0; i < ringSize; i++)
+            endPoints.add(new EndPoint("10.0." + (i >> 8) + "." + (i & 0xff), 7000));
+
+        System.out.printf("%d readers, %d tokens, %d ms between updates%n", threads, ringSize, writerPause);
+        System.out.printf("%-10s%18s%18s%n", "Ring", "Reads/s", "Updates/s");
+        for (int round = 0; round < 2; round++)
+        {
+            String suffix = round == 0 ? " (warm up)" : "";
+            long[] snapshot = run(new SnapshotRing(), endPoints, random, threads, seconds, writerPause);
+            System.out.printf("%-10s%18d%18d%s%n", "snapshot", snapshot[0], snapshot[1], suffix);
+            long[] locked = run(new LockedRing(), endPoints, random, threads, seconds, writerPause);
+            System.out.printf("%-10s%18d%18d%s%n", "rw-lock", locked[0], locked[1], suffix);
+        }
+    }
+
+    private static Token randomToken(Random random)
+    {
+        return new BigIntegerToken(new BigInteger(127, random));
+    }
+
+    /**
+     * @return the reads and the updates per second
+     */
+    private static long[] run(final Ring ring, final List<EndPoint> endPoints, final Random random, int threads, int seconds, final int writerPause)
+        throws InterruptedException
+    {
+        for (EndPoint endPoint : endPoints)
+            ring.update(randomToken(random), endPoint);
+
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong updates = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads + 1);
+        for (int t = 0; t < threads; t++)
+        {
+            final int offset = t;
+            new Thread("reader-" + t)
+            {
+                public void run()
+                {
+                    long count = 0;
+                    int i = offset;
+                    // only look at the clock every few reads so that it doesn't dominate
+                    while ((count & 1023) != 0 || System.nanoTime() < deadline)
+                    {
+                        EndPoint endPoint = endPoints.get(i++ % endPoints.size());
+                        if (ring.getToken(endPoint) == null || !ring.isKnownEndPoint(endPoint) || ring.getFirstEndpoint() == null)
+                            throw new AssertionError();
+                        count++;
+                    }
+                    reads.addAndGet(count);
+                    done.countDown();
+                }
+            }.start();
+        }
+        new Thread("writer")
+        {
+            public void run()
+            {
+                while (System.nanoTime() < deadline)
+                {
+                    ring.update(randomToken(random), endPoints.get(random.nextInt(endPoints.size())));
+                    updates.incrementAndGet();
+                    try
+                    {
+                        Thread.sleep(writerPause);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new AssertionError(e);
+                    }
+                }
+                done.countDown();
+            }
+        }.start();
+        done.await();
+        return new long[]{ reads.get() / seconds, updates.get() / seconds };
+    }
+
+    private interface Ring
+    {
+        public void update(Token token, EndPoint endPoint);
+        public Token getToken(EndPoint endPoint);
+        public boolean isKnownEndPoint(EndPoint endPoint);
+        public EndPoint getFirstEndpoint();
+    }
+
+    private static class SnapshotRing implements Ring
+    {
+        private final TokenMetadata metadata = new TokenMetadata();
+
+        public void update(Token token, EndPoint endPoint)
+        {
+            metadata.update(token, endPoint);
+        }
+
+        public Token getToken(EndPoint endPoint)
+        {
+            return metadata.getToken(endPoint);
+        }
+
+        public boolean isKnownEndPoint(EndPoint endPoint)
+        {
+            return metadata.isKnownEndPoint(endPoint);
+        }
+
+        public EndPoint getFirstEndpoint()
+        {
+            return metadata.getFirstEndpoint();
+        }
+    }
+
+    /**
+     * The maps and the locking of TokenMetadata before the snapshot, reads included.
+     */
+    private static class LockedRing implements Ring
+    {
+        private final Map<Token, EndPoint> tokenToEndPointMap = new HashMap<Token, EndPoint>();
+        private final Map<EndPoint, Token> endPointToTokenMap = new HashMap<EndPoint, Token>();
+        private final ReadWriteLock lock = new ReentrantReadWriteLock(true);
+
+        public void update(Token token, EndPoint endPoint)
+        {
+            lock.writeLock().lock();
+            try
+            {
+                Token oldToken = endPointToTokenMap.get(endPoint);
+                if (oldToken != null)
+                    tokenToEndPointMap.remove(oldToken);
+                tokenToEndPointMap.put(token, endPoint);
+                endPointToTokenMap.put(endPoint, token);
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+        }
+
+        public Token getToken(EndPoint endPoint)
+        {
+            lock.readLock().lock();
+            try
+            {
+                return endPointToTokenMap.get(endPoint);
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+        }
+
+        public boolean isKnownEndPoint(EndPoint endPoint)
+        {
+            lock.readLock().lock();
+            try
+            {
+                return endPointToTokenMap.containsKey(endPoint);
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+        }
+
+        public EndPoint getFirstEndpoint()
+        {
+            lock.readLock().lock();
+            try
+            {
+                List<Token> tokens = new ArrayList<Token>(tokenToEndPointMap.keySet());
+                if (tokens.isEmpty())
+                    return null;
+                Collections.sort(tokens);
+                return tokenToEndPointMap.get(tokens.get(0));
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.locator;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import org.apache.cassandra.dht.BigIntegerToken;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.net.EndPoint;
+import org.apache.cassandra.service.UnavailableException;
+
+/**
+ * Times getNextEndpoint on rings of 10 to 5000 tokens, next to the lookup it replaced: copying the tokens
+ * into a list, sorting it and finding the token of the endpoint with indexOf. Every endpoint is marked
+ * alive, so both return the endpoint of the next token.
+ *
+ * Usage: TokenMetadataLookupBenchmark [milliseconds per measure]
+ *
+ * The storage configuration must be on the classpath as for the server.
+ */
+public class TokenMetadataLookupBenchmark
+{
+    private static final int[] RING_SIZES = { 10, 50, 100, 500, 1000, 5000 };
+
+    // keeps the results alive so that the lookups can't be optimized away
+    private static int sink;
+
+    public static void main(String[] args) throws UnavailableException
+    {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+
+        System.out.printf("%-10s%20s%20s%n", "Tokens", "Binary search (ns)", "Sort + indexOf (ns)");
+        Random random = new Random(0);
+        for (int size : RING_SIZES)
+        {
+            Map<Token, EndPoint> tokenToEndPointMap = new HashMap<Token, EndPoint>();
+            Map<EndPoint, Token> endPointToTokenMap = new HashMap<EndPoint, Token>();
+            EndPoint[] endPoints = new EndPoint[size];
+            for (int i = 0; i < size; i++)
+            {
+                endPoints[i] = new EndPoint("10.0." + (i >> 8) + "." + (i & 0xff), 7000);
+                Token token = new BigIntegerToken(new BigInteger(127, random));
+                tokenToEndPointMap.put(token, endPoints[i]);
+                endPointToTokenMap.put(endPoints[i], token);
+            }
+            TokenMetadata metadata = new TokenMetadata(tokenToEndPointMap, endPointToTokenMap, new HashMap<Token, EndPoint>());
+            for (EndPoint endPoint : endPoints)
+                TokenMetadata.markAlive(endPoint);
+
+            // the first measures warm up
+            timeSnapshot(metadata, endPoints, millis);
+            timeSortAndSearch(tokenToEndPointMap, endPointToTokenMap, endPoints, millis);
+            System.out.printf("%-10d%20.1f%20.1f%n",
+                              size,
+                              timeSnapshot(metadata, endPoints, millis),
+                              timeSortAndSearch(tokenToEndPointMap, endPointToTokenMap, endPoints, millis));
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+
+    /**
+     * @return the average nanoseconds per lookup
+     */
+    private static double timeSnapshot(TokenMetadata metadata, EndPoint[] endPoints, long millis) throws UnavailableException
+    {
+        long start = System.nanoTime();
+        long deadline = start + millis * 1000000;
+        long count = 0;
+        long now;
+        do
+        {
+            for (EndPoint endPoint : endPoints)
+                sink += metadata.getNextEndpoint(endPoint).hashCode();
+            count += endPoints.length;
+        }
+        while ((now = System.nanoTime()) < deadline);
+        return (double) (now - start) / count;
+    }
+
+    private static double timeSortAndSearch(Map<Token, EndPoint> tokenToEndPointMap, Map<EndPoint, Token> endPointToTokenMap, EndPoint[] endPoints, long millis)
+    {
+        long start = System.nanoTime();
+        long deadline = start + millis * 1000000;
+        long count = 0;
+        long now;
+        do
+        {
+            for (EndPoint endPoint : endPoints)
+            {
+                List<Token> tokens = new ArrayList<Token>(tokenToEndPointMap.keySet());
+                Collections.sort(tokens);
+                int i = tokens.indexOf(endPointToTokenMap.get(endPoint));
+                sink += tokenToEndPointMap.get(tokens.get((i + 1) % tokens.size())).hashCode();
+                count++;
+                if ((count & 63) == 0 && System.nanoTime() >= deadline)
+                    break;
+            }
+        }
+        while ((now = System.nanoTime()) < deadline);
+        return (double) (now - start) / count;
+    }
+}
@@ -0,0 +1,502 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.tools;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.RuntimeMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.*;
+
+import javax.management.JMX;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.apache.cassandra.concurrent.IExecutorMBean;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.cassandra.db.ColumnFamilyStoreMBean;
+import org.apache.cassandra.db.CompactionManagerMBean;
+import org.apache.cassandra.service.StorageServiceMBean;
+
+/**
+ * Runs nodetool commands against several nodes at once and merges their output into a single table.
+ *
+ * Connections and commands run on a bounded pool (cassandra.nodetool.cluster_concurrency). Waiting for
+ * the nodes is bounded by a deadline set when the tasks are submitted: the node timeout
+ * (cassandra.nodetool.node_timeout_ms) once per round of the pool, so a node that hangs only costs its
+ * own row instead of stalling the whole command.
+ *
+ * The nodes are connected to with a JMX connector of their own rather than a NodeProbe, so that the RMI
+ * lookup of each node can be given a socket factory that connects and reads with the node timeout without
+ * changing the sockets of the whole JVM. A JMX call to a node that hangs once connected holds its thread
+ * until the node answers or shutdown closes the connections, but the deadline doesn't wait for it.
+ *
+ * A host may be given as host:port to use a JMX port other than the common one.
+ */
+public class ClusterProbe
+{
+    private static final int defaultConcurrency = Integer.getInteger("cassandra.nodetool.cluster_concurrency", 16);
+    private static final long defaultTimeoutMillis = Long.getLong("cassandra.nodetool.node_timeout_ms", 10000L);
+
+    private final ExecutorService executor;
+    private final int concurrency;
+    private final long timeoutMillis;
+    // hosts in the order they were given, so output is stable across runs
+    private final Map<String, NodeConnection> probes = new LinkedHashMap<String, NodeConnection>();
+    private final Map<String, String> failures = new LinkedHashMap<String, String>();
+
+    /**
+     * Connects to all the given hosts in parallel. Hosts that cannot be reached in time are reported
+     * as failed by every command rather than failing the construction.
+     */
+    public ClusterProbe(Collection<String> hosts, int port, String username, String password)
+    {
+        this(hosts, port, username, password, defaultConcurrency, defaultTimeoutMillis);
+    }
+
+    ClusterProbe(Collection<String> hosts, final int port, final String username, final String password, int concurrency, final long timeoutMillis)
+    {
+        this.concurrency = Math.max(1, Math.min(concurrency, hosts.size()));
+        this.timeoutMillis = timeoutMillis;
+        executor = Executors.newFixedThreadPool(this.concurrency, new NamedThreadFactory("ClusterProbe"));
+
+        List<String> hostList = new ArrayList<String>(new LinkedHashSet<String>(hosts));
+        Map<String, NodeConnection> connected = runOnAll(hostList, new NodeTask<NodeConnection>()
+        {
+            public NodeConnection run(String host, NodeConnection unused) throws IOException
+            {
+                int colon = host.lastIndexOf(':');
+                // a single colon separates a port, more make an IPv6 address
+                boolean hasPort = colon > 0 && host.indexOf(':') == colon;
+                String hostName = hasPort ? host.substring(0, colon) : host;
+                int hostPort = hasPort ? Integer.parseInt(host.substring(colon + 1)) : port;
+                return new NodeConnection(hostName, hostPort, username, password, (int) timeoutMillis);
+            }
+        });
+        for (String host : hostList)
+        {
+            if (connected.containsKey(host))
+                probes.put(host, connected.get(host));
+        }
+    }
+
+    public Set<String> getConnectedHosts()
+    {
+        return Collections.unmodifiableSet(probes.keySet());
+    }
+
+    /**
+     * @return the hosts that could not be reached or did not answer in time, with the reason
+     */
+    public Map<String, String> getFailures()
+    {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    public void shutdown()
+    {
+        executor.shutdownNow();
+        for (NodeConnection probe : probes.values())
+            probe.close();
+    }
+
+    /**
+     * Print the thread pool stats of every node, grouped by pool, with a cluster wide total per pool.
+     */
+    public void printThreadPoolStats(PrintStream outs)
+    {
+        Map<String, Map<String, long[]>> byHost = runOnAll(new ArrayList<String>(probes.keySet()), new NodeTask<Map<String, long[]>>()
+        {
+            public Map<String, long[]> run(String host, NodeConnection probe) throws IOException
+            {
+                Map<String, long[]> stats = new HashMap<String, long[]>();
+                for (Entry<String, IExecutorMBean> thread : probe.getThreadPoolMBeanProxies().entrySet())
+                {
+                    IExecutorMBean threadPoolProxy = thread.getValue();
+                    stats.put(thread.getKey(), new long[]{ threadPoolProxy.getActiveCount(),
+                                                           threadPoolProxy.getPendingTasks(),
+                                                           threadPoolProxy.getCompletedTasks() });
+                }
+                return stats;
+            }
+        });
+
+        // regroup by pool so the same pool on every node is printed together
+        Map<String, Map<String, long[]>> pools = new TreeMap<String, Map<String, long[]>>();
+        for (Entry<String, Map<String, long[]>> hostStats : byHost.entrySet())
+        {
+            for (Entry<String, long[]> pool : hostStats.getValue().entrySet())
+            {
+                Map<String, long[]> hosts = pools.get(pool.getKey());
+                if (hosts == null)
+                {
+                    hosts = new LinkedHashMap<String, long[]>();
+                    pools.put(pool.getKey(), hosts);
+                }
+                hosts.put(hostStats.getKey(), pool.getValue());
+            }
+        }
+
+        outs.printf("%-25s%-20s%10s%10s%15s%n", "Pool Name", "Host", "Active", "Pending", "Completed");
+        for (Entry<String, Map<String, long[]>> pool : pools.entrySet())
+        {
+            long[] total = new long[3];
+            for (Entry<String, long[]> host : pool.getValue().entrySet())
+            {
+                long[] stats = host.getValue();
+                outs.printf("%-25s%-20s%10s%10s%15s%n", pool.getKey(), host.getKey(), stats[0], stats[1], stats[2]);
+                for (int i = 0; i < total.length; i++)
+                    total[i] += stats[i];
+            }
+            outs.printf("%-25s%-20s%10s%10s%15s%n", pool.getKey(), "(total)", total[0], total[1], total[2]);
+        }
+        printFailures(outs);
+    }
+
+    /**
+     * Print one line of node information per node.
+     */
+    public void printInfo(PrintStream outs)
+    {
+        Map<String, Object[]> infos = runOnAll(new ArrayList<String>(probes.keySet()), new NodeTask<Object[]>()
+        {
+            public Object[] run(String host, NodeConnection probe)
+            {
+                MemoryUsage heapUsage = probe.getHeapMemoryUsage();
+                return new Object[]{ host,
+                                     probe.getToken(),
+                                     probe.isInitialized(),
+                                     probe.getLoadString(),
+                                     probe.getCurrentGenerationNumber(),
+                                     probe.getUptime() / 1000,
+                                     String.format("%.2f / %.2f", (double) heapUsage.getUsed() / (1024 * 1024), (double) heapUsage.getMax() / (1024 * 1024)) };
+            }
+        });
+
+        String format = "%-20s%-44s%-8s%-16s%-14s%-18s%s%n";
+        outs.printf(format, "Host", "Token", "Gossip", "Load", "Generation No", "Uptime (seconds)", "Heap Memory (MB)");
+        for (Object[] info : infos.values())
+            outs.printf(format, info);
+        printFailures(outs);
+    }
+
+    /**
+     * Print the compaction in progress on every node, and the pending compactions across the cluster.
+     */
+    public void printCompactionStats(PrintStream outs)
+    {
+        Map<String, Object[]> stats = runOnAll(new ArrayList<String>(probes.keySet()), new NodeTask<Object[]>()
+        {
+            public Object[] run(String host, NodeConnection probe)
+            {
+                CompactionManagerMBean cm = probe.getCompactionManagerProxy();
+                return new Object[]{ host,
+                                     cm.getCompactionType() == null ? "n/a" : cm.getCompactionType(),
+                                     cm.getColumnFamilyInProgress() == null ? "n/a" : cm.getColumnFamilyInProgress(),
+                                     cm.getBytesCompacted() == null ? "n/a" : cm.getBytesCompacted(),
+                                     cm.getBytesTotalInProgress() == null ? "n/a" : cm.getBytesTotalInProgress(),
+                                     cm.getPendingTasks() };
+            }
+        });
+
+        String format = "%-20s%-20s%-30s%18s%18s%10s%n";
+        outs.printf(format, "Host", "Compaction Type", "Column Family", "Bytes Compacted", "Bytes Total", "Pending");
+        long pending = 0;
+        for (Object[] row : stats.values())
+        {
+            outs.printf(format, row);
+            pending += ((Number) row[5]).longValue();
+        }
+        outs.printf(format, "(total)", "", "", "", "", pending);
+        printFailures(outs);
+    }
+
+    /**
+     * Print the cfhistograms of a column family across the cluster: the histograms of every node are
+     * summed bucket by bucket, so the percentiles are those of all the operations in the cluster.
+     *
+     * The lifetime histograms are merged rather than the recent ones, which are reset by every reader and
+     * so cover a different period on each node. Given an interval, the operations histograms are read twice
+     * that far apart and only the operations in between are counted, the same interval for every node.
+     *
+     * @param intervalMillis the interval to measure over, or 0 for the totals since the nodes started
+     */
+    public void printCfHistograms(final String keyspace, final String columnFamily, long intervalMillis, PrintStream outs)
+        throws InterruptedException
+    {
+        NodeTask<long[][]> sample = new NodeTask<long[][]>()
+        {
+            public long[][] run(String host, NodeConnection probe)
+            {
+                ColumnFamilyStoreMBean store = probe.getCfsProxy(keyspace, columnFamily);
+                return new long[][]{ store.getSSTablesPerReadHistogram(),
+                                     store.getLifetimeWriteLatencyHistogramMicros(),
+                                     store.getLifetimeReadLatencyHistogramMicros(),
+                                     store.getEstimatedRowSizeHistogram(),
+                                     store.getEstimatedColumnCountHistogram() };
+            }
+        };
+        Map<String, long[][]> histograms = runOnAll(new ArrayList<String>(probes.keySet()), sample);
+        String period = "since startup";
+        if (intervalMillis > 0)
+        {
+            Thread.sleep(intervalMillis);
+            Map<String, long[][]> previous = histograms;
+            histograms = runOnAll(new ArrayList<String>(previous.keySet()), sample);
+            for (Entry<String, long[][]> entry : histograms.entrySet())
+            {
+                long[][] current = entry.getValue();
+                // the size estimates describe the data rather than operations, so they are taken as they are now
+                for (int i = 0; i < 3; i++)
+                    current[i] = Percentiles.subtract(current[i], previous.get(entry.getKey())[i]);
+            }
+            period = String.format("over %.1f seconds", intervalMillis / 1000.0);
+        }
+
+        long[][] merged = new long[5][];
+        for (int i = 0; i < merged.length; i++)
+        {
+            List<long[]> perNode = new ArrayList<long[]>(histograms.size());
+            for (long[][] nodeHistograms : histograms.values())
+                perNode.add(nodeHistograms[i]);
+            merged[i] = Percentiles.merge(perNode);
+        }
+
+        NodeCmd.printHistograms(String.format("%s/%s histograms merged from %d nodes, %s", keyspace, columnFamily, histograms.size(), period),
+                                merged[0], merged[1], merged[2], merged[3], merged[4], outs);
+        printFailures(outs);
+    }
+
+    private void printFailures(PrintStream outs)
+    {
+        for (Entry<String, String> failure : failures.entrySet())
+            outs.printf("%-20s%s%n", failure.getKey(), failure.getValue());
+    }
+
+    /**
+     * Runs the task for every host and waits for all of them, at most the node timeout per round of the
+     * pool. Hosts whose task fails or isn't done by then are left out of the result and recorded in failures.
+     *
+     * @return the results by host, in the order of the given hosts
+     */
+    private <T> Map<String, T> runOnAll(List<String> hosts, final NodeTask<T> task)
+    {
+        Map<String, Future<T>> futures = new LinkedHashMap<String, Future<T>>();
+        for (final String host : hosts)
+        {
+            final NodeConnection probe = probes.get(host);
+            futures.put(host, executor.submit(new Callable<T>()
+            {
+                public T call() throws Exception
+                {
+                    return task.run(host, probe);
+                }
+            }));
+        }
+        int rounds = (hosts.size() + concurrency - 1) / concurrency;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis * rounds);
+
+        Map<String, T> results = new LinkedHashMap<String, T>();
+        for (Entry<String, Future<T>> entry : futures.entrySet())
+        {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            try
+            {
+                results.put(entry.getKey(), entry.getValue().get(Math.max(0, remaining), TimeUnit.MILLISECONDS));
+            }
+            catch (TimeoutException e)
+            {
+                // frees the thread if the call can be interrupted, and the slot in the queue if it hasn't started
+                entry.getValue().cancel(true);
+                failures.put(entry.getKey(), "error: no answer within " + timeoutMillis * rounds + " ms");
+            }
+            catch (ExecutionException e)
+            {
+                failures.put(entry.getKey(), "error: " + e.getCause());
+            }
+            catch (InterruptedException e)
+            {
+                throw new AssertionError(e);
+            }
+        }
+        return results;
+    }
+
+    private interface NodeTask<T>
+    {
+        public T run(String host, NodeConnection probe) throws Exception;
+    }
+
+    /**
+     * The MBeans of one node that the cluster commands read, with the names NodeProbe gives them.
+     */
+    private static class NodeConnection
+    {
+        private static final String fmtUrl = "service:jmx:rmi:///jndi/rmi://%s:%d/jmxrmi";
+        private static final String ssObjName = "org.apache.cassandra.db:type=StorageService";
+        private static final String compactionObjName = "org.apache.cassandra.db:type=CompactionManager";
+        private static final String cfsObjName = "org.apache.cassandra.db:type=ColumnFamilies,keyspace=%s,columnfamily=%s";
+        private static final String[] threadPoolQueries = { "org.apache.cassandra.request:type=*", "org.apache.cassandra.internal:type=*" };
+        // the environment key under which the JNDI lookup of the RMI connector takes its socket factory
+        private static final String socketFactoryKey = "com.sun.jndi.rmi.factory.socket";
+
+        private final JMXConnector jmxc;
+        private final MBeanServerConnection mbeanServerConn;
+
+        NodeConnection(String host, int port, String username, String password, int timeoutMillis) throws IOException
+        {
+            Map<String, Object> env = new HashMap<String, Object>();
+            env.put(socketFactoryKey, new TimeoutSocketFactory(timeoutMillis));
+            if (username != null)
+                env.put(JMXConnector.CREDENTIALS, new String[]{ username, password });
+            jmxc = JMXConnectorFactory.connect(new JMXServiceURL(String.format(fmtUrl, host, port)), env);
+            mbeanServerConn = jmxc.getMBeanServerConnection();
+        }
+
+        private <T> T proxy(String name, Class<T> mbeanClass)
+        {
+            try
+            {
+                return JMX.newMBeanProxy(mbeanServerConn, new ObjectName(name), mbeanClass);
+            }
+            catch (MalformedObjectNameException e)
+            {
+                throw new RuntimeException("Invalid ObjectName? Please report this as a bug.", e);
+            }
+        }
+
+        private <T> T platformProxy(String name, Class<T> mxbeanClass)
+        {
+            try
+            {
+                return ManagementFactory.newPlatformMXBeanProxy(mbeanServerConn, name, mxbeanClass);
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * @return the thread pools of the node by name
+         */
+        Map<String, IExecutorMBean> getThreadPoolMBeanProxies() throws IOException
+        {
+            Map<String, IExecutorMBean> pools = new HashMap<String, IExecutorMBean>();
+            try
+            {
+                for (String query : threadPoolQueries)
+                {
+                    for (ObjectName objectName : mbeanServerConn.queryNames(new ObjectName(query), null))
+                        pools.put(objectName.getKeyProperty("type"), JMX.newMBeanProxy(mbeanServerConn, objectName, IExecutorMBean.class));
+                }
+            }
+            catch (MalformedObjectNameException e)
+            {
+                throw new RuntimeException("Invalid ObjectName? Please report this as a bug.", e);
+            }
+            return pools;
+        }
+
+        String getToken()
+        {
+            return proxy(ssObjName, StorageServiceMBean.class).getToken();
+        }
+
+        boolean isInitialized()
+        {
+            return proxy(ssObjName, StorageServiceMBean.class).isInitialized();
+        }
+
+        String getLoadString()
+        {
+            return proxy(ssObjName, StorageServiceMBean.class).getLoadString();
+        }
+
+        int getCurrentGenerationNumber()
+        {
+            return proxy(ssObjName, StorageServiceMBean.class).getCurrentGenerationNumber();
+        }
+
+        long getUptime()
+        {
+            return platformProxy(ManagementFactory.RUNTIME_MXBEAN_NAME, RuntimeMXBean.class).getUptime();
+        }
+
+        MemoryUsage getHeapMemoryUsage()
+        {
+            return platformProxy(ManagementFactory.MEMORY_MXBEAN_NAME, MemoryMXBean.class).getHeapMemoryUsage();
+        }
+
+        CompactionManagerMBean getCompactionManagerProxy()
+        {
+            return proxy(compactionObjName, CompactionManagerMBean.class);
+        }
+
+        ColumnFamilyStoreMBean getCfsProxy(String keyspace, String columnFamily)
+        {
+            return proxy(String.format(cfsObjName, keyspace, columnFamily), ColumnFamilyStoreMBean.class);
+        }
+
+        void close()
+        {
+            try
+            {
+                jmxc.close();
+            }
+            catch (IOException e)
+            {
+                // the node is gone already
+            }
+        }
+    }
+
+    /**
+     * Connects RMI sockets with a timeout, and gives up on reads after it, so that a node that stops
+     * answering doesn't hold a thread forever.
+     */
+    private static class TimeoutSocketFactory implements RMIClientSocketFactory
+    {
+        private final int timeoutMillis;
+
+        TimeoutSocketFactory(int timeoutMillis)
+        {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public Socket createSocket(String host, int port) throws IOException
+        {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            return socket;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs ClusterProbe against nodes made of an in-process MBeanServer each, exposed over JMX on its own port.
+ */
+public class ClusterProbeTest
+{
+    private final List<Registry> registries = new ArrayList<Registry>();
+    private final List<JMXConnectorServer> servers = new ArrayList<JMXConnectorServer>();
+    // lets the calls to hung nodes return once the test is done
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void stopNodes() throws Exception
+    {
+        release.countDown();
+        for (JMXConnectorServer server : servers)
+            server.stop();
+        for (Registry registry : registries)
+            UnicastRemoteObject.unexportObject(registry, true);
+    }
+
+    @Test
+    public void testCompactionStatsAreMerged() throws Exception
+    {
+        String first = startNode(new CompactionManager(3, null));
+        String second = startNode(new CompactionManager(4, null));
+        ClusterProbe probe = new ClusterProbe(Arrays.asList(first, second), 0, null, null, 16, 5000);
+        try
+        {
+            String output = compactionStats(probe);
+            assertTrue(output, output.contains(first));
+            assertTrue(output, output.contains(second));
+            assertTrue(output, output.matches("(?s).*\\(total\\)\\s+7\\s*$"));
+            assertTrue(probe.getFailures().isEmpty());
+        }
+        finally
+        {
+            probe.shutdown();
+        }
+    }
+
+    @Test
+    public void testHungNodeOnlyCostsItsOwnRow() throws Exception
+    {
+        String hung = startNode(new CompactionManager(1, release));
+        String healthy = startNode(new CompactionManager(2, null));
+        ClusterProbe probe = new ClusterProbe(Arrays.asList(hung, healthy), 0, null, null, 2, 500);
+        try
+        {
+            String output = compactionStats(probe);
+            assertTrue(output, output.contains(healthy));
+            assertEquals(1, probe.getFailures().size());
+            assertTrue(probe.getFailures().containsKey(hung));
+        }
+        finally
+        {
+            probe.shutdown();
+        }
+    }
+
+    @Test
+    public void testHungNodesDontBlockQueuedOnes() throws Exception
+    {
+        // the only thread of the pool hangs on the first node, so the second one never starts
+        String hung = startNode(new CompactionManager(1, release));
+        String queued = startNode(new CompactionManager(2, null));
+        ClusterProbe probe = new ClusterProbe(Arrays.asList(hung, queued), 0, null, null, 1, 500);
+        try
+        {
+            compactionStats(probe);
+            assertTrue(probe.getFailures().containsKey(hung));
+        }
+        finally
+        {
+            probe.shutdown();
+        }
+    }
+
+    private static String compactionStats(ClusterProbe probe)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        probe.printCompactionStats(new PrintStream(bytes, true));
+        return bytes.toString();
+    }
+
+    /**
+     * @return the host:port to give ClusterProbe for the node
+     */
+    private String startNode(CompactionManager compactionManager) throws Exception
+    {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        registries.add(LocateRegistry.createRegistry(port));
+
+        MBeanServer mbs = MBeanServerFactory.newMBeanServer();
+        mbs.registerMBean(compactionManager, new ObjectName("org.apache.cassandra.db:type=CompactionManager"));
+        // read by info
+        mbs.registerMBean(ManagementFactory.getMemoryMXBean(), new ObjectName(ManagementFactory.MEMORY_MXBEAN_NAME));
+        mbs.registerMBean(ManagementFactory.getRuntimeMXBean(), new ObjectName(ManagementFactory.RUNTIME_MXBEAN_NAME));
+
+        JMXServiceURL url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:" + port + "/jmxrmi");
+        JMXConnectorServer server = JMXConnectorServerFactory.newJMXConnectorServer(url, null, mbs);
+        server.start();
+        servers.add(server);
+        return "localhost:" + port;
+    }
+
+    /**
+     * The attributes of CompactionManagerMBean that compactionstats reads.
+     */
+    public interface CompactionManagerMBean
+    {
+        public String getCompactionType();
+        public String getColumnFamilyInProgress();
+        public Long getBytesCompacted();
+        public Long getBytesTotalInProgress();
+        public int getPendingTasks();
+    }
+
+    public static class CompactionManager implements CompactionManagerMBean
+    {
+        private final int pendingTasks;
+        private final CountDownLatch hang;
+
+        /**
+         * @param hang if not null, reads block until it is released
+         */
+        CompactionManager(int pendingTasks, CountDownLatch hang)
+        {
+            this.pendingTasks = pendingTasks;
+            this.hang = hang;
+        }
+
+        public String getCompactionType()
+        {
+            if (hang != null)
+            {
+                try
+                {
+                    hang.await();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new AssertionError(e);
+                }
+            }
+            return null;
+        }
+
+        public String getColumnFamilyInProgress()
+        {
+            return null;
+        }
+
+        public Long getBytesCompacted()
+        {
+            return null;
+        }
+
+        public Long getBytesTotalInProgress()
+        {
+            return null;
+        }
+
+        public int getPendingTasks()
+        {
+            return pendingTasks;
+        }
+    }
+}
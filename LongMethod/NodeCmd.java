@@ -32,7 +32,6 @@ import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.cli.*;
 
-import org.apache.cassandra.cache.JMXInstrumentedCacheMBean;
 import org.apache.cassandra.concurrent.IExecutorMBean;
 import org.apache.cassandra.db.ColumnFamilyStoreMBean;
 import org.apache.cassandra.db.CompactionManagerMBean;
@@ -43,12 +42,18 @@ import org.apache.cassandra.utils.EstimatedHistogram;
 public class NodeCmd {
     private static final String HOST_OPT_LONG = "host";
     private static final String HOST_OPT_SHORT = "h";
+    private static final String HOSTS_OPT_LONG = "hosts";
+    private static final String HOSTS_OPT_SHORT = "hs";
     private static final String PORT_OPT_LONG = "port";
     private static final String PORT_OPT_SHORT = "p";
     private static final String USERNAME_OPT_LONG = "username";
     private static final String USERNAME_OPT_SHORT = "u";
     private static final String PASSWORD_OPT_LONG = "password";
     private static final String PASSWORD_OPT_SHORT = "pw";
+    private static final String INTERVAL_OPT_LONG = "interval";
+    private static final String INTERVAL_OPT_SHORT = "i";
+    private static final String FORMAT_OPT_LONG = "format";
+    private static final String FORMAT_OPT_SHORT = "f";
     private static final int defaultPort = 8080;
     private static Options options = null;
     
@@ -57,12 +62,14 @@ public class NodeCmd {
     static
     {
         options = new Options();
-        Option optHost = new Option(HOST_OPT_SHORT, HOST_OPT_LONG, true, "node hostname or ip address");
-        optHost.setRequired(true);
-        options.addOption(optHost);
+        // one of host or hosts is required, which is checked after parsing
+        options.addOption(HOST_OPT_SHORT, HOST_OPT_LONG, true, "node hostname or ip address");
+        options.addOption(HOSTS_OPT_SHORT, HOSTS_OPT_LONG, true, "comma separated node hostnames or ip addresses, optionally with :port, to query in parallel (info, tpstats, compactionstats and cfhistograms only)");
         options.addOption(PORT_OPT_SHORT, PORT_OPT_LONG, true, "remote jmx agent port number");
         options.addOption(USERNAME_OPT_SHORT, USERNAME_OPT_LONG, true, "remote jmx agent username");
         options.addOption(PASSWORD_OPT_SHORT, PASSWORD_OPT_LONG, true, "remote jmx agent password");
+        options.addOption(INTERVAL_OPT_SHORT, INTERVAL_OPT_LONG, true, "polling interval in seconds for watch (default 1), or interval cfhistograms measures over with --hosts (default since startup)");
+        options.addOption(FORMAT_OPT_SHORT, FORMAT_OPT_LONG, true, "output format for watch: text (default) or json, one object per line");
     }
     
     public NodeCmd(NodeProbe probe)
@@ -75,7 +82,7 @@ public class NodeCmd {
         DECOMMISSION, MOVE, LOADBALANCE, REMOVETOKEN, REPAIR, CLEANUP, COMPACT,
         SETCACHECAPACITY, GETCOMPACTIONTHRESHOLD, SETCOMPACTIONTHRESHOLD, NETSTATS, CFHISTOGRAMS,
         COMPACTIONSTATS, DISABLEGOSSIP, ENABLEGOSSIP, INVALIDATEKEYCACHE, INVALIDATEROWCACHE,
-        DISABLETHRIFT, ENABLETHRIFT
+        DISABLETHRIFT, ENABLETHRIFT, WATCH
     }
 
     
@@ -118,12 +125,13 @@ public class NodeCmd {
         addCmdHelp(header, "invalidaterowcache [keyspace] [cfnames]", "Invalidate the key cache of one or more column family");
         addCmdHelp(header, "getcompactionthreshold <keyspace> <cfname>", "Print min and max compaction thresholds for a given column family");
         addCmdHelp(header, "cfhistograms <keyspace> <cfname>", "Print statistic histograms for a given column family");
+        addCmdHelp(header, "watch tpstats|netstats|cfhistograms <keyspace> <cfname>", "Poll the node every interval and print the changes since the last poll");
 
         // Four args
         addCmdHelp(header, "setcachecapacity <keyspace> <cfname> <keycachecapacity> <rowcachecapacity>", "Set the key and row cache capacities of a given column family");
         addCmdHelp(header, "setcompactionthreshold <keyspace> <cfname> <minthreshold> <maxthreshold>", "Set the min and max compaction thresholds for a given column family");
 
-        String usage = String.format("java %s --host <arg> <command>%n", NodeCmd.class.getName());
+        String usage = String.format("java %s --host <arg> | --hosts <arg,...> <command>%n", NodeCmd.class.getName());
         hf.printHelp(usage, "", options, "");
         System.out.println(header.toString());
     }
@@ -162,6 +170,7 @@ public class NodeCmd {
 
         // Calculate per-token ownership of the ring
         Map<Token, Float> ownerships = probe.getOwnership();
+        DecimalFormat ownsFormat = new DecimalFormat("##0.00%");
 
         for (Token token : sortedTokens)
         {
@@ -179,7 +188,7 @@ public class NodeCmd {
             String load = loadMap.containsKey(primaryEndpoint)
                           ? loadMap.get(primaryEndpoint)
                           : "?";
-            String owns = new DecimalFormat("##0.00%").format(ownerships.get(token));
+            String owns = ownsFormat.format(ownerships.get(token));
             outs.printf("%-16s%-7s%-8s%-16s%-8s%-44s%n", primaryEndpoint, status, state, load, owns, token);
         }
     }
@@ -318,34 +327,14 @@ public class NodeCmd {
  
     public void printColumnFamilyStats(PrintStream outs)
     {
-        Map <String, List <ColumnFamilyStoreMBean>> cfstoreMap = new HashMap <String, List <ColumnFamilyStoreMBean>>();
-
-        // get a list of column family stores
-        Iterator<Map.Entry<String, ColumnFamilyStoreMBean>> cfamilies = probe.getColumnFamilyStoreMBeanProxies();
-
-        while (cfamilies.hasNext())
-        {
-            Entry<String, ColumnFamilyStoreMBean> entry = cfamilies.next();
-            String tableName = entry.getKey();
-            ColumnFamilyStoreMBean cfsProxy = entry.getValue();
-
-            if (!cfstoreMap.containsKey(tableName))
-            {
-                List<ColumnFamilyStoreMBean> columnFamilies = new ArrayList<ColumnFamilyStoreMBean>();
-                columnFamilies.add(cfsProxy);
-                cfstoreMap.put(tableName, columnFamilies);
-            }
-            else
-            {
-                cfstoreMap.get(tableName).add(cfsProxy);
-            }
-        }
+        // fetch everything up front: one bulk read per mbean instead of a round trip per getter
+        Map<String, List<ColumnFamilyStats>> cfstatsMap = probe.getColumnFamilyStats();
 
         // print out the table statistics
-        for (Entry<String, List<ColumnFamilyStoreMBean>> entry : cfstoreMap.entrySet())
+        for (Entry<String, List<ColumnFamilyStats>> entry : cfstatsMap.entrySet())
         {
             String tableName = entry.getKey();
-            List<ColumnFamilyStoreMBean> columnFamilies = entry.getValue();
+            List<ColumnFamilyStats> columnFamilies = entry.getValue();
             long tableReadCount = 0;
             long tableWriteCount = 0;
             int tablePendingTasks = 0;
@@ -353,22 +342,19 @@ public class NodeCmd {
             double tableTotalWriteTime = 0.0f;
 
             outs.println("Keyspace: " + tableName);
-            for (ColumnFamilyStoreMBean cfstore : columnFamilies)
+            for (ColumnFamilyStats cfstats : columnFamilies)
             {
-                long writeCount = cfstore.getWriteCount();
-                long readCount = cfstore.getReadCount();
-
-                if (readCount > 0)
+                if (cfstats.readCount > 0)
                 {
-                    tableReadCount += readCount;
-                    tableTotalReadTime += cfstore.getTotalReadLatencyMicros();
+                    tableReadCount += cfstats.readCount;
+                    tableTotalReadTime += cfstats.totalReadLatencyMicros;
                 }
-                if (writeCount > 0)
+                if (cfstats.writeCount > 0)
                 {
-                    tableWriteCount += writeCount;
-                    tableTotalWriteTime += cfstore.getTotalWriteLatencyMicros();
+                    tableWriteCount += cfstats.writeCount;
+                    tableTotalWriteTime += cfstats.totalWriteLatencyMicros;
                 }
-                tablePendingTasks += cfstore.getPendingTasks();
+                tablePendingTasks += cfstats.pendingTasks;
             }
 
             double tableReadLatency = tableReadCount > 0 ? tableTotalReadTime / tableReadCount / 1000 : Double.NaN;
@@ -381,48 +367,46 @@ public class NodeCmd {
             outs.println("\tPending Tasks: " + tablePendingTasks);
 
             // print out column family statistics for this table
-            for (ColumnFamilyStoreMBean cfstore : columnFamilies)
+            for (ColumnFamilyStats cfstats : columnFamilies)
             {
-                outs.println("\t\tColumn Family: " + cfstore.getColumnFamilyName());
-                outs.println("\t\tSSTable count: " + cfstore.getLiveSSTableCount());
-                outs.println("\t\tSpace used (live): " + cfstore.getLiveDiskSpaceUsed());
-                outs.println("\t\tSpace used (total): " + cfstore.getTotalDiskSpaceUsed());
-                outs.println("\t\tMemtable Columns Count: " + cfstore.getMemtableColumnsCount());
-                outs.println("\t\tMemtable Data Size: " + cfstore.getMemtableDataSize());
-                outs.println("\t\tMemtable Switch Count: " + cfstore.getMemtableSwitchCount());
-                outs.println("\t\tRead Count: " + cfstore.getReadCount());
-                outs.println("\t\tRead Latency: " + String.format("%01.3f", cfstore.getRecentReadLatencyMicros() / 1000) + " ms.");
-                outs.println("\t\tWrite Count: " + cfstore.getWriteCount());
-                outs.println("\t\tWrite Latency: " + String.format("%01.3f", cfstore.getRecentWriteLatencyMicros() / 1000) + " ms.");
-                outs.println("\t\tPending Tasks: " + cfstore.getPendingTasks());
-
-                JMXInstrumentedCacheMBean keyCacheMBean = probe.getKeyCacheMBean(tableName, cfstore.getColumnFamilyName());
-                if (keyCacheMBean.getCapacity() > 0)
+                outs.println("\t\tColumn Family: " + cfstats.columnFamily);
+                outs.println("\t\tSSTable count: " + cfstats.liveSSTableCount);
+                outs.println("\t\tSpace used (live): " + cfstats.liveDiskSpaceUsed);
+                outs.println("\t\tSpace used (total): " + cfstats.totalDiskSpaceUsed);
+                outs.println("\t\tMemtable Columns Count: " + cfstats.memtableColumnsCount);
+                outs.println("\t\tMemtable Data Size: " + cfstats.memtableDataSize);
+                outs.println("\t\tMemtable Switch Count: " + cfstats.memtableSwitchCount);
+                outs.println("\t\tRead Count: " + cfstats.readCount);
+                outs.println("\t\tRead Latency: " + String.format("%01.3f", cfstats.recentReadLatencyMicros / 1000) + " ms.");
+                outs.println("\t\tWrite Count: " + cfstats.writeCount);
+                outs.println("\t\tWrite Latency: " + String.format("%01.3f", cfstats.recentWriteLatencyMicros / 1000) + " ms.");
+                outs.println("\t\tPending Tasks: " + cfstats.pendingTasks);
+
+                if (cfstats.keyCache.isEnabled())
                 {
-                    outs.println("\t\tKey cache capacity: " + keyCacheMBean.getCapacity());
-                    outs.println("\t\tKey cache size: " + keyCacheMBean.getSize());
-                    outs.println("\t\tKey cache hit rate: " + keyCacheMBean.getRecentHitRate());
+                    outs.println("\t\tKey cache capacity: " + cfstats.keyCache.capacity);
+                    outs.println("\t\tKey cache size: " + cfstats.keyCache.size);
+                    outs.println("\t\tKey cache hit rate: " + cfstats.keyCache.recentHitRate);
                 }
                 else
                 {
                     outs.println("\t\tKey cache: disabled");
                 }
 
-                JMXInstrumentedCacheMBean rowCacheMBean = probe.getRowCacheMBean(tableName, cfstore.getColumnFamilyName());
-                if (rowCacheMBean.getCapacity() > 0)
+                if (cfstats.rowCache.isEnabled())
                 {
-                    outs.println("\t\tRow cache capacity: " + rowCacheMBean.getCapacity());
-                    outs.println("\t\tRow cache size: " + rowCacheMBean.getSize());
-                    outs.println("\t\tRow cache hit rate: " + rowCacheMBean.getRecentHitRate());
+                    outs.println("\t\tRow cache capacity: " + cfstats.rowCache.capacity);
+                    outs.println("\t\tRow cache size: " + cfstats.rowCache.size);
+                    outs.println("\t\tRow cache hit rate: " + cfstats.rowCache.recentHitRate);
                 }
                 else
                 {
                     outs.println("\t\tRow cache: disabled");
                 }
 
-                outs.println("\t\tCompacted row minimum size: " + cfstore.getMinRowSize());
-                outs.println("\t\tCompacted row maximum size: " + cfstore.getMaxRowSize());
-                outs.println("\t\tCompacted row mean size: " + cfstore.getMeanRowSize());
+                outs.println("\t\tCompacted row minimum size: " + cfstats.minRowSize);
+                outs.println("\t\tCompacted row maximum size: " + cfstats.maxRowSize);
+                outs.println("\t\tCompacted row mean size: " + cfstats.meanRowSize);
 
                 outs.println("");
             }
@@ -439,16 +423,24 @@ public class NodeCmd {
     {
         ColumnFamilyStoreMBean store = this.probe.getCfsProxy(keySpace, columnFamily);
 
+        printHistograms(String.format("%s/%s histograms", keySpace, columnFamily),
+                        store.getRecentSSTablesPerReadHistogram(),
+                        store.getRecentWriteLatencyHistogramMicros(),
+                        store.getRecentReadLatencyHistogramMicros(),
+                        store.getEstimatedRowSizeHistogram(),
+                        store.getEstimatedColumnCountHistogram(),
+                        output);
+    }
+
+    /**
+     * Print the raw bucket counts of the cfhistograms histograms, followed by their percentiles.
+     */
+    static void printHistograms(String title, long[] sprh, long[] rwlh, long[] rrlh, long[] ersh, long[] ecch, PrintStream output)
+    {
         // default is 90 offsets
         long[] offsets = new EstimatedHistogram(90).getBucketOffsets();
 
-        long[] rrlh = store.getRecentReadLatencyHistogramMicros();
-        long[] rwlh = store.getRecentWriteLatencyHistogramMicros();
-        long[] sprh = store.getRecentSSTablesPerReadHistogram();
-        long[] ersh = store.getEstimatedRowSizeHistogram();
-        long[] ecch = store.getEstimatedColumnCountHistogram();
-
-        output.println(String.format("%s/%s histograms", keySpace, columnFamily));
+        output.println(title);
 
         output.println(String.format("%-10s%10s%18s%18s%18s%18s",
                                      "Offset", "SSTables", "Write Latency", "Read Latency", "Row Size", "Column Count"));
@@ -458,11 +450,34 @@ public class NodeCmd {
             output.println(String.format("%-10d%10s%18s%18s%18s%18s",
                                          offsets[i],
                                          (i < sprh.length ? sprh[i] : ""),
-                                         (i < rwlh.length ? rrlh[i] : ""),
-                                         (i < rrlh.length ? rwlh[i] : ""),
+                                         (i < rwlh.length ? rwlh[i] : ""),
+                                         (i < rrlh.length ? rrlh[i] : ""),
                                          (i < ersh.length ? ersh[i] : ""),
                                          (i < ecch.length ? ecch[i] : "")));
         }
+
+        // each histogram may have its own number of buckets, hence its own offsets
+        long[][] histograms = { sprh, rwlh, rrlh, ersh, ecch };
+        long[][] histogramOffsets = new long[histograms.length][];
+        for (int i = 0; i < histograms.length; i++)
+            histogramOffsets[i] = Percentiles.offsetsFor(histograms[i]);
+
+        output.println();
+        output.println(String.format("%-10s%10s%18s%18s%18s%18s",
+                                     "Percentile", "SSTables", "Write Latency", "Read Latency", "Row Size", "Column Count"));
+        for (double quantile : Percentiles.QUANTILES)
+        {
+            String[] row = new String[histograms.length + 1];
+            row[0] = new DecimalFormat("##0.#%").format(quantile);
+            for (int i = 0; i < histograms.length; i++)
+                row[i + 1] = Percentiles.toString(Percentiles.percentile(histogramOffsets[i], histograms[i], quantile));
+            output.println(String.format("%-10s%10s%18s%18s%18s%18s", (Object[]) row));
+        }
+        String[] row = new String[histograms.length + 1];
+        row[0] = "Max";
+        for (int i = 0; i < histograms.length; i++)
+            row[i + 1] = Percentiles.toString(Percentiles.max(histogramOffsets[i], histograms[i]));
+        output.println(String.format("%-10s%10s%18s%18s%18s%18s", (Object[]) row));
     }
 
     public static void main(String[] args) throws IOException, InterruptedException, ParseException
@@ -480,6 +495,9 @@ public class NodeCmd {
         }
 
         String host = cmd.getOptionValue(HOST_OPT_LONG);
+        String hosts = cmd.getOptionValue(HOSTS_OPT_LONG);
+        if (host == null && hosts == null)
+            badUse("Missing required option: either host or hosts");
         int port = defaultPort;
         
         String portNum = cmd.getOptionValue(PORT_OPT_LONG);
@@ -496,7 +514,10 @@ public class NodeCmd {
         }
         String username = cmd.getOptionValue(USERNAME_OPT_LONG);
         String password = cmd.getOptionValue(PASSWORD_OPT_LONG);
-        
+
+        if (hosts != null)
+            runOnCluster(hosts, port, username, password, cmd.getOptionValue(INTERVAL_OPT_LONG), cmd.getArgs());
+
         NodeProbe probe = null;
         try
         {
@@ -589,6 +610,10 @@ public class NodeCmd {
                 nodeCmd.printCfHistograms(arguments[1], arguments[2], System.out);
                 break;
 
+            case WATCH :
+                watch(probe, cmd, arguments);
+                break;
+
             case SETCACHECAPACITY :
                 if (arguments.length != 5) { badUse("setcachecapacity requires ks, cf, keycachecap, and rowcachecap args."); }
                 probe.setCacheCapacities(arguments[1], arguments[2], Integer.parseInt(arguments[3]), Integer.parseInt(arguments[4]));
@@ -612,6 +637,100 @@ public class NodeCmd {
         System.exit(0);
     }
 
+    /**
+     * Run a command on all the given nodes in parallel, merging their output, and exit.
+     */
+    private static void runOnCluster(String hosts, int port, String username, String password, String interval, String[] arguments)
+        throws ParseException, InterruptedException
+    {
+        if (arguments.length < 1)
+            badUse("Missing argument for command.");
+
+        NodeCommand nc = null;
+        for (NodeCommand n : NodeCommand.values())
+        {
+            if (arguments[0].toUpperCase().equals(n.name()))
+                nc = n;
+        }
+        if (nc != NodeCommand.INFO && nc != NodeCommand.TPSTATS && nc != NodeCommand.COMPACTIONSTATS && nc != NodeCommand.CFHISTOGRAMS)
+            badUse("Command not supported with --" + HOSTS_OPT_LONG + ": " + arguments[0]);
+        if (nc == NodeCommand.CFHISTOGRAMS && arguments.length != 3)
+            badUse("cfhistograms requires ks and cf args");
+
+        List<String> hostList = new ArrayList<String>();
+        for (String h : hosts.split(","))
+        {
+            if (h.trim().length() > 0)
+                hostList.add(h.trim());
+        }
+        if (hostList.isEmpty())
+            badUse("No hosts given.");
+        long intervalMillis = 0;
+        if (interval != null)
+        {
+            try
+            {
+                intervalMillis = (long) (Double.parseDouble(interval) * 1000);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new ParseException("Interval must be a number of seconds");
+            }
+        }
+
+        ClusterProbe clusterProbe = new ClusterProbe(hostList, port, username, password);
+        switch (nc)
+        {
+            case INFO            : clusterProbe.printInfo(System.out); break;
+            case TPSTATS         : clusterProbe.printThreadPoolStats(System.out); break;
+            case COMPACTIONSTATS : clusterProbe.printCompactionStats(System.out); break;
+            case CFHISTOGRAMS    : clusterProbe.printCfHistograms(arguments[1], arguments[2], intervalMillis, System.out); break;
+            default :
+                throw new RuntimeException("Unreachable code.");
+        }
+        clusterProbe.shutdown();
+
+        // partial results are still printed, but let scripts know some nodes are missing
+        System.exit(clusterProbe.getFailures().isEmpty() ? 0 : 2);
+    }
+
+    /**
+     * Stream the changes of one view of the node until interrupted, keeping the connection open.
+     */
+    private static void watch(NodeProbe probe, CommandLine cmd, String[] arguments) throws InterruptedException, ParseException
+    {
+        long intervalMillis = 1000;
+        String interval = cmd.getOptionValue(INTERVAL_OPT_LONG);
+        if (interval != null)
+        {
+            try
+            {
+                intervalMillis = (long) (Double.parseDouble(interval) * 1000);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new ParseException("Interval must be a number of seconds");
+            }
+            if (intervalMillis <= 0)
+                throw new ParseException("Interval must be positive");
+        }
+
+        String format = cmd.getOptionValue(FORMAT_OPT_LONG, "text");
+        if (!format.equals("text") && !format.equals("json"))
+            throw new ParseException("Format must be text or json");
+
+        NodeWatcher watcher = new NodeWatcher(probe, System.out, intervalMillis, format.equals("json"));
+        String view = arguments.length > 1 ? arguments[1] : "";
+        if (view.equals("tpstats"))
+            watcher.watchThreadPools();
+        else if (view.equals("netstats"))
+            watcher.watchNetwork();
+        else if (view.equals("cfhistograms") && arguments.length == 4)
+            watcher.watchColumnFamily(arguments[2], arguments[3]);
+        else
+            badUse("watch requires one of tpstats, netstats or cfhistograms <keyspace> <cfname>");
+    }
+
     private static void badUse(String useStr)
     {
         System.err.println(useStr);
@@ -0,0 +1,286 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.tools;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.Map.Entry;
+
+import org.apache.cassandra.concurrent.IExecutorMBean;
+import org.apache.cassandra.db.ColumnFamilyStoreMBean;
+import org.apache.cassandra.net.MessagingServiceMBean;
+import org.apache.cassandra.utils.EstimatedHistogram;
+
+/**
+ * Polls a node over a single NodeProbe connection and prints what changed during each interval: counters
+ * become rates, pending task counts come with their growth, and latencies are the percentiles of the
+ * operations completed during the interval.
+ *
+ * Rows are written either as fixed width text or as one JSON object per line, for feeding other tools.
+ * Cumulative counters and lifetime histograms are diffed client side rather than reading the "recent"
+ * attributes, which are reset by every reader and would be skewed by any other client polling the node.
+ */
+public class NodeWatcher
+{
+    private static final int HEADER_EVERY = 20;
+
+    private final NodeProbe probe;
+    private final PrintStream outs;
+    private final long intervalMillis;
+    private final boolean json;
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+
+    private int rowsSinceHeader = HEADER_EVERY;
+
+    public NodeWatcher(NodeProbe probe, PrintStream outs, long intervalMillis, boolean json)
+    {
+        assert intervalMillis > 0;
+        this.probe = probe;
+        this.outs = outs;
+        this.intervalMillis = intervalMillis;
+        this.json = json;
+    }
+
+    /**
+     * Per thread pool: active and pending tasks, the growth of the pending queue and tasks completed per second.
+     */
+    public void watchThreadPools() throws InterruptedException
+    {
+        watch(new View<Map<String, long[]>>("tpstats",
+                                             new String[]{ "pool", "active", "pending", "pending_delta", "completed_per_sec" },
+                                             "%-25s%10s%10s%14s%18s")
+        {
+            Map<String, long[]> sample()
+            {
+                Map<String, long[]> pools = new TreeMap<String, long[]>();
+                Iterator<Map.Entry<String, IExecutorMBean>> threads = probe.getThreadPoolMBeanProxies();
+                while (threads.hasNext())
+                {
+                    Entry<String, IExecutorMBean> thread = threads.next();
+                    IExecutorMBean threadPoolProxy = thread.getValue();
+                    pools.put(thread.getKey(), new long[]{ threadPoolProxy.getActiveCount(),
+                                                           threadPoolProxy.getPendingTasks(),
+                                                           threadPoolProxy.getCompletedTasks() });
+                }
+                return pools;
+            }
+
+            void emit(long time, double seconds, Map<String, long[]> previous, Map<String, long[]> current)
+            {
+                for (Entry<String, long[]> pool : current.entrySet())
+                {
+                    long[] now = pool.getValue();
+                    long[] before = previous.containsKey(pool.getKey()) ? previous.get(pool.getKey()) : new long[3];
+                    row(time, pool.getKey(), now[0], now[1], now[1] - before[1], (now[2] - before[2]) / seconds);
+                }
+            }
+        });
+    }
+
+    /**
+     * For commands and responses: pending messages, their growth and messages completed per second.
+     */
+    public void watchNetwork() throws InterruptedException
+    {
+        watch(new View<long[]>("netstats",
+                               new String[]{ "type", "pending", "pending_delta", "completed_per_sec" },
+                               "%-25s%10s%14s%18s")
+        {
+            long[] sample()
+            {
+                MessagingServiceMBean ms = probe.getMsProxy();
+                long[] sample = new long[4];
+                for (int n : ms.getCommandPendingTasks().values())
+                    sample[0] += n;
+                for (long n : ms.getCommandCompletedTasks().values())
+                    sample[1] += n;
+                for (int n : ms.getResponsePendingTasks().values())
+                    sample[2] += n;
+                for (long n : ms.getResponseCompletedTasks().values())
+                    sample[3] += n;
+                return sample;
+            }
+
+            void emit(long time, double seconds, long[] previous, long[] current)
+            {
+                row(time, "Commands", current[0], current[0] - previous[0], (current[1] - previous[1]) / seconds);
+                row(time, "Responses", current[2], current[2] - previous[2], (current[3] - previous[3]) / seconds);
+            }
+        });
+    }
+
+    /**
+     * For one column family: reads and writes per second, pending tasks and their growth, and the
+     * 50th, 95th and 99th percentile read and write latencies (in microseconds) over the interval.
+     */
+    public void watchColumnFamily(String keyspace, String columnFamily) throws InterruptedException
+    {
+        final ColumnFamilyStoreMBean store = probe.getCfsProxy(keyspace, columnFamily);
+        final long[] offsets = new EstimatedHistogram(90).getBucketOffsets();
+        final String name = keyspace + "/" + columnFamily;
+        watch(new View<Object[]>("cfhistograms",
+                                 new String[]{ "columnfamily", "reads_per_sec", "writes_per_sec", "pending", "pending_delta",
+                                               "read_p50", "read_p95", "read_p99", "write_p50", "write_p95", "write_p99" },
+                                 "%-25s%14s%15s%10s%14s%10s%10s%10s%10s%10s%10s")
+        {
+            Object[] sample()
+            {
+                return new Object[]{ store.getReadCount(),
+                                     store.getWriteCount(),
+                                     (long) store.getPendingTasks(),
+                                     store.getLifetimeReadLatencyHistogramMicros(),
+                                     store.getLifetimeWriteLatencyHistogramMicros() };
+            }
+
+            void emit(long time, double seconds, Object[] previous, Object[] current)
+            {
+                long[] reads = Percentiles.subtract((long[]) current[3], (long[]) previous[3]);
+                long[] writes = Percentiles.subtract((long[]) current[4], (long[]) previous[4]);
+                row(time,
+                    name,
+                    ((Long) current[0] - (Long) previous[0]) / seconds,
+                    ((Long) current[1] - (Long) previous[1]) / seconds,
+                    current[2],
+                    (Long) current[2] - (Long) previous[2],
+                    Percentiles.percentile(offsets, reads, 0.5),
+                    Percentiles.percentile(offsets, reads, 0.95),
+                    Percentiles.percentile(offsets, reads, 0.99),
+                    Percentiles.percentile(offsets, writes, 0.5),
+                    Percentiles.percentile(offsets, writes, 0.95),
+                    Percentiles.percentile(offsets, writes, 0.99));
+            }
+        });
+    }
+
+    /**
+     * Samples at a fixed rate until interrupted, emitting the difference between consecutive samples.
+     * Rates use the measured time between samples, so a slow JMX call doesn't inflate them.
+     */
+    private <T> void watch(View<T> view) throws InterruptedException
+    {
+        T previous = view.sample();
+        long previousNanos = System.nanoTime();
+        long next = System.currentTimeMillis() + intervalMillis;
+        while (true)
+        {
+            long sleep = next - System.currentTimeMillis();
+            if (sleep > 0)
+                Thread.sleep(sleep);
+            // if we fell behind, don't try to catch up with a burst of samples
+            next = Math.max(next, System.currentTimeMillis()) + intervalMillis;
+
+            T current = view.sample();
+            long nanos = System.nanoTime();
+            view.emit(System.currentTimeMillis(), (nanos - previousNanos) / 1e9, previous, current);
+            outs.flush();
+            previous = current;
+            previousNanos = nanos;
+        }
+    }
+
+    private abstract class View<T>
+    {
+        private final String name;
+        private final String[] columns;
+        private final String format;
+
+        /**
+         * @param columns the field names, also used as the text headers
+         * @param format the text format of the fields, not including the leading time column
+         */
+        View(String name, String[] columns, String format)
+        {
+            this.name = name;
+            this.columns = columns;
+            this.format = "%-10s" + format + "%n";
+        }
+
+        abstract T sample();
+
+        abstract void emit(long time, double seconds, T previous, T current);
+
+        void row(long time, Object... values)
+        {
+            assert values.length == columns.length;
+            if (json)
+                outs.println(toJson(time, values));
+            else
+                printText(time, values);
+        }
+
+        private void printText(long time, Object[] values)
+        {
+            Object[] cells = new Object[values.length + 1];
+            if (rowsSinceHeader >= HEADER_EVERY)
+            {
+                cells[0] = "Time";
+                for (int i = 0; i < columns.length; i++)
+                    cells[i + 1] = columns[i];
+                outs.printf(format, cells);
+                rowsSinceHeader = 0;
+            }
+            cells[0] = timeFormat.format(new Date(time));
+            for (int i = 0; i < values.length; i++)
+                cells[i + 1] = values[i] instanceof Double ? String.format("%.2f", values[i])
+                             : values[i] instanceof Long ? Percentiles.toString((Long) values[i])
+                             : values[i];
+            outs.printf(format, cells);
+            rowsSinceHeader++;
+        }
+
+        private String toJson(long time, Object[] values)
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"time\":").append(time).append(",\"view\":").append(quote(name));
+            for (int i = 0; i < columns.length; i++)
+            {
+                sb.append(',').append(quote(columns[i])).append(':');
+                Object value = values[i];
+                if (value instanceof String)
+                    sb.append(quote((String) value));
+                else if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite()))
+                    sb.append("null");
+                else if (value instanceof Double)
+                    sb.append(Math.round((Double) value * 1000) / 1000.0); // locale independent, unlike String.format
+                else if (value instanceof Long && (Long) value == Percentiles.OVERFLOW)
+                    sb.append("null");
+                else
+                    sb.append(value);
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    private static String quote(String s)
+    {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
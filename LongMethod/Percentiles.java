@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.cassandra.tools;
+
+import java.util.Collection;
+
+import org.apache.cassandra.utils.EstimatedHistogram;
+
+/**
+ * Percentile estimates from the bucket counts of an EstimatedHistogram, as exposed over JMX.
+ *
+ * Bucket i counts the values in (offsets[i - 1], offsets[i]], so an estimate is the upper bound of the
+ * bucket the requested rank falls in. When the buckets array is one longer than the offsets, the last
+ * bucket holds the values past the last offset, and an estimate landing there is reported as OVERFLOW.
+ */
+public class Percentiles
+{
+    public static final long OVERFLOW = Long.MAX_VALUE;
+
+    public static final double[] QUANTILES = { 0.5, 0.75, 0.95, 0.99, 0.999 };
+
+    public static long count(long[] buckets)
+    {
+        long count = 0;
+        for (long bucket : buckets)
+            count += bucket;
+        return count;
+    }
+
+    /**
+     * @param quantile in [0, 1]
+     * @return the upper bound of the bucket holding the value at the given quantile, or 0 if the
+     * histogram is empty
+     */
+    public static long percentile(long[] offsets, long[] buckets, double quantile)
+    {
+        long count = count(buckets);
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(quantile * count);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++)
+        {
+            seen += buckets[i];
+            if (seen >= rank)
+                return upperBound(offsets, i);
+        }
+        throw new AssertionError();
+    }
+
+    /**
+     * @return the upper bound of the highest non empty bucket, or 0 if the histogram is empty
+     */
+    public static long max(long[] offsets, long[] buckets)
+    {
+        for (int i = buckets.length - 1; i >= 0; i--)
+        {
+            if (buckets[i] > 0)
+                return upperBound(offsets, i);
+        }
+        return 0;
+    }
+
+    /**
+     * @return the counts recorded between two reads of the same cumulative histogram
+     */
+    public static long[] subtract(long[] current, long[] previous)
+    {
+        long[] delta = new long[current.length];
+        for (int i = 0; i < current.length; i++)
+            delta[i] = current[i] - (i < previous.length ? previous[i] : 0);
+        return delta;
+    }
+
+    /**
+     * Sum histograms bucket by bucket, e.g. the same histogram read from several nodes. Percentiles of
+     * the merged counts are the percentiles of all the underlying values, which averaging the per node
+     * percentiles would not give.
+     */
+    public static long[] merge(Collection<long[]> histograms)
+    {
+        int length = 0;
+        for (long[] buckets : histograms)
+            length = Math.max(length, buckets.length);
+
+        long[] merged = new long[length];
+        for (long[] buckets : histograms)
+        {
+            for (int i = 0; i < buckets.length; i++)
+                merged[i] += buckets[i];
+        }
+        return merged;
+    }
+
+    /**
+     * @return the bucket offsets of an EstimatedHistogram whose buckets, including the overflow one, are the given ones
+     */
+    public static long[] offsetsFor(long[] buckets)
+    {
+        return buckets.length > 1 ? new EstimatedHistogram(buckets.length - 1).getBucketOffsets() : new long[0];
+    }
+
+    public static String toString(long value)
+    {
+        return value == OVERFLOW ? "overflow" : Long.toString(value);
+    }
+
+    private static long upperBound(long[] offsets, int bucket)
+    {
+        return bucket < offsets.length ? offsets[bucket] : OVERFLOW;
+    }
+}